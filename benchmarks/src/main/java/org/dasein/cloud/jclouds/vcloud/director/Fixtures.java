@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Catalog;
+import org.jclouds.vcloud.director.v1_5.domain.CatalogItem;
+import org.jclouds.vcloud.director.v1_5.domain.Task;
+import org.jclouds.vcloud.director.v1_5.domain.VApp;
+import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
+import org.jclouds.vcloud.director.v1_5.domain.Vdc;
+import org.jclouds.vcloud.director.v1_5.domain.Vm;
+import org.jclouds.vcloud.director.v1_5.domain.network.Network;
+import org.jclouds.vcloud.director.v1_5.domain.org.AdminOrg;
+import org.jclouds.vcloud.director.v1_5.domain.org.OrgList;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Recorded vCloud Director responses, unmarshalled into jclouds domain objects, and a client that answers
+ * from them. Requests are matched first by href and then by the type of object the client method returns,
+ * so the provider can run its real code paths without a cloud behind it.
+ */
+public class Fixtures {
+    static public final String ENDPOINT    = "https://vcloud.example.com/api";
+    static public final String API_VERSION = "1.5";
+    static public final String ACCOUNT     = "acme";
+
+    static public @Nonnull <T> T load(@Nonnull String name, @Nonnull Class<T> type) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+
+        if( in == null ) {
+            throw new IllegalArgumentException("No such fixture: " + name);
+        }
+        try {
+            try {
+                return JAXBContext.newInstance(type).createUnmarshaller().unmarshal(new StreamSource(in), type).getValue();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch( JAXBException e ) {
+            throw new IllegalStateException("Unable to parse fixture " + name, e);
+        }
+        catch( IOException e ) {
+            throw new IllegalStateException("Unable to read fixture " + name, e);
+        }
+    }
+
+    private final Map<URI,Object>      byHref = new HashMap<URI,Object>();
+    private final Map<Class<?>,Object> byType = new HashMap<Class<?>,Object>();
+
+    public Fixtures() {
+        add(OrgList.class, load("orgList.xml", OrgList.class));
+        add(AdminOrg.class, load("adminOrg.xml", AdminOrg.class));
+        add(Vdc.class, load("vdc.xml", Vdc.class));
+        add(Network.class, load("network.xml", Network.class));
+        add(VApp.class, load("vApp.xml", VApp.class));
+        add(Vm.class, load("vm.xml", Vm.class));
+        add(VAppTemplate.class, load("vAppTemplate.xml", VAppTemplate.class));
+        add(Catalog.class, load("catalog.xml", Catalog.class));
+        add(CatalogItem.class, load("catalogItem.xml", CatalogItem.class));
+        add(Task.class, load("task.xml", Task.class));
+    }
+
+    private <T> void add(@Nonnull Class<T> type, @Nonnull T value) {
+        byType.put(type, value);
+        try {
+            Object href = value.getClass().getMethod("getHref").invoke(value);
+
+            if( href instanceof URI ) {
+                byHref.put((URI)href, value);
+            }
+        }
+        catch( Exception ignore ) {
+            // not every fixture is addressable
+        }
+    }
+
+    public @Nonnull <T> T get(@Nonnull Class<T> type) {
+        return type.cast(byType.get(type));
+    }
+
+    private @Nullable Object find(@Nonnull Class<?> type, @Nullable Object[] args) {
+        if( args != null ) {
+            for( Object arg : args ) {
+                if( arg instanceof URI ) {
+                    Object value = byHref.get(arg);
+
+                    if( type.isInstance(value) ) {
+                        return value;
+                    }
+                }
+            }
+        }
+        for( Object value : byType.values() ) {
+            if( type.isInstance(value) ) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private @Nonnull Object client(@Nonnull final Class<?> type) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Class<?> returnType = method.getReturnType();
+
+                if( method.getDeclaringClass().equals(Object.class) ) {
+                    return (method.getName().equals("equals") ? (proxy == args[0]) : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getSimpleName());
+                }
+                if( returnType.isInterface() && returnType.getSimpleName().endsWith("Client") ) {
+                    return client(returnType);
+                }
+                if( returnType.equals(ListenableFuture.class) ) {
+                    Type t = method.getGenericReturnType();
+                    Class<?> valueType = Object.class;
+
+                    if( t instanceof ParameterizedType ) {
+                        Type arg = ((ParameterizedType)t).getActualTypeArguments()[0];
+
+                        if( arg instanceof Class<?> ) {
+                            valueType = (Class<?>)arg;
+                        }
+                    }
+                    return Futures.immediateFuture(find(valueType, args));
+                }
+                return find(returnType, args);
+            }
+        });
+    }
+
+    /**
+     * @return a client whose synchronous and asynchronous APIs answer from these fixtures
+     */
+    @SuppressWarnings("unchecked")
+    public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> createContext() {
+        final URI endpoint = URI.create(ENDPOINT);
+        final Object api = client(VCloudDirectorAdminClient.class);
+        final Object asyncApi = client(VCloudDirectorAdminAsyncClient.class);
+
+        return (RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient>)Proxy.newProxyInstance(RestContext.class.getClassLoader(), new Class<?>[] { RestContext.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+
+                if( name.equals("getApi") ) {
+                    return api;
+                }
+                else if( name.equals("getAsyncApi") ) {
+                    return asyncApi;
+                }
+                else if( name.equals("getEndpoint") ) {
+                    return endpoint;
+                }
+                else if( name.equals("getApiVersion") ) {
+                    return API_VERSION;
+                }
+                else if( name.equals("hashCode") ) {
+                    return System.identityHashCode(proxy);
+                }
+                else if( name.equals("equals") ) {
+                    return (proxy == args[0]);
+                }
+                else if( name.equals("toString") ) {
+                    return "fixtures@" + ENDPOINT;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Connects a provider whose context pool hands out fixture clients instead of logging in to a cloud.
+     * @return the connected provider
+     * @throws CloudException the provider could not be connected
+     */
+    public @Nonnull VCloudDirector connect() throws CloudException {
+        ProviderContext ctx = new ProviderContext();
+        VCloudDirector provider = new VCloudDirector();
+
+        ctx.setEndpoint(ENDPOINT);
+        ctx.setAccountNumber(ACCOUNT);
+        ctx.setAccessPublic("operator".getBytes());
+        ctx.setAccessPrivate(("fixtures-" + System.identityHashCode(this)).getBytes());
+        ctx.setRegionId("example");
+        ctx.setCloudName("vCloud Director");
+        ctx.setProviderName("VMware");
+        provider.connect(ctx);
+        provider.setContextFactory(new RestContextPool.ContextFactory() {
+            @Override
+            public @Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> createContext() {
+                return Fixtures.this.createContext();
+            }
+        });
+        return provider;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Vm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts between vCloud hrefs and Dasein IDs, which happens several times for every object listed. The
+ * <code>legacy</code> benchmarks rebuild the href prefix from the context on every call, the way the provider
+ * did before {@link HrefCodec}, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HrefBenchmark {
+    private VCloudDirector provider;
+    private RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> ctx;
+    private URI httpsHref;
+    private URI httpHref;
+    private String id;
+
+    @Setup
+    public void setUp() throws CloudException {
+        Fixtures fixtures = new Fixtures();
+
+        provider = fixtures.connect();
+        ctx = fixtures.createContext();
+        httpsHref = fixtures.get(Vm.class).getHref();
+        httpHref = URI.create(httpsHref.toASCIIString().replaceFirst("^https:", "http:"));
+        id = provider.toId(ctx, httpsHref);
+    }
+
+    @Benchmark
+    public String toId() {
+        return provider.toId(ctx, httpsHref);
+    }
+
+    @Benchmark
+    public String toIdAcrossSchemes() {
+        return provider.toId(ctx, httpHref);
+    }
+
+    @Benchmark
+    public URI toHref() {
+        return provider.toHref(ctx, id);
+    }
+
+    @Benchmark
+    public String legacyToId() {
+        return legacyToId(httpsHref);
+    }
+
+    @Benchmark
+    public String legacyToIdAcrossSchemes() {
+        return legacyToId(httpHref);
+    }
+
+    @Benchmark
+    public URI legacyToHref() {
+        try {
+            return new URI(ctx.getEndpoint() + "/v" + ctx.getApiVersion() + id);
+        }
+        catch( URISyntaxException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String legacyToId(URI uri) {
+        String endpoint = ctx.getEndpoint().toASCIIString();
+        String str = uri.toASCIIString();
+        int extra;
+
+        if( (str.startsWith("http:") && endpoint.startsWith("http:")) || (str.startsWith("https:") && endpoint.startsWith("https:")) ) {
+            extra = 0;
+        }
+        else if( str.startsWith("https:") && endpoint.startsWith("http:") ) {
+            extra = 1;
+        }
+        else if( str.startsWith("http:") && endpoint.startsWith("https") ) {
+            extra = -1;
+        }
+        else {
+            throw new RuntimeException("Unknown protocol endpoints " + str + " against " + endpoint);
+        }
+        return str.substring(((ctx.getEndpoint() + "/v" + ctx.getApiVersion()).length()) + extra);
+    }
+
+    @Benchmark
+    public String validateName() {
+        return provider.validateName("Web Server #12 (prod)");
+    }
+}
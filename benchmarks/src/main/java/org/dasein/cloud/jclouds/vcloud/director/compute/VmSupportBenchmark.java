@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.jclouds.vcloud.director.Fixtures;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.VApp;
+import org.jclouds.vcloud.director.v1_5.domain.Vm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Maps a recorded vApp child into a Dasein virtual machine. The org, VLAN index and template facts are
+ * warmed up in the setup, so this measures the per-VM cost of listing inventory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VmSupportBenchmark {
+    static private final String[] ADDRESSES = { "10.20.0.101", "172.16.4.9", "172.32.0.1", "192.168.1.20", "203.0.113.41" };
+
+    private RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> ctx;
+    private VmSupport support;
+    private VApp app;
+    private Vm vm;
+
+    @Setup
+    public void setUp() throws CloudException, InternalException {
+        Fixtures fixtures = new Fixtures();
+        VCloudDirector provider = fixtures.connect();
+
+        support = new VmSupport(provider);
+        ctx = provider.getCloudClient();
+        app = fixtures.get(VApp.class);
+        vm = app.getChildren().getVms().get(0);
+        support.toVirtualMachine(ctx, app, vm);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public VirtualMachine toVirtualMachine() throws CloudException, InternalException {
+        return support.toVirtualMachine(ctx, app, vm);
+    }
+
+    @Benchmark
+    public void isPublicIp(Blackhole blackhole) {
+        for( String address : ADDRESSES ) {
+            blackhole.consume(support.isPublicIp(address));
+        }
+    }
+}
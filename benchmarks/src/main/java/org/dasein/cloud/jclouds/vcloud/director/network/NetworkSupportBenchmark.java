@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.network;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.jclouds.vcloud.director.Fixtures;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.dasein.cloud.network.VLAN;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.network.Network;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Maps a recorded org network into a Dasein VLAN, including the CIDR calculation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkSupportBenchmark {
+    private RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> ctx;
+    private VCloudDirectorNetworkSupport support;
+    private Network network;
+
+    @Setup
+    public void setUp() throws CloudException {
+        Fixtures fixtures = new Fixtures();
+        VCloudDirector provider = fixtures.connect();
+
+        support = new VCloudDirectorNetworkSupport(provider);
+        ctx = provider.getCloudClient();
+        network = fixtures.get(Network.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public String toCidr() {
+        return support.toCidr("10.20.0.1", "255.255.255.0");
+    }
+
+    @Benchmark
+    public VLAN toVlan() throws CloudException {
+        // a fresh owner map per call, as in a single listing pass over one network
+        return support.toVlan(ctx, network, new HashMap<URI,String>());
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.dc.DataCenter;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Reference;
+import org.jclouds.vcloud.director.v1_5.domain.Vdc;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Holds the data centers of an org for every {@link VCloudDirector} instance connected with the same endpoint and
+ * credentials. The Vdcs behind them are fetched in parallel and refreshed in the background while the topology
+ * is in use, so data center lookups are answered from memory. Only the data center mappings are kept: Vdc
+ * resource entities change all the time, so anything that needs a Vdc itself should fetch it, and may hand a
+ * complete listing to {@link #update(RestContext, Collection)}.
+ */
+public class DataCenterTopology {
+    static private final Logger logger = Logger.getLogger(DataCenterTopology.class);
+
+    static public final String TTL = "vcloud.topology.ttlMillis";
+
+    static private final ConcurrentHashMap<String,DataCenterTopology> topologies = new ConcurrentHashMap<String,DataCenterTopology>();
+
+    static public @Nonnull DataCenterTopology getInstance(@Nonnull VCloudDirector provider) throws CloudException {
+        String key = provider.getContextKey();
+        DataCenterTopology topology = topologies.get(key);
+
+        if( topology == null ) {
+            DataCenterTopology t = new DataCenterTopology(provider);
+
+            topology = topologies.putIfAbsent(key, t);
+            if( topology == null ) {
+                topology = t;
+                topology.schedule();
+            }
+        }
+        topology.provider = provider;
+        return topology;
+    }
+
+    static private class Snapshot {
+        private final Map<String,DataCenter> dataCenters;
+        private final long                   loaded;
+        private volatile long                accessed;
+
+        Snapshot(@Nonnull Map<String,DataCenter> dataCenters) {
+            this.dataCenters = dataCenters;
+            this.loaded = System.currentTimeMillis();
+            this.accessed = loaded;
+        }
+    }
+
+    private volatile VCloudDirector provider;
+    private volatile Snapshot       snapshot;
+    private final Object            loadLock = new Object();
+
+    private volatile long ttl = TimeUnit.MINUTES.toMillis(5);
+
+    private DataCenterTopology(@Nonnull VCloudDirector provider) {
+        this.provider = provider;
+    }
+
+    public void configure(long ttl) {
+        if( ttl > 0L ) {
+            this.ttl = ttl;
+        }
+    }
+
+    public @Nullable DataCenter getDataCenter(@Nonnull String dataCenterId) throws CloudException {
+        return current().dataCenters.get(dataCenterId);
+    }
+
+    public @Nonnull Collection<DataCenter> listDataCenters() throws CloudException {
+        return current().dataCenters.values();
+    }
+
+    /**
+     * Replaces the topology with Vdcs that were just fetched for some other purpose. Only a complete listing of
+     * the org's Vdcs should be passed in, since anything missing from it is forgotten.
+     * @param ctx the context the Vdcs were fetched through
+     * @param vdcs every Vdc of the org, as of now
+     */
+    public void update(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull Collection<Vdc> vdcs) {
+        try {
+            Snapshot previous = snapshot;
+            Snapshot fresh = toSnapshot(provider, ctx, vdcs);
+
+            if( previous != null ) {
+                fresh.accessed = previous.accessed;
+            }
+            snapshot = fresh;
+        }
+        catch( CloudException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Unable to update data center topology: " + e.getMessage());
+            }
+        }
+    }
+
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    private @Nonnull Snapshot current() throws CloudException {
+        Snapshot s = snapshot;
+
+        if( s == null || (System.currentTimeMillis() - s.loaded) >= ttl ) {
+            synchronized( loadLock ) {
+                s = snapshot;
+                if( s == null || (System.currentTimeMillis() - s.loaded) >= ttl ) {
+                    s = load();
+                }
+            }
+        }
+        s.accessed = System.currentTimeMillis();
+        return s;
+    }
+
+    private @Nonnull Snapshot load() throws CloudException {
+        VCloudDirector cloud = provider;
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = cloud.getCloudClient();
+
+        try {
+            Set<Reference> refs = cloud.getOrg().getVdcs();
+            List<Vdc> vdcs;
+
+            if( refs == null ) {
+                vdcs = Collections.emptyList();
+            }
+            else {
+                try {
+                    vdcs = FetchPipeline.fetchAll(cloud, refs, new FetchPipeline.Fetcher<Reference,Vdc>() {
+                        @Override
+                        public @Nonnull ListenableFuture<? extends Vdc> fetch(@Nonnull Reference ref) {
+                            return ctx.getAsyncApi().getVdcClient().getVdc(ref.getHref());
+                        }
+                    });
+                }
+                catch( RuntimeException e ) {
+                    logger.error("Error loading data center topology: " + e.getMessage());
+                    if( logger.isDebugEnabled() ) {
+                        e.printStackTrace();
+                    }
+                    throw new CloudException(e);
+                }
+            }
+            Snapshot previous = snapshot;
+            Snapshot fresh = toSnapshot(cloud, ctx, vdcs);
+
+            if( previous != null ) {
+                fresh.accessed = previous.accessed;
+            }
+            snapshot = fresh;
+            return fresh;
+        }
+        finally {
+            ctx.close();
+        }
+    }
+
+    private @Nonnull Snapshot toSnapshot(@Nonnull VCloudDirector cloud, @Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull Collection<Vdc> vdcs) throws CloudException {
+        ProviderContext context = cloud.getContext();
+
+        if( context == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        Map<String,DataCenter> dataCenters = new LinkedHashMap<String,DataCenter>();
+
+        for( Vdc vdc : vdcs ) {
+            if( vdc == null ) {
+                continue;
+            }
+            String id = cloud.toId(ctx, vdc.getHref());
+            DataCenter dc = new DataCenter();
+
+            dc.setProviderDataCenterId(id);
+            dc.setActive(true);
+            dc.setAvailable(true);
+            dc.setName(vdc.getName());
+            dc.setRegionId(context.getRegionId());
+            dataCenters.put(id, dc);
+        }
+        return new Snapshot(Collections.unmodifiableMap(dataCenters));
+    }
+
+    private void schedule() {
+        long interval = TimeUnit.SECONDS.toMillis(30);
+
+        VCloudDirector.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                }
+                catch( Throwable t ) {
+                    logger.warn("Error refreshing vCloud data center topology: " + t.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        Snapshot s = snapshot;
+        long now = System.currentTimeMillis();
+
+        if( s == null ) {
+            return;
+        }
+        if( (now - s.accessed) >= (ttl * 3) ) {
+            // nobody has looked at this account for a while
+            synchronized( loadLock ) {
+                if( snapshot == s ) {
+                    snapshot = null;
+                }
+            }
+        }
+        else if( (now - s.loaded) >= (ttl / 2) ) {
+            synchronized( loadLock ) {
+                try {
+                    load();
+                }
+                catch( CloudException e ) {
+                    // keep serving the old copy until it expires; the next request will retry
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Unable to refresh data center topology: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
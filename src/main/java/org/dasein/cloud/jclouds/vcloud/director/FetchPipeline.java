@@ -0,0 +1,406 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Issues many independent GETs through the jclouds async client while capping the number of requests in
+ * flight against any one endpoint. Results come back in the same order as the keys that produced them.
+ */
+public class FetchPipeline {
+    static private final Logger logger = Logger.getLogger(FetchPipeline.class);
+
+    static public final String MAX_CONCURRENT_REQUESTS = "vcloud.maxConcurrentRequests";
+
+    static private final ConcurrentHashMap<String,Permits> permits = new ConcurrentHashMap<String,Permits>();
+
+    static public interface Fetcher<K,V> {
+        public @Nonnull ListenableFuture<? extends V> fetch(@Nonnull K key);
+    }
+
+    /**
+     * The requests allowed in flight against one endpoint. Blocking and non-blocking callers wait in the same
+     * first-come first-served queue. A permit handed to a waiter is delivered on the callback executor rather than
+     * on the thread that released it, so requests that complete immediately never recurse into the next one.
+     */
+    static private class Permits {
+        private final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+        private int                        limit;
+        private int                        inUse;
+
+        Permits(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Runs <code>onPermit</code> on the callback executor once a permit is available. Whoever runs it owns the
+         * permit and must {@link #release()} it.
+         * @param onPermit the work to do with the permit
+         */
+        void acquire(@Nonnull Runnable onPermit) {
+            synchronized( this ) {
+                if( inUse >= limit || !waiting.isEmpty() ) {
+                    waiting.addLast(onPermit);
+                    return;
+                }
+                inUse++;
+            }
+            grant(onPermit);
+        }
+
+        void acquire() throws InterruptedException {
+            final CountDownLatch latch = new CountDownLatch(1);
+            Runnable signal = new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            };
+
+            synchronized( this ) {
+                if( inUse < limit && waiting.isEmpty() ) {
+                    inUse++;
+                    return;
+                }
+                waiting.addLast(signal);
+            }
+            try {
+                latch.await();
+            }
+            catch( InterruptedException e ) {
+                boolean granted;
+
+                synchronized( this ) {
+                    granted = !waiting.remove(signal);
+                }
+                if( granted ) {
+                    release();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Changes the number of permits. Extra permits go to waiters straight away; when the limit shrinks,
+         * requests already in flight finish and their permits are retired until the new limit is reached.
+         * @param limit the new number of permits
+         */
+        void resize(int limit) {
+            ArrayList<Runnable> granted = new ArrayList<Runnable>();
+
+            synchronized( this ) {
+                if( this.limit == limit ) {
+                    return;
+                }
+                this.limit = limit;
+                while( inUse < limit && !waiting.isEmpty() ) {
+                    inUse++;
+                    granted.add(waiting.removeFirst());
+                }
+            }
+            for( Runnable onPermit : granted ) {
+                grant(onPermit);
+            }
+        }
+
+        void release() {
+            Runnable next;
+
+            synchronized( this ) {
+                next = (waiting.isEmpty() || inUse > limit ? null : waiting.removeFirst());
+                if( next == null ) {
+                    inUse--;
+                }
+            }
+            if( next != null ) {
+                // the permit passes straight to the next waiter
+                grant(next);
+            }
+        }
+
+        private void grant(@Nonnull Runnable onPermit) {
+            try {
+                VCloudDirector.getCallbackExecutor().execute(onPermit);
+            }
+            catch( RejectedExecutionException e ) {
+                // only happens while shutting down; a waiter left without its permit would never wake up
+                logger.warn("Callback executor rejected a request permit, granting it in place: " + e.getMessage());
+                onPermit.run();
+            }
+        }
+    }
+
+    static private @Nonnull Permits getPermits(@Nonnull VCloudDirector provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return getPermits(String.valueOf(ctx.getEndpoint()), (int)provider.getLongProperty(MAX_CONCURRENT_REQUESTS, 8L));
+    }
+
+    static private @Nonnull Permits getPermits(@Nonnull String endpoint, int max) {
+        int limit = Math.max(1, max);
+        Permits p = permits.get(endpoint);
+
+        if( p == null ) {
+            p = new Permits(limit);
+            Permits existing = permits.putIfAbsent(endpoint, p);
+
+            if( existing != null ) {
+                p = existing;
+            }
+        }
+        // picks up changes to vcloud.maxConcurrentRequests; every account on the endpoint shares the latest value
+        p.resize(limit);
+        return p;
+    }
+
+    /**
+     * Fetches every key and waits for all of the results.
+     * @param provider the provider whose endpoint limit applies
+     * @param keys the keys to fetch
+     * @param fetcher issues the asynchronous request for a single key
+     * @return the fetched values in key order
+     * @throws CloudException any of the requests failed
+     */
+    static public @Nonnull <K,V> List<V> fetchAll(@Nonnull VCloudDirector provider, @Nonnull Iterable<K> keys, @Nonnull Fetcher<K,V> fetcher) throws CloudException {
+        return fetchAll(provider, keys, fetcher, null);
+    }
+
+    /**
+     * Fetches every key and waits for all of the results, tolerating one kind of failure for individual keys.
+     * @param provider the provider whose endpoint limit applies
+     * @param keys the keys to fetch
+     * @param fetcher issues the asynchronous request for a single key
+     * @param skip failures of this type leave a <code>null</code> result for that key instead of failing the whole fetch
+     * @return the fetched values in key order
+     * @throws CloudException any of the requests failed with an error other than <code>skip</code>
+     */
+    static public @Nonnull <K,V> List<V> fetchAll(@Nonnull VCloudDirector provider, @Nonnull Iterable<K> keys, @Nonnull Fetcher<K,V> fetcher, @Nullable Class<? extends RuntimeException> skip) throws CloudException {
+        ArrayList<ListenableFuture<? extends V>> futures = new ArrayList<ListenableFuture<? extends V>>();
+        final Permits endpoint = getPermits(provider);
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                endpoint.release();
+            }
+        };
+
+        try {
+            for( K key : keys ) {
+                endpoint.acquire();
+                ListenableFuture<? extends V> future;
+
+                try {
+                    future = fetcher.fetch(key);
+                }
+                catch( RuntimeException e ) {
+                    endpoint.release();
+                    throw e;
+                }
+                future.addListener(release, MoreExecutors.sameThreadExecutor());
+                futures.add(future);
+            }
+            ArrayList<V> results = new ArrayList<V>(futures.size());
+
+            for( ListenableFuture<? extends V> future : futures ) {
+                try {
+                    results.add(future.get());
+                }
+                catch( ExecutionException e ) {
+                    if( skip == null || !skip.isInstance(e.getCause()) ) {
+                        throw e;
+                    }
+                    results.add(null);
+                }
+            }
+            return results;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            cancel(futures);
+            throw new CloudException("Interrupted while fetching resources");
+        }
+        catch( ExecutionException e ) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            throw new CloudException(cause);
+        }
+        catch( RuntimeException e ) {
+            cancel(futures);
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches every key without blocking the caller. Requests wait for the same endpoint-wide permits as
+     * {@link #fetchAll}, but in a queue rather than on a thread, and each call keeps at most
+     * <code>vcloud.maxConcurrentRequests</code> of its own requests queued or in flight so that one large
+     * listing cannot crowd out everything else.
+     * @param provider the provider whose request limit applies
+     * @param keys the keys to fetch
+     * @param fetcher issues the asynchronous request for a single key
+     * @return a future completing with the fetched values in key order, or failing with the first error
+     */
+    static public @Nonnull <K,V> ListenableFuture<List<V>> fetchAllAsync(@Nonnull VCloudDirector provider, @Nonnull Iterable<K> keys, @Nonnull Fetcher<K,V> fetcher) {
+        return fetchAllAsync(provider, keys, fetcher, null);
+    }
+
+    /**
+     * Fetches every key without blocking the caller, tolerating one kind of failure for individual keys.
+     * @param provider the provider whose request limit applies
+     * @param keys the keys to fetch
+     * @param fetcher issues the asynchronous request for a single key
+     * @param skip failures of this type leave a <code>null</code> result for that key instead of failing the whole fetch
+     * @return a future completing with the fetched values in key order, or failing with the first error other than <code>skip</code>
+     */
+    static public @Nonnull <K,V> ListenableFuture<List<V>> fetchAllAsync(@Nonnull VCloudDirector provider, @Nonnull Iterable<K> keys, @Nonnull Fetcher<K,V> fetcher, @Nullable Class<? extends RuntimeException> skip) {
+        Permits endpoint;
+
+        try {
+            endpoint = getPermits(provider);
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return fetchAllAsync(endpoint, (int)provider.getLongProperty(MAX_CONCURRENT_REQUESTS, 8L), keys, fetcher, skip);
+    }
+
+    /**
+     * Fetches every key without blocking the caller, for callers such as the task poller that work on behalf of
+     * an account rather than through a provider.
+     * @param endpoint the endpoint whose request limit applies
+     * @param maxConcurrentRequests the current value of <code>vcloud.maxConcurrentRequests</code>
+     * @param keys the keys to fetch
+     * @param fetcher issues the asynchronous request for a single key
+     * @param skip failures of this type leave a <code>null</code> result for that key instead of failing the whole fetch
+     * @return a future completing with the fetched values in key order, or failing with the first error other than <code>skip</code>
+     */
+    static public @Nonnull <K,V> ListenableFuture<List<V>> fetchAllAsync(@Nonnull String endpoint, int maxConcurrentRequests, @Nonnull Iterable<K> keys, @Nonnull Fetcher<K,V> fetcher, @Nullable Class<? extends RuntimeException> skip) {
+        return fetchAllAsync(getPermits(endpoint, maxConcurrentRequests), maxConcurrentRequests, keys, fetcher, skip);
+    }
+
+    static private @Nonnull <K,V> ListenableFuture<List<V>> fetchAllAsync(@Nonnull final Permits endpoint, int maxConcurrentRequests, @Nonnull Iterable<K> keys, @Nonnull final Fetcher<K,V> fetcher, @Nullable final Class<? extends RuntimeException> skip) {
+        final ArrayList<K> pending = new ArrayList<K>();
+        final SettableFuture<List<V>> result = SettableFuture.create();
+
+        for( K key : keys ) {
+            pending.add(key);
+        }
+        final AtomicReferenceArray<V> values = new AtomicReferenceArray<V>(pending.size());
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger remaining = new AtomicInteger(pending.size());
+        int window = Math.max(1, Math.min(pending.size(), maxConcurrentRequests));
+
+        if( pending.isEmpty() ) {
+            result.set(new ArrayList<V>());
+            return result;
+        }
+        // runs with an endpoint permit; each completed request queues for the permit for the next key, which
+        // arrives on the callback executor, so a long run of requests never builds up a deep stack
+        final Runnable issue = new Runnable() {
+            @Override
+            public void run() {
+                final int i = next.getAndIncrement();
+
+                if( i >= pending.size() || result.isDone() ) {
+                    endpoint.release();
+                    return;
+                }
+                final Runnable self = this;
+                ListenableFuture<? extends V> future;
+
+                try {
+                    future = fetcher.fetch(pending.get(i));
+                }
+                catch( RuntimeException e ) {
+                    endpoint.release();
+                    result.setException(e);
+                    return;
+                }
+                Futures.addCallback(future, new FutureCallback<V>() {
+                    @Override
+                    public void onSuccess(V value) {
+                        endpoint.release();
+                        values.set(i, value);
+                        if( remaining.decrementAndGet() == 0 ) {
+                            ArrayList<V> list = new ArrayList<V>(values.length());
+
+                            for( int j=0; j<values.length(); j++ ) {
+                                list.add(values.get(j));
+                            }
+                            result.set(list);
+                        }
+                        else if( next.get() < pending.size() ) {
+                            endpoint.acquire(self);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        if( skip != null && skip.isInstance(t) ) {
+                            onSuccess(null);
+                            return;
+                        }
+                        endpoint.release();
+                        result.setException(t);
+                    }
+                });
+            }
+        };
+
+        for( int i=0; i<window; i++ ) {
+            endpoint.acquire(issue);
+        }
+        return result;
+    }
+
+    static private <V> void cancel(@Nonnull List<ListenableFuture<? extends V>> futures) {
+        for( ListenableFuture<? extends V> future : futures ) {
+            future.cancel(true);
+        }
+    }
+}
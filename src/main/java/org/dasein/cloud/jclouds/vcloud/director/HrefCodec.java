@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Translates between vCloud hrefs and Dasein IDs for one endpoint and API version. An ID is whatever follows
+ * <code>&lt;endpoint&gt;/v&lt;version&gt;</code> in an href. The prefix is worked out once for both the http and
+ * the https form of the endpoint, since vCloud Director often hands back hrefs with a different scheme than the
+ * one the client connected with, so translating an href costs only the substring that becomes the ID.
+ */
+public class HrefCodec {
+    static private final String HTTP  = "http:";
+    static private final String HTTPS = "https:";
+
+    static private final ConcurrentHashMap<String,HrefCodec> codecs = new ConcurrentHashMap<String,HrefCodec>();
+
+    static public @Nonnull HrefCodec getInstance(@Nonnull URI endpoint, @Nonnull String apiVersion) {
+        String key = endpoint.toASCIIString() + "|" + apiVersion;
+        HrefCodec codec = codecs.get(key);
+
+        if( codec == null ) {
+            HrefCodec c = new HrefCodec(endpoint, apiVersion);
+
+            codec = codecs.putIfAbsent(key, c);
+            if( codec == null ) {
+                codec = c;
+            }
+        }
+        return codec;
+    }
+
+    private final URI    endpoint;
+    private final String apiVersion;
+    private final String prefix;
+    private final int    httpLength;
+    private final int    httpsLength;
+
+    private HrefCodec(@Nonnull URI endpoint, @Nonnull String apiVersion) {
+        this.endpoint = endpoint;
+        this.apiVersion = apiVersion;
+        this.prefix = endpoint + "/v" + apiVersion;
+        if( prefix.startsWith(HTTPS) ) {
+            httpsLength = prefix.length();
+            httpLength = httpsLength - 1;
+        }
+        else if( prefix.startsWith(HTTP) ) {
+            httpLength = prefix.length();
+            httpsLength = httpLength + 1;
+        }
+        else {
+            httpLength = -1;
+            httpsLength = -1;
+        }
+    }
+
+    /**
+     * @param endpoint the endpoint of a REST context
+     * @param apiVersion the API version of the same context
+     * @return true if this codec translates hrefs for that context
+     */
+    public boolean matches(@Nonnull URI endpoint, @Nonnull String apiVersion) {
+        return (this.endpoint == endpoint || this.endpoint.equals(endpoint)) && this.apiVersion.equals(apiVersion);
+    }
+
+    public @Nonnull String toId(@Nonnull URI href) {
+        String str = href.toASCIIString();
+        int idx;
+
+        if( str.startsWith(prefix) ) {
+            idx = prefix.length();
+        }
+        else if( httpsLength > 0 && str.startsWith(HTTPS) ) {
+            idx = httpsLength;
+        }
+        else if( httpLength > 0 && str.startsWith(HTTP) ) {
+            idx = httpLength;
+        }
+        else {
+            throw new RuntimeException("Unknown protocol endpoints " + str + " against " + endpoint);
+        }
+        return str.substring(idx);
+    }
+
+    public @Nonnull URI toHref(@Nonnull String id) {
+        try {
+            return new URI(prefix.concat(id));
+        }
+        catch( URISyntaxException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram. Values are recorded in microseconds into
+ * log-linear buckets holding eight sub-buckets per power of two, so any reported value is within 12.5% of
+ * what was recorded, whatever its magnitude, while the whole histogram stays under 4KB.
+ */
+public class LatencyHistogram {
+    static private final int SUB_BUCKETS = 8;
+    static private final int SHIFT       = 3;
+    static private final int BUCKETS     = (64 - SHIFT + 1) * SUB_BUCKETS;
+
+    static int toIndex(long value) {
+        if( value < SUB_BUCKETS ) {
+            return (int)Math.max(0L, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        return ((exponent - SHIFT + 1) * SUB_BUCKETS) + (int)((value >>> (exponent - SHIFT)) & (SUB_BUCKETS - 1));
+    }
+
+    static long toHighestValue(int index) {
+        if( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int exponent = (index / SUB_BUCKETS) + SHIFT - 1;
+        long lowest = ((long)(SUB_BUCKETS + (index % SUB_BUCKETS))) << (exponent - SHIFT);
+
+        return lowest + (1L << (exponent - SHIFT)) - 1L;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count  = new AtomicLong(0L);
+    private final AtomicLong      total  = new AtomicLong(0L);
+    private final AtomicLong      max    = new AtomicLong(0L);
+
+    public void record(long duration, TimeUnit unit) {
+        long micros = unit.toMicros(duration);
+
+        counts.incrementAndGet(toIndex(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long m = max.get();
+
+        while( micros > m && !max.compareAndSet(m, micros) ) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest value recorded, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, in microseconds
+     */
+    public double getMean() {
+        long c = count.get();
+
+        return (c == 0L ? 0.0 : ((double)total.get()) / c);
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the highest value equivalent to the value at the given percentile, in microseconds
+     */
+    public long getValueAtPercentile(double percentile) {
+        long c = count.get();
+
+        if( c == 0L ) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long)Math.ceil((percentile / 100.0) * c));
+        long seen = 0L;
+
+        for( int i=0; i<BUCKETS; i++ ) {
+            seen += counts.get(i);
+            if( seen >= target ) {
+                return Math.min(toHighestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for( int i=0; i<BUCKETS; i++ ) {
+            counts.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "[count=" + getCount() + ",p50=" + getValueAtPercentile(50.0) + "us,p99=" + getValueAtPercentile(99.0) + "us,max=" + getMax() + "us]";
+    }
+}
@@ -0,0 +1,497 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Records where time goes when talking to vCloud Director: API calls and their latencies both per Dasein
+ * operation (the support method that borrowed the context, such as <code>VmSupport.launch</code>) and per
+ * vCloud resource type (the jclouds sub-client used, such as <code>vApp</code> or <code>task</code>), the
+ * contexts created and how long they took to log in, and the time callers spent blocked waiting for tasks.
+ * One instance is kept per context pool and registered as an MBean under
+ * <code>org.dasein.cloud.jclouds.vcloud.director:type=Metrics</code>. Reporters can be added
+ * programmatically or named by class with <code>vcloud.metrics.reporter</code> (<code>log</code> for
+ * the built-in log4j reporter), and run every <code>vcloud.metrics.reportIntervalMillis</code>
+ * (default one minute).
+ */
+public class Metrics implements MetricsMBean {
+    static private final Logger logger = Logger.getLogger(Metrics.class);
+
+    static public final String REPORTER        = "vcloud.metrics.reporter";
+    static public final String REPORT_INTERVAL = "vcloud.metrics.reportIntervalMillis";
+
+    static private final String PACKAGE = Metrics.class.getPackage().getName() + ".";
+
+    static public interface Reporter {
+        public void report(@Nonnull Metrics metrics);
+    }
+
+    /**
+     * Told about the outcome of every call made through an instrumented client.
+     */
+    static interface CallObserver {
+        public void succeeded();
+
+        public void failed(@Nonnull Throwable t);
+    }
+
+    /**
+     * Logs a summary of every operation and resource at INFO.
+     */
+    static public class LogReporter implements Reporter {
+        @Override
+        public void report(@Nonnull Metrics metrics) {
+            if( logger.isInfoEnabled() ) {
+                logger.info("vCloud metrics for " + metrics.getName() + ": calls=" + metrics.getCallCount() + ",errors=" + metrics.getErrorCount() + ",contexts=" + metrics.getContextsCreated() + ",pollWait=" + metrics.getPollWaitMillis() + "ms");
+                for( String summary : metrics.getOperationSummaries() ) {
+                    logger.info("  operation " + summary);
+                }
+                for( String summary : metrics.getResourceSummaries() ) {
+                    logger.info("  resource " + summary);
+                }
+            }
+        }
+    }
+
+    static public class Statistics {
+        private final AtomicLong       calls   = new AtomicLong(0L);
+        private final AtomicLong       errors  = new AtomicLong(0L);
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getCalls() { return calls.get(); }
+
+        public long getErrors() { return errors.get(); }
+
+        public @Nonnull LatencyHistogram getLatency() { return latency; }
+
+        void record(long nanos, boolean failed) {
+            calls.incrementAndGet();
+            if( failed ) {
+                errors.incrementAndGet();
+            }
+            latency.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void reset() {
+            calls.set(0L);
+            errors.set(0L);
+            latency.reset();
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls.get() + ",errors=" + errors.get() + ",p50=" + toMillis(latency.getValueAtPercentile(50.0)) + "ms,p99=" + toMillis(latency.getValueAtPercentile(99.0)) + "ms,max=" + toMillis(latency.getMax()) + "ms";
+        }
+    }
+
+    static private String toMillis(long micros) {
+        return String.valueOf(((double)Math.round(micros / 100.0)) / 10.0);
+    }
+
+    /**
+     * Names the Dasein operation on whose behalf the current thread is working, being the first method in
+     * this provider outside the pooling and metrics infrastructure, such as <code>VmSupport.launch</code>.
+     * This is only done when a context is borrowed or a wait begins, both of which cost far more than the
+     * stack walk.
+     * @return the simple class and method name of the operation
+     */
+    static @Nonnull String findOperation() {
+        for( StackTraceElement frame : new Throwable().getStackTrace() ) {
+            String cls = frame.getClassName();
+
+            if( !cls.startsWith(PACKAGE) ) {
+                continue;
+            }
+            cls = cls.substring(PACKAGE.length());
+            int idx = cls.indexOf('$');
+
+            if( idx > -1 ) {
+                cls = cls.substring(0, idx);
+            }
+            if( cls.equals("Metrics") || cls.equals("RestContextPool") || cls.equals("VCloudDirector") ) {
+                continue;
+            }
+            idx = cls.lastIndexOf('.');
+            return (idx > -1 ? cls.substring(idx + 1) : cls) + "." + frame.getMethodName();
+        }
+        return "other";
+    }
+
+    static private @Nonnull String toResource(@Nonnull String getter) {
+        String name = getter.substring("get".length(), getter.length() - "Client".length());
+
+        if( name.length() < 1 ) {
+            return "api";
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private final String                                 name;
+    private final ConcurrentHashMap<String,Statistics>   operations = new ConcurrentHashMap<String,Statistics>();
+    private final ConcurrentHashMap<String,Statistics>   resources  = new ConcurrentHashMap<String,Statistics>();
+    private final Statistics                             contexts   = new Statistics();
+    private final AtomicLong                             pollWait   = new AtomicLong(0L);
+    private final AtomicLong                             tasks      = new AtomicLong(0L);
+    private final LatencyHistogram                       taskDurations = new LatencyHistogram();
+    private final CopyOnWriteArrayList<Reporter>         reporters  = new CopyOnWriteArrayList<Reporter>();
+
+    private String             reporterClass;
+    private long               reportInterval = TimeUnit.MINUTES.toMillis(1);
+    private ScheduledFuture<?> reporting;
+    private ObjectName         registered;
+
+    Metrics(@Nonnull String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the endpoint, user and account these metrics are for
+     */
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    /**
+     * Registers these metrics as an MBean. Only the instance that is actually kept for a pool should be registered.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String prefix = PACKAGE.substring(0, PACKAGE.length() - 1) + ":type=Metrics,name=" + ObjectName.quote(name);
+            ObjectName objectName = new ObjectName(prefix);
+
+            // pools for the same account with different secrets, such as before and after a password change, get numbered instances
+            for( int i=2; server.isRegistered(objectName); i++ ) {
+                objectName = new ObjectName(prefix + ",instance=" + i);
+            }
+            server.registerMBean(this, objectName);
+            synchronized( this ) {
+                registered = objectName;
+            }
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register vCloud metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops reporting and removes the MBean, for a pool that is being closed.
+     */
+    synchronized void unregister() {
+        if( reporting != null ) {
+            reporting.cancel(false);
+            reporting = null;
+        }
+        reporters.clear();
+        if( registered != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to unregister vCloud metrics from JMX: " + e.getMessage());
+            }
+            registered = null;
+        }
+    }
+
+    /**
+     * Applies the reporting properties of a provider context. A reporter named by class is only
+     * created the first time the name is seen.
+     * @param reporter the class of the reporter to add, <code>log</code> for {@link LogReporter}, or <code>null</code> for none
+     * @param interval the reporting interval in milliseconds, or a non-positive value to keep the current one
+     */
+    public synchronized void configure(@Nullable String reporter, long interval) {
+        if( interval > 0L && interval != reportInterval ) {
+            reportInterval = interval;
+            if( reporting != null ) {
+                reporting.cancel(false);
+                reporting = null;
+                schedule();
+            }
+        }
+        if( reporter == null || reporter.equals(reporterClass) ) {
+            return;
+        }
+        reporterClass = reporter;
+        if( reporter.equalsIgnoreCase("log") ) {
+            addReporter(new LogReporter());
+            return;
+        }
+        try {
+            addReporter((Reporter)Class.forName(reporter).newInstance());
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to create vCloud metrics reporter " + reporter + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void addReporter(@Nonnull Reporter reporter) {
+        reporters.add(reporter);
+        schedule();
+    }
+
+    public synchronized void removeReporter(@Nonnull Reporter reporter) {
+        reporters.remove(reporter);
+        if( reporters.isEmpty() && reporting != null ) {
+            reporting.cancel(false);
+            reporting = null;
+        }
+    }
+
+    private void schedule() {
+        if( reporting != null ) {
+            return;
+        }
+        reporting = VCloudDirector.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for( Reporter reporter : reporters ) {
+                    try {
+                        reporter.report(Metrics.this);
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Error reporting vCloud metrics: " + t.getMessage());
+                    }
+                }
+            }
+        }, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private @Nonnull Statistics getStatistics(@Nonnull ConcurrentHashMap<String,Statistics> map, @Nonnull String name) {
+        Statistics stats = map.get(name);
+
+        if( stats == null ) {
+            Statistics s = new Statistics();
+
+            stats = map.putIfAbsent(name, s);
+            if( stats == null ) {
+                stats = s;
+            }
+        }
+        return stats;
+    }
+
+    void recordCall(@Nonnull String operation, @Nonnull String resource, long nanos, boolean failed) {
+        getStatistics(operations, operation).record(nanos, failed);
+        getStatistics(resources, resource).record(nanos, failed);
+    }
+
+    void recordContextCreated(long nanos, boolean failed) {
+        contexts.record(nanos, failed);
+    }
+
+    /**
+     * Records time a caller spent blocked waiting on vCloud tasks or sleeping in a poll loop.
+     * @param millis the time spent waiting
+     */
+    public void recordPollWait(long millis) {
+        pollWait.addAndGet(millis);
+    }
+
+    void recordTask(long millis) {
+        tasks.incrementAndGet();
+        taskDurations.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public @Nonnull Map<String,Statistics> getOperationStatistics() {
+        return new TreeMap<String,Statistics>(operations);
+    }
+
+    public @Nonnull Map<String,Statistics> getResourceStatistics() {
+        return new TreeMap<String,Statistics>(resources);
+    }
+
+    /**
+     * @return the number of contexts created and how long each took to create and log in
+     */
+    public @Nonnull Statistics getContextStatistics() {
+        return contexts;
+    }
+
+    /**
+     * @return how long tracked tasks took from submission to completion
+     */
+    public @Nonnull LatencyHistogram getTaskDurations() {
+        return taskDurations;
+    }
+
+    @Override
+    public long getCallCount() {
+        long count = 0L;
+
+        for( Statistics stats : resources.values() ) {
+            count += stats.getCalls();
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long count = 0L;
+
+        for( Statistics stats : resources.values() ) {
+            count += stats.getErrors();
+        }
+        return count;
+    }
+
+    @Override
+    public long getContextsCreated() {
+        return contexts.getCalls();
+    }
+
+    @Override
+    public long getPollWaitMillis() {
+        return pollWait.get();
+    }
+
+    @Override
+    public long getTasksTracked() {
+        return tasks.get();
+    }
+
+    @Override
+    public String[] getOperationSummaries() {
+        return summarize(operations);
+    }
+
+    @Override
+    public String[] getResourceSummaries() {
+        return summarize(resources);
+    }
+
+    private @Nonnull String[] summarize(@Nonnull ConcurrentHashMap<String,Statistics> map) {
+        ArrayList<String> list = new ArrayList<String>();
+
+        for( Map.Entry<String,Statistics> entry : new TreeMap<String,Statistics>(map).entrySet() ) {
+            list.add(entry.getKey() + " " + entry.getValue());
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    @Override
+    public void reset() {
+        operations.clear();
+        resources.clear();
+        contexts.reset();
+        pollWait.set(0L);
+        tasks.set(0L);
+        taskDurations.reset();
+    }
+
+    /**
+     * Wraps a jclouds client so that every call made through it, or through the sub-clients it hands out,
+     * is counted and timed. Calls returning futures are timed until the future completes.
+     * @param client the client to instrument
+     * @param type the client interface
+     * @param operation the Dasein operation making the calls
+     * @param observer told whether each call succeeded
+     * @return the instrumented client
+     */
+    @SuppressWarnings("unchecked")
+    <T> T instrument(@Nonnull T client, @Nonnull Class<T> type, @Nonnull String operation, @Nonnull CallObserver observer) {
+        return (T)wrap(client, type, operation, null, observer);
+    }
+
+    private @Nonnull Object wrap(@Nonnull final Object target, @Nonnull Class<?> type, @Nonnull final String operation, @Nullable final String resource, @Nonnull final CallObserver observer) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+
+                if( method.getDeclaringClass().equals(Object.class) ) {
+                    return invokeTarget(method, args);
+                }
+                if( (args == null || args.length == 0) && name.startsWith("get") && name.endsWith("Client") && method.getReturnType().isInterface() ) {
+                    Object client = invokeTarget(method, args);
+
+                    return (client == null ? null : wrap(client, method.getReturnType(), operation, toResource(name), observer));
+                }
+                if( resource == null ) {
+                    return invokeTarget(method, args);
+                }
+                final long start = System.nanoTime();
+                Object result;
+
+                try {
+                    result = invokeTarget(method, args);
+                }
+                catch( Throwable t ) {
+                    recordCall(operation, resource, System.nanoTime() - start, true);
+                    observer.failed(t);
+                    throw t;
+                }
+                if( result instanceof ListenableFuture ) {
+                    Futures.addCallback((ListenableFuture<Object>)result, new FutureCallback<Object>() {
+                        @Override
+                        public void onSuccess(Object value) {
+                            recordCall(operation, resource, System.nanoTime() - start, false);
+                            observer.succeeded();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            recordCall(operation, resource, System.nanoTime() - start, true);
+                            observer.failed(t);
+                        }
+                    });
+                }
+                else {
+                    recordCall(operation, resource, System.nanoTime() - start, false);
+                    observer.succeeded();
+                }
+                return result;
+            }
+
+            private Object invokeTarget(Method method, Object[] args) throws Throwable {
+                try {
+                    return method.invoke(target, args);
+                }
+                catch( InvocationTargetException e ) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+}
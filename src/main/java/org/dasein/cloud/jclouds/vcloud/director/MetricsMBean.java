@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+/**
+ * The JMX view of {@link Metrics}. Latencies in the summaries are in milliseconds.
+ */
+public interface MetricsMBean {
+    public long getCallCount();
+
+    public long getErrorCount();
+
+    public long getContextsCreated();
+
+    public long getPollWaitMillis();
+
+    public long getTasksTracked();
+
+    public String[] getOperationSummaries();
+
+    public String[] getResourceSummaries();
+
+    public void reset();
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Runs long-lived operations such as image capture and power changes for every {@link VCloudDirector} instance
+ * connected with the same endpoint and credentials. Each type of operation has its own concurrency cap so that,
+ * for example, a burst of captures cannot starve reboots, and all types share one queue limit beyond which
+ * submissions are rejected rather than piling up threads.
+ */
+public class OperationExecutor {
+    static private final Logger logger = Logger.getLogger(OperationExecutor.class);
+
+    static public final String QUEUE_LIMIT = "vcloud.operations.queueLimit";
+    static public final String CONCURRENCY = "vcloud.operations.concurrency";
+
+    static public final String IMAGE     = "image";
+    static public final String LAUNCH    = "launch";
+    static public final String BOOT      = "boot";
+    static public final String PAUSE     = "pause";
+    static public final String REBOOT    = "reboot";
+    static public final String TERMINATE = "terminate";
+
+    static public class Statistics {
+        private long submitted;
+        private long completed;
+        private long failed;
+        private long rejected;
+        private int  queued;
+        private int  running;
+
+        public long getSubmitted() { return submitted; }
+
+        public long getCompleted() { return completed; }
+
+        public long getFailed() { return failed; }
+
+        public long getRejected() { return rejected; }
+
+        public int getQueued() { return queued; }
+
+        public int getRunning() { return running; }
+
+        @Override
+        public String toString() {
+            return "[submitted=" + submitted + ",completed=" + completed + ",failed=" + failed + ",rejected=" + rejected + ",queued=" + queued + ",running=" + running + "]";
+        }
+    }
+
+    static private final ConcurrentHashMap<String,OperationExecutor> executors = new ConcurrentHashMap<String,OperationExecutor>();
+
+    static public @Nonnull OperationExecutor getInstance(@Nonnull String key) {
+        OperationExecutor executor = executors.get(key);
+
+        if( executor == null ) {
+            OperationExecutor e = new OperationExecutor(key);
+
+            executor = executors.putIfAbsent(key, e);
+            if( executor == null ) {
+                executor = e;
+            }
+        }
+        return executor;
+    }
+
+    static private class Lane {
+        private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+        private int  concurrency = 4;
+        private int  running;
+        private long submitted;
+        private long completed;
+        private long failed;
+        private long rejected;
+    }
+
+    private final String            key;
+    private final ExecutorService   threads;
+    private final Map<String,Lane>  lanes = new TreeMap<String,Lane>();
+    private int                     queued;
+    private volatile int            queueLimit = 100;
+
+    private OperationExecutor(@Nonnull String key) {
+        final AtomicInteger count = new AtomicInteger(0);
+
+        this.key = key;
+        // the pool itself is unbounded; the lanes cap how many operations of each type may run at once
+        this.threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("vCloud Director Operation " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void configure(int queueLimit) {
+        if( queueLimit > 0 ) {
+            this.queueLimit = queueLimit;
+        }
+    }
+
+    public @Nonnull String getKey() {
+        return key;
+    }
+
+    /**
+     * Queues an operation of the specified type. The operation starts as soon as fewer than <code>concurrency</code>
+     * operations of the same type are running.
+     * @param type the type of operation, which selects the concurrency cap that applies
+     * @param concurrency the maximum number of operations of this type that may run at once
+     * @param operation the work to do
+     * @return a future completing with the result of the operation
+     * @throws CloudException the queue is full and the operation was rejected
+     */
+    public @Nonnull <T> ListenableFuture<T> submit(@Nonnull String type, int concurrency, @Nonnull Callable<T> operation) throws CloudException {
+        final ListenableFutureTask<T> task = ListenableFutureTask.create(operation);
+        final Lane lane;
+
+        synchronized( lanes ) {
+            Lane l = lanes.get(type);
+
+            if( l == null ) {
+                l = new Lane();
+                lanes.put(type, l);
+            }
+            lane = l;
+            if( concurrency > 0 ) {
+                lane.concurrency = concurrency;
+            }
+            if( queued >= queueLimit ) {
+                lane.rejected++;
+                logger.warn("Rejecting " + type + " operation: " + queued + " operations are already queued");
+                throw new CloudException("Too many operations are queued for this account; try again later");
+            }
+            lane.submitted++;
+            lane.pending.add(task);
+            queued++;
+        }
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized( lanes ) {
+                    if( lane.pending.remove(task) ) {
+                        // cancelled before it ever started
+                        queued--;
+                    }
+                    else {
+                        lane.running--;
+                    }
+                    try {
+                        task.get();
+                        lane.completed++;
+                    }
+                    catch( Throwable t ) {
+                        lane.failed++;
+                    }
+                }
+                dispatch(lane);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        dispatch(lane);
+        return task;
+    }
+
+    private void dispatch(@Nonnull Lane lane) {
+        while( true ) {
+            Runnable next;
+
+            synchronized( lanes ) {
+                if( lane.running >= lane.concurrency || lane.pending.isEmpty() ) {
+                    return;
+                }
+                next = lane.pending.removeFirst();
+                queued--;
+                lane.running++;
+            }
+            threads.execute(next);
+        }
+    }
+
+    public @Nonnull Statistics getStatistics(@Nonnull String type) {
+        Statistics stats = new Statistics();
+
+        synchronized( lanes ) {
+            Lane lane = lanes.get(type);
+
+            if( lane != null ) {
+                add(stats, lane);
+            }
+        }
+        return stats;
+    }
+
+    public @Nonnull Statistics getStatistics() {
+        Statistics stats = new Statistics();
+
+        synchronized( lanes ) {
+            for( Lane lane : lanes.values() ) {
+                add(stats, lane);
+            }
+        }
+        return stats;
+    }
+
+    private void add(@Nonnull Statistics stats, @Nonnull Lane lane) {
+        stats.submitted += lane.submitted;
+        stats.completed += lane.completed;
+        stats.failed += lane.failed;
+        stats.rejected += lane.rejected;
+        stats.queued += lane.pending.size();
+        stats.running += lane.running;
+    }
+}
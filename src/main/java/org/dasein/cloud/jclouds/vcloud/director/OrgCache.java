@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Reference;
+import org.jclouds.vcloud.director.v1_5.domain.org.AdminOrg;
+
+/**
+ * Caches org metadata by href and by name for every {@link VCloudDirector} instance connected with the same
+ * endpoint and credentials. Orgs that are in use are refreshed in the background before their TTL runs out,
+ * so resolving an org on a hot path does not cost a REST call; orgs nobody asked for during a few refresh
+ * intervals are dropped.
+ */
+public class OrgCache {
+    static private final Logger logger = Logger.getLogger(OrgCache.class);
+
+    static public final String TTL = "vcloud.orgCache.ttlMillis";
+
+    static private final ConcurrentHashMap<String,OrgCache> caches = new ConcurrentHashMap<String,OrgCache>();
+
+    static public @Nonnull OrgCache getInstance(@Nonnull RestContextPool pool) {
+        OrgCache cache = caches.get(pool.getKey());
+
+        if( cache == null ) {
+            OrgCache c = new OrgCache(pool);
+
+            cache = caches.putIfAbsent(pool.getKey(), c);
+            if( cache == null ) {
+                cache = c;
+                cache.schedule();
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Drops the cache of a pool that is being closed and stops refreshing it.
+     * @param pool the closed pool
+     */
+    static void remove(@Nonnull RestContextPool pool) {
+        OrgCache cache = caches.remove(pool.getKey());
+
+        if( cache != null ) {
+            cache.stop();
+        }
+    }
+
+    static private class Entry {
+        private final AdminOrg org;
+        private final long     loaded;
+        private volatile long  accessed;
+
+        Entry(@Nonnull AdminOrg org) {
+            this.org = org;
+            this.loaded = System.currentTimeMillis();
+            this.accessed = loaded;
+        }
+    }
+
+    private final RestContextPool pool;
+    private final ConcurrentHashMap<URI,Entry> byHref = new ConcurrentHashMap<URI,Entry>();
+    private volatile Map<String,URI> byName = new HashMap<String,URI>();
+    private volatile long namesLoaded = 0L;
+
+    private volatile long ttl = TimeUnit.MINUTES.toMillis(5);
+
+    private ScheduledFuture<?> refreshing;
+
+    private OrgCache(@Nonnull RestContextPool pool) {
+        this.pool = pool;
+    }
+
+    public void configure(long ttl) {
+        if( ttl > 0L ) {
+            this.ttl = ttl;
+        }
+    }
+
+    public @Nonnull AdminOrg getOrg(@Nonnull URI href) throws CloudException {
+        Entry entry = byHref.get(href);
+
+        if( entry != null && (System.currentTimeMillis() - entry.loaded) < ttl ) {
+            entry.accessed = System.currentTimeMillis();
+            return entry.org;
+        }
+        return load(href).org;
+    }
+
+    public @Nonnull AdminOrg getOrg(@Nonnull String name) throws CloudException {
+        URI href = null;
+
+        if( (System.currentTimeMillis() - namesLoaded) < ttl ) {
+            href = byName.get(name);
+        }
+        if( href == null ) {
+            href = loadNames().get(name);
+            if( href == null ) {
+                throw new CloudException("No such org: " + name);
+            }
+        }
+        return getOrg(href);
+    }
+
+    /**
+     * Drops everything known about the org at the specified href so that the next request reloads it.
+     * @param href the org to forget
+     */
+    public void invalidate(@Nonnull URI href) {
+        byHref.remove(href);
+    }
+
+    public void invalidate() {
+        byHref.clear();
+        namesLoaded = 0L;
+    }
+
+    private @Nonnull Entry load(@Nonnull URI href) throws CloudException {
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = pool.borrow();
+
+        try {
+            AdminOrg org;
+
+            try {
+                org = ctx.getApi().getOrgClient().getOrg(href);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error loading org " + href + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+            if( org == null ) {
+                byHref.remove(href);
+                throw new CloudException("No such org: " + href);
+            }
+            Entry entry = new Entry(org);
+
+            byHref.put(href, entry);
+            return entry;
+        }
+        finally {
+            ctx.close();
+        }
+    }
+
+    private @Nonnull Map<String,URI> loadNames() throws CloudException {
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = pool.borrow();
+
+        try {
+            HashMap<String,URI> names = new HashMap<String,URI>();
+
+            try {
+                for( Reference ref : ctx.getApi().getOrgClient().getOrgList().getOrgs() ) {
+                    names.put(ref.getName(), ref.getHref());
+                }
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error listing orgs: " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+            byName = names;
+            namesLoaded = System.currentTimeMillis();
+            return names;
+        }
+        finally {
+            ctx.close();
+        }
+    }
+
+    private synchronized void schedule() {
+        long interval = TimeUnit.SECONDS.toMillis(30);
+
+        refreshing = VCloudDirector.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                }
+                catch( Throwable t ) {
+                    logger.warn("Error refreshing vCloud org cache: " + t.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stop() {
+        if( refreshing != null ) {
+            refreshing.cancel(false);
+            refreshing = null;
+        }
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+
+        for( Map.Entry<URI,Entry> e : byHref.entrySet() ) {
+            Entry entry = e.getValue();
+
+            if( (now - entry.accessed) >= (ttl * 3) ) {
+                byHref.remove(e.getKey(), entry);
+            }
+            else if( (now - entry.loaded) >= (ttl / 2) ) {
+                try {
+                    Entry fresh = load(e.getKey());
+
+                    fresh.accessed = entry.accessed;
+                }
+                catch( CloudException ex ) {
+                    // keep serving the old copy until it expires; the next request will retry
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Unable to refresh org " + e.getKey() + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
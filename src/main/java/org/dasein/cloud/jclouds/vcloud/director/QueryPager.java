@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.query.QueryResultRecordType;
+import org.jclouds.vcloud.director.v1_5.domain.query.QueryResultRecords;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Lists inventory through the vCloud Director query service, which returns flattened, paged records for a
+ * whole org instead of one entity per request. The first page is read to learn the total, after which the
+ * remaining pages are fetched in parallel through {@link FetchPipeline}. Query-backed listing is enabled by
+ * setting <code>vcloud.listing.mode</code> to <code>query</code>; the page size is
+ * <code>vcloud.query.pageSize</code> (default 128, the largest page vCloud Director 1.5 serves by default).
+ */
+public class QueryPager {
+    static public final String LISTING_MODE = "vcloud.listing.mode";
+    static public final String PAGE_SIZE    = "vcloud.query.pageSize";
+
+    static public final String VM            = "vm";
+    static public final String VAPP_TEMPLATE = "vAppTemplate";
+    static public final String ORG_NETWORK   = "orgNetwork";
+
+    static private final String FORMAT = "records";
+
+    /**
+     * @param provider the provider whose properties select the listing mode
+     * @return true if listings should use the query service rather than walking the entity graph
+     */
+    static public boolean isEnabled(@Nonnull VCloudDirector provider) {
+        return "query".equalsIgnoreCase(provider.getProperty(LISTING_MODE, "entity"));
+    }
+
+    /**
+     * Reads every page of a typed query.
+     * @param provider the provider whose page size and request limit apply
+     * @param ctx the context through which to query
+     * @param type the query type, such as {@link #VM}
+     * @param filter a query filter, or <code>null</code> for none
+     * @param recordType the class of the records to return; any other records are ignored
+     * @return the matching records in page order
+     * @throws CloudException any of the pages could not be read
+     */
+    static public @Nonnull <R extends QueryResultRecordType> List<R> queryAll(@Nonnull VCloudDirector provider, @Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final String type, @Nullable final String filter, @Nonnull Class<R> recordType) throws CloudException {
+        final int pageSize = (int)Math.max(1L, provider.getLongProperty(PAGE_SIZE, 128L));
+        ArrayList<R> list = new ArrayList<R>();
+        QueryResultRecords page = ctx.getApi().getQueryClient().query(1, pageSize, FORMAT, type, filter);
+        int count = collect(page, recordType, list);
+        Long total = page.getTotal();
+
+        if( total == null ) {
+            // no total to plan from, so walk the pages one at a time until a short page comes back
+            for( int p=2; count >= pageSize; p++ ) {
+                count = collect(ctx.getApi().getQueryClient().query(p, pageSize, FORMAT, type, filter), recordType, list);
+            }
+            return list;
+        }
+        int pages = (int)((total + pageSize - 1) / pageSize);
+        ArrayList<Integer> remaining = new ArrayList<Integer>();
+
+        for( int p=2; p<=pages; p++ ) {
+            remaining.add(p);
+        }
+        List<QueryResultRecords> results = FetchPipeline.fetchAll(provider, remaining, new FetchPipeline.Fetcher<Integer,QueryResultRecords>() {
+            @Override
+            public @Nonnull ListenableFuture<? extends QueryResultRecords> fetch(@Nonnull Integer p) {
+                return ctx.getAsyncApi().getQueryClient().query(p, pageSize, FORMAT, type, filter);
+            }
+        });
+
+        for( QueryResultRecords r : results ) {
+            collect(r, recordType, list);
+        }
+        return list;
+    }
+
+    /**
+     * Reads every page of a typed query without blocking the caller, planning the pages as {@link #queryAll} does.
+     * @param provider the provider whose page size and request limit apply
+     * @param ctx the context through which to query
+     * @param type the query type, such as {@link #VM}
+     * @param filter a query filter, or <code>null</code> for none
+     * @param recordType the class of the records to return; any other records are ignored
+     * @return a future completing with the matching records in page order
+     */
+    static public @Nonnull <R extends QueryResultRecordType> ListenableFuture<List<R>> queryAllAsync(@Nonnull final VCloudDirector provider, @Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final String type, @Nullable final String filter, @Nonnull final Class<R> recordType) {
+        final int pageSize = (int)Math.max(1L, provider.getLongProperty(PAGE_SIZE, 128L));
+
+        return Futures.transform(ctx.getAsyncApi().getQueryClient().query(1, pageSize, FORMAT, type, filter), new AsyncFunction<QueryResultRecords,List<R>>() {
+            @Override
+            public ListenableFuture<List<R>> apply(QueryResultRecords page) {
+                final ArrayList<R> list = new ArrayList<R>();
+                int count = collect(page, recordType, list);
+                Long total = page.getTotal();
+
+                if( total == null ) {
+                    return walkAsync(ctx, type, filter, recordType, pageSize, 2, count, list);
+                }
+                int pages = (int)((total + pageSize - 1) / pageSize);
+                ArrayList<Integer> remaining = new ArrayList<Integer>();
+
+                for( int p=2; p<=pages; p++ ) {
+                    remaining.add(p);
+                }
+                ListenableFuture<List<QueryResultRecords>> results = FetchPipeline.fetchAllAsync(provider, remaining, new FetchPipeline.Fetcher<Integer,QueryResultRecords>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends QueryResultRecords> fetch(@Nonnull Integer p) {
+                        return ctx.getAsyncApi().getQueryClient().query(p, pageSize, FORMAT, type, filter);
+                    }
+                });
+
+                return Futures.transform(results, new Function<List<QueryResultRecords>,List<R>>() {
+                    @Override
+                    public List<R> apply(List<QueryResultRecords> results) {
+                        for( QueryResultRecords r : results ) {
+                            collect(r, recordType, list);
+                        }
+                        return list;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Requests one page after another until a short page comes back, for queries that report no total.
+     */
+    static private @Nonnull <R extends QueryResultRecordType> ListenableFuture<List<R>> walkAsync(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final String type, @Nullable final String filter, @Nonnull final Class<R> recordType, final int pageSize, final int p, int count, @Nonnull final List<R> list) {
+        if( count < pageSize ) {
+            return Futures.immediateFuture(list);
+        }
+        return Futures.transform(ctx.getAsyncApi().getQueryClient().query(p, pageSize, FORMAT, type, filter), new AsyncFunction<QueryResultRecords,List<R>>() {
+            @Override
+            public ListenableFuture<List<R>> apply(QueryResultRecords page) {
+                return walkAsync(ctx, type, filter, recordType, pageSize, p + 1, collect(page, recordType, list), list);
+            }
+        });
+    }
+
+    static private <R extends QueryResultRecordType> int collect(@Nullable QueryResultRecords page, @Nonnull Class<R> recordType, @Nonnull List<R> list) {
+        if( page == null || page.getRecords() == null ) {
+            return 0;
+        }
+        int count = 0;
+
+        for( QueryResultRecordType record : page.getRecords() ) {
+            count++;
+            if( recordType.isInstance(record) ) {
+                list.add(recordType.cast(record));
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,523 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+
+/**
+ * Keeps authenticated jclouds contexts alive between calls so that each operation borrows an existing
+ * session instead of bootstrapping a new injector and logging in again. Pools are shared by every
+ * {@link VCloudDirector} instance connected with the same endpoint, user, account and secret.
+ * Closing a borrowed context returns it to the pool; the underlying jclouds context is only closed
+ * when it is evicted.
+ */
+public class RestContextPool {
+    static private final Logger logger = Logger.getLogger(RestContextPool.class);
+
+    static public final String MAX_IDLE         = "vcloud.pool.maxIdle";
+    static public final String IDLE_TIMEOUT     = "vcloud.pool.idleTimeoutMillis";
+    static public final String KEEP_ALIVE       = "vcloud.pool.keepAliveMillis";
+    static public final String SESSION_TIMEOUT  = "vcloud.pool.sessionTimeoutMillis";
+
+    static public interface ContextFactory {
+        public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> createContext() throws CloudException;
+    }
+
+    static public class Statistics {
+        private long created;
+        private long reused;
+        private long relogins;
+        private long evicted;
+        private long keepAlives;
+        private int  idle;
+        private int  leased;
+
+        public long getCreated() { return created; }
+
+        public long getReused() { return reused; }
+
+        public long getRelogins() { return relogins; }
+
+        public long getEvicted() { return evicted; }
+
+        public long getKeepAlives() { return keepAlives; }
+
+        public int getIdle() { return idle; }
+
+        public int getLeased() { return leased; }
+
+        @Override
+        public String toString() {
+            return "[created=" + created + ",reused=" + reused + ",relogins=" + relogins + ",evicted=" + evicted + ",keepAlives=" + keepAlives + ",idle=" + idle + ",leased=" + leased + "]";
+        }
+    }
+
+    static private final ConcurrentHashMap<String,RestContextPool> pools = new ConcurrentHashMap<String,RestContextPool>();
+
+    /**
+     * @param key identifies the endpoint and credentials, including the secret
+     * @param name identifies the endpoint and account for logs and JMX, and must not be derived from the secret
+     * @param factory creates contexts for this pool if it does not exist yet
+     * @return the pool for the key
+     */
+    static public @Nonnull RestContextPool getInstance(@Nonnull String key, @Nonnull String name, @Nonnull ContextFactory factory) {
+        RestContextPool pool = pools.get(key);
+
+        if( pool == null ) {
+            RestContextPool p = new RestContextPool(key, name, factory);
+
+            pool = pools.putIfAbsent(key, p);
+            if( pool == null ) {
+                pool = p;
+                pool.metrics.register();
+                pool.schedule();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Takes a pool out of service, for a provider that switches to a different source of contexts. Its maintenance
+     * and metrics stop, its idle and shared contexts are closed at once and the ones still leased as they are
+     * given back. Tasks it was tracking fail.
+     * @param key the key under which the pool was created
+     */
+    static public void close(@Nonnull String key) {
+        RestContextPool pool = pools.remove(key);
+
+        if( pool != null ) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @param t a failed call
+     * @return true if vCloud Director rejected the call because the session is no longer valid
+     */
+    static boolean isUnauthorized(@Nonnull Throwable t) {
+        for( Throwable cause = t; cause != null; cause = cause.getCause() ) {
+            if( cause instanceof HttpResponseException ) {
+                HttpResponse response = ((HttpResponseException)cause).getResponse();
+
+                if( response != null && response.getStatusCode() == 401 ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private class PooledContext implements Metrics.CallObserver {
+        private final RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> context;
+        private volatile long    returned;
+        private volatile long    verified;
+        private volatile boolean expired;
+        private boolean          shared;  // guarded by sharedLock
+        private int              users;   // guarded by sharedLock
+
+        PooledContext(@Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> context) {
+            this.context = context;
+            this.returned = System.currentTimeMillis();
+            this.verified = returned;
+        }
+
+        /**
+         * @return true if the session can no longer be trusted, either because a call was rejected with a 401 or
+         * because no call has succeeded for longer than the session timeout
+         */
+        boolean isExpired() {
+            return (expired || (System.currentTimeMillis() - verified) >= sessionTimeout);
+        }
+
+        @Override
+        public void succeeded() {
+            verified = System.currentTimeMillis();
+        }
+
+        @Override
+        public void failed(@Nonnull Throwable t) {
+            if( isUnauthorized(t) ) {
+                expired = true;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> lease() {
+            final AtomicBoolean released = new AtomicBoolean(false);
+            final String operation = Metrics.findOperation();
+
+            leased.incrementAndGet();
+            return (RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient>)Proxy.newProxyInstance(RestContext.class.getClassLoader(), new Class<?>[] { RestContext.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if( method.getName().equals("close") && (args == null || args.length == 0) ) {
+                        if( released.compareAndSet(false, true) ) {
+                            giveBack(PooledContext.this);
+                        }
+                        return null;
+                    }
+                    if( method.getName().equals("getApi") && (args == null || args.length == 0) ) {
+                        return metrics.instrument(context.getApi(), VCloudDirectorAdminClient.class, operation, PooledContext.this);
+                    }
+                    if( method.getName().equals("getAsyncApi") && (args == null || args.length == 0) ) {
+                        return metrics.instrument(context.getAsyncApi(), VCloudDirectorAdminAsyncClient.class, operation, PooledContext.this);
+                    }
+                    try {
+                        return method.invoke(context, args);
+                    }
+                    catch( InvocationTargetException e ) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        }
+
+        void destroy() {
+            try {
+                context.close();
+            }
+            catch( Throwable t ) {
+                logger.warn("Error closing pooled vCloud context: " + t.getMessage());
+            }
+        }
+    }
+
+    private final String         key;
+    private final ContextFactory factory;
+    private final LinkedBlockingDeque<PooledContext> idle = new LinkedBlockingDeque<PooledContext>();
+    private final AtomicInteger  leased     = new AtomicInteger(0);
+    private final AtomicLong     created    = new AtomicLong(0L);
+    private final AtomicLong     reused     = new AtomicLong(0L);
+    private final AtomicLong     relogins   = new AtomicLong(0L);
+    private final AtomicLong     evicted    = new AtomicLong(0L);
+    private final AtomicLong     keepAlives = new AtomicLong(0L);
+    private final Metrics        metrics;
+
+    private final Object         sharedLock = new Object();
+    private PooledContext        shared;  // guarded by sharedLock
+
+    private volatile TaskTracker taskTracker;
+    private ScheduledFuture<?>   maintenance;
+    private volatile boolean     closed;
+
+    private volatile int  maxIdle        = 8;
+    private volatile long idleTimeout    = TimeUnit.MINUTES.toMillis(15);
+    private volatile long keepAlive      = TimeUnit.MINUTES.toMillis(4);
+    private volatile long sessionTimeout = TimeUnit.MINUTES.toMillis(25);
+
+    private RestContextPool(@Nonnull String key, @Nonnull String name, @Nonnull ContextFactory factory) {
+        this.key = key;
+        this.factory = factory;
+        this.metrics = new Metrics(name);
+    }
+
+    public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> borrow() throws CloudException {
+        PooledContext pc;
+
+        if( closed ) {
+            throw new CloudException("The context pool for " + metrics.getName() + " has been closed");
+        }
+        while( (pc = idle.pollFirst()) != null ) {
+            if( !pc.isExpired() ) {
+                reused.incrementAndGet();
+                return pc.lease();
+            }
+            // the vCloud session has most likely expired, so log in again with a fresh context
+            relogins.incrementAndGet();
+            evicted.incrementAndGet();
+            pc.destroy();
+        }
+        return create().lease();
+    }
+
+    /**
+     * Leases the context shared by every asynchronous operation of this account. jclouds contexts are thread safe,
+     * so however many operations are in flight they use one session and one I/O pool. Closing the lease does not
+     * give the context up; when its session expires it is replaced, and closed once the last operation that was
+     * still using it has finished.
+     * @return a lease on the shared context
+     * @throws CloudException the shared context had to be created and could not be
+     */
+    public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> borrowShared() throws CloudException {
+        PooledContext pc;
+
+        if( closed ) {
+            throw new CloudException("The context pool for " + metrics.getName() + " has been closed");
+        }
+        synchronized( sharedLock ) {
+            pc = shared;
+            if( pc != null && !pc.isExpired() ) {
+                reused.incrementAndGet();
+                pc.users++;
+                return pc.lease();
+            }
+        }
+        // log in without holding the lock, so that giving back and maintenance never wait on a login
+        PooledContext created = create();
+        PooledContext unused = null;
+
+        synchronized( sharedLock ) {
+            pc = shared;
+            if( pc != null && !pc.isExpired() ) {
+                // another operation published a context while this one was logging in
+                reused.incrementAndGet();
+                unused = created;
+            }
+            else {
+                if( pc != null ) {
+                    relogins.incrementAndGet();
+                    shared = null;
+                    retire(pc);
+                }
+                pc = created;
+                pc.shared = true;
+                shared = pc;
+            }
+            pc.users++;
+        }
+        if( unused != null ) {
+            evicted.incrementAndGet();
+            unused.destroy();
+        }
+        return pc.lease();
+    }
+
+    private @Nonnull PooledContext create() throws CloudException {
+        long start = System.nanoTime();
+        PooledContext pc;
+
+        try {
+            pc = new PooledContext(factory.createContext());
+        }
+        catch( CloudException e ) {
+            metrics.recordContextCreated(System.nanoTime() - start, true);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            metrics.recordContextCreated(System.nanoTime() - start, true);
+            throw e;
+        }
+        created.incrementAndGet();
+        metrics.recordContextCreated(System.nanoTime() - start, false);
+        return pc;
+    }
+
+    /**
+     * Closes a shared context that has been replaced, as soon as nothing is using it any more.
+     */
+    private void retire(@Nonnull PooledContext pc) {
+        synchronized( sharedLock ) {
+            if( pc.users == 0 && shared != pc ) {
+                evicted.incrementAndGet();
+                pc.destroy();
+            }
+        }
+    }
+
+    private void giveBack(@Nonnull PooledContext pc) {
+        leased.decrementAndGet();
+        pc.returned = System.currentTimeMillis();
+        synchronized( sharedLock ) {
+            if( pc.shared ) {
+                pc.users--;
+                retire(pc);
+                return;
+            }
+        }
+        if( closed ) {
+            evicted.incrementAndGet();
+            pc.destroy();
+            return;
+        }
+        if( pc.expired ) {
+            // a call was rejected with a 401, so the next borrower logs in again rather than reusing this session
+            relogins.incrementAndGet();
+            evicted.incrementAndGet();
+            pc.destroy();
+            return;
+        }
+        if( idle.size() >= maxIdle ) {
+            evicted.incrementAndGet();
+            pc.destroy();
+            return;
+        }
+        idle.offerFirst(pc);
+    }
+
+    public void configure(int maxIdle, long idleTimeout, long keepAlive, long sessionTimeout) {
+        if( maxIdle >= 0 ) {
+            this.maxIdle = maxIdle;
+        }
+        if( idleTimeout > 0L ) {
+            this.idleTimeout = idleTimeout;
+        }
+        if( keepAlive > 0L ) {
+            this.keepAlive = keepAlive;
+        }
+        if( sessionTimeout > 0L ) {
+            this.sessionTimeout = sessionTimeout;
+        }
+    }
+
+    public @Nonnull TaskTracker getTaskTracker() {
+        if( taskTracker == null ) {
+            synchronized( this ) {
+                if( taskTracker == null ) {
+                    taskTracker = new TaskTracker(this);
+                }
+            }
+        }
+        return taskTracker;
+    }
+
+    public @Nonnull Metrics getMetrics() {
+        return metrics;
+    }
+
+    public @Nonnull String getKey() {
+        return key;
+    }
+
+    public @Nonnull Statistics getStatistics() {
+        Statistics stats = new Statistics();
+
+        stats.created = created.get();
+        stats.reused = reused.get();
+        stats.relogins = relogins.get();
+        stats.evicted = evicted.get();
+        stats.keepAlives = keepAlives.get();
+        stats.idle = idle.size();
+        stats.leased = leased.get();
+        return stats;
+    }
+
+    private void close() {
+        PooledContext pc;
+
+        closed = true;
+        synchronized( this ) {
+            if( maintenance != null ) {
+                maintenance.cancel(false);
+                maintenance = null;
+            }
+        }
+        metrics.unregister();
+        OrgCache.remove(this);
+        if( taskTracker != null ) {
+            taskTracker.close();
+        }
+        synchronized( sharedLock ) {
+            pc = shared;
+            if( pc != null ) {
+                shared = null;
+                retire(pc);
+            }
+        }
+        while( (pc = idle.pollFirst()) != null ) {
+            evicted.incrementAndGet();
+            pc.destroy();
+        }
+    }
+
+    private synchronized void schedule() {
+        long interval = Math.min(keepAlive, TimeUnit.MINUTES.toMillis(1));
+
+        maintenance = VCloudDirector.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintain();
+                }
+                catch( Throwable t ) {
+                    logger.warn("Error maintaining vCloud context pool: " + t.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks the idle contexts one at a time, so that the rest stay available to borrowers while a keep-alive
+     * call is in progress. A context is only taken out of the queue while its own keep-alive runs.
+     */
+    private void maintain() {
+        synchronized( sharedLock ) {
+            PooledContext pc = shared;
+
+            if( pc != null && pc.users == 0 && ((System.currentTimeMillis() - pc.returned) >= idleTimeout || pc.isExpired()) ) {
+                shared = null;
+                retire(pc);
+            }
+        }
+        for( PooledContext pc : new ArrayList<PooledContext>(idle) ) {
+            long now = System.currentTimeMillis();
+
+            if( (now - pc.returned) >= idleTimeout || pc.isExpired() ) {
+                if( idle.remove(pc) ) {
+                    evicted.incrementAndGet();
+                    pc.destroy();
+                }
+                continue;
+            }
+            if( (now - pc.verified) < keepAlive || !idle.remove(pc) ) {
+                // still fresh, or borrowed in the meantime
+                continue;
+            }
+            try {
+                pc.context.getApi().getOrgClient().getOrgList();
+                pc.verified = System.currentTimeMillis();
+                keepAlives.incrementAndGet();
+            }
+            catch( RuntimeException e ) {
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Dropping pooled vCloud context after failed keep-alive: " + e.getMessage());
+                }
+                evicted.incrementAndGet();
+                pc.destroy();
+                continue;
+            }
+            if( closed || idle.size() >= maxIdle ) {
+                evicted.incrementAndGet();
+                pc.destroy();
+                continue;
+            }
+            idle.offerLast(pc);
+        }
+    }
+}
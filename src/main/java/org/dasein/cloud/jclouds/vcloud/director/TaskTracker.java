@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Task;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tracks outstanding vCloud tasks for one context pool with a single shared poller. Each task is
+ * polled more frequently while it is young and less frequently as it ages, and its future completes
+ * as soon as the poller sees it reach a terminal state. A task still running after
+ * <code>vcloud.tasks.timeoutMillis</code> (default three hours) fails its future instead. Polls run on a
+ * dedicated thread and issue their requests through the async client under the endpoint's request limit,
+ * so neither a slow vCloud Director nor a login ever holds up the housekeeping scheduler.
+ */
+public class TaskTracker {
+    static private final Logger logger = Logger.getLogger(TaskTracker.class);
+
+    static public final String TIMEOUT = "vcloud.tasks.timeoutMillis";
+
+    static private ScheduledExecutorService poller;
+
+    static private synchronized @Nonnull ScheduledExecutorService getPoller() {
+        if( poller == null ) {
+            poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("vCloud Director Task Poller");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return poller;
+    }
+
+    static public boolean isBusy(Task task) {
+        return (task != null && task.getStatus() != null && (task.getStatus().equals(Task.Status.QUEUED) || task.getStatus().equals(Task.Status.RUNNING)));
+    }
+
+    static long getPollInterval(long age) {
+        if( age < 10000L ) {
+            return 1000L;
+        }
+        else if( age < 60000L ) {
+            return 2500L;
+        }
+        else if( age < 300000L ) {
+            return 5000L;
+        }
+        return 10000L;
+    }
+
+    private class TrackedTask {
+        private final URI                 href;
+        private final SettableFuture<Task> future = SettableFuture.create();
+        private final long                submitted = System.currentTimeMillis();
+        private volatile long             nextPoll;  // Long.MAX_VALUE while a lookup is in flight
+
+        TrackedTask(@Nonnull URI href) {
+            this.href = href;
+            this.nextPoll = submitted + getPollInterval(0L);
+        }
+    }
+
+    private final RestContextPool                      pool;
+    private final ConcurrentHashMap<URI,TrackedTask>   outstanding = new ConcurrentHashMap<URI,TrackedTask>();
+    private ScheduledFuture<?>                         pending;
+    private long                                       pendingAt = Long.MAX_VALUE;
+    private volatile String                            endpoint;
+    private volatile int                               maxRequests = 8;
+    private volatile long                              timeout = TimeUnit.HOURS.toMillis(3);
+
+    TaskTracker(@Nonnull RestContextPool pool) {
+        this.pool = pool;
+        this.endpoint = pool.getKey();
+    }
+
+    /**
+     * @param endpoint the endpoint of the account, whose request limit the polls share with other fetches
+     * @param maxRequests the current value of <code>vcloud.maxConcurrentRequests</code>
+     * @param timeout how long a task is tracked before its future fails, or a non-positive value to keep the current timeout
+     */
+    public void configure(@Nonnull String endpoint, int maxRequests, long timeout) {
+        this.endpoint = endpoint;
+        this.maxRequests = Math.max(1, maxRequests);
+        if( timeout > 0L ) {
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * @return how long a task is tracked before its future fails
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param task the task to track
+     * @return a future that completes with the final state of the task once it is no longer queued or running,
+     * or with <code>null</code> if the task disappears while being tracked
+     */
+    public @Nonnull ListenableFuture<Task> track(@Nonnull Task task) {
+        if( !isBusy(task) || task.getHref() == null ) {
+            return Futures.immediateFuture(task);
+        }
+        TrackedTask tracked = outstanding.get(task.getHref());
+
+        if( tracked == null ) {
+            TrackedTask t = new TrackedTask(task.getHref());
+
+            tracked = outstanding.putIfAbsent(task.getHref(), t);
+            if( tracked == null ) {
+                tracked = t;
+                scheduleAt(t.nextPoll);
+            }
+        }
+        return tracked.future;
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Fails every outstanding task, for a pool that is being closed and so can no longer poll them.
+     */
+    void close() {
+        synchronized( this ) {
+            if( pending != null ) {
+                pending.cancel(false);
+                pending = null;
+                pendingAt = Long.MAX_VALUE;
+            }
+        }
+        for( TrackedTask t : outstanding.values() ) {
+            outstanding.remove(t.href, t);
+            t.future.setException(new CloudException("Stopped tracking task " + t.href + " because its context pool was closed"));
+        }
+    }
+
+    private synchronized void scheduleAt(long when) {
+        if( pending != null && pendingAt <= when ) {
+            return;
+        }
+        if( pending != null ) {
+            pending.cancel(false);
+        }
+        pendingAt = when;
+        pending = getPoller().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized( TaskTracker.this ) {
+                    pending = null;
+                    pendingAt = Long.MAX_VALUE;
+                }
+                poll();
+            }
+        }, Math.max(0L, when - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        final ArrayList<TrackedTask> due = new ArrayList<TrackedTask>();
+        long now = System.currentTimeMillis();
+
+        for( TrackedTask t : outstanding.values() ) {
+            if( (now - t.submitted) >= timeout ) {
+                outstanding.remove(t.href, t);
+                t.future.setException(new CloudException("Timed out after " + (now - t.submitted) + "ms waiting for task " + t.href));
+            }
+            else if( t.nextPoll <= now ) {
+                t.nextPoll = Long.MAX_VALUE;
+                due.add(t);
+            }
+        }
+        if( due.isEmpty() ) {
+            reschedule();
+            return;
+        }
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx;
+
+        try {
+            ctx = pool.borrowShared();
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to poll vCloud tasks: " + e.getMessage());
+            postpone(due);
+            reschedule();
+            return;
+        }
+        catch( RuntimeException e ) {
+            // for example an AuthorizationException while logging in again
+            logger.warn("Unable to poll vCloud tasks: " + e.getMessage());
+            postpone(due);
+            reschedule();
+            return;
+        }
+        ListenableFuture<List<Void>> checked;
+
+        try {
+            checked = FetchPipeline.fetchAllAsync(endpoint, maxRequests, due, new FetchPipeline.Fetcher<TrackedTask,Void>() {
+                @Override
+                public @Nonnull ListenableFuture<Void> fetch(@Nonnull final TrackedTask t) {
+                    final SettableFuture<Void> done = SettableFuture.create();
+
+                    // never fails, so one bad lookup does not stop the others from being issued
+                    Futures.addCallback(ctx.getAsyncApi().getTaskClient().getTask(t.href), new FutureCallback<Task>() {
+                        @Override
+                        public void onSuccess(Task task) {
+                            check(t, task);
+                            done.set(null);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.warn("Error looking up task: " + e.getMessage());
+                            postpone(t);
+                            done.set(null);
+                        }
+                    }, VCloudDirector.getCallbackExecutor());
+                    return done;
+                }
+            }, null);
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Unable to poll vCloud tasks: " + e.getMessage());
+            ctx.close();
+            postpone(due);
+            reschedule();
+            return;
+        }
+        checked.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ctx.close();
+                // anything the fetch did not reach, for example because it was interrupted, is polled again later
+                postpone(due);
+                reschedule();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private void postpone(@Nonnull Iterable<TrackedTask> due) {
+        for( TrackedTask t : due ) {
+            if( t.nextPoll == Long.MAX_VALUE ) {
+                postpone(t);
+            }
+        }
+    }
+
+    private void postpone(@Nonnull TrackedTask t) {
+        long now = System.currentTimeMillis();
+
+        t.nextPoll = now + getPollInterval(now - t.submitted);
+    }
+
+    private void reschedule() {
+        long next = Long.MAX_VALUE;
+
+        for( TrackedTask t : outstanding.values() ) {
+            if( t.nextPoll < next ) {
+                next = t.nextPoll;
+            }
+        }
+        if( next < Long.MAX_VALUE ) {
+            scheduleAt(next);
+        }
+    }
+
+    private void check(@Nonnull TrackedTask t, @Nullable Task task) {
+        long now = System.currentTimeMillis();
+
+        if( isBusy(task) ) {
+            postpone(t);
+            return;
+        }
+        outstanding.remove(t.href, t);
+        pool.getMetrics().recordTask(now - t.submitted);
+        t.future.set(task);
+    }
+}
@@ -21,18 +21,33 @@ package org.dasein.cloud.jclouds.vcloud.director;
 import static org.jclouds.concurrent.MoreExecutors.sameThreadExecutor;
 
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
+import org.dasein.cloud.AsynchronousTask;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.jclouds.vcloud.director.compute.VCloudDirectorComputeServices;
 import org.dasein.cloud.jclouds.vcloud.director.network.VCloudDirectorNetworkServices;
+import org.dasein.cloud.jclouds.vcloud.director.network.VlanIndex;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
 import org.jclouds.Constants;
@@ -42,20 +57,97 @@ import org.jclouds.logging.log4j.config.Log4JLoggingModule;
 import org.jclouds.rest.RestContext;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
-import org.jclouds.vcloud.director.v1_5.domain.Reference;
 import org.jclouds.vcloud.director.v1_5.domain.Task;
 import org.jclouds.vcloud.director.v1_5.domain.VApp;
+import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
 import org.jclouds.vcloud.director.v1_5.domain.Vm;
 import org.jclouds.vcloud.director.v1_5.domain.org.AdminOrg;
-import org.jclouds.vcloud.director.v1_5.predicates.ReferencePredicates;
 
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class VCloudDirector extends AbstractCloud {
     static private final Logger logger = Logger.getLogger(VCloudDirector.class);
+
+    static public final String IO_THREADS = "vcloud.ioThreads";
     
+    static private final AtomicInteger factories = new AtomicInteger(0);
+
+    static private ScheduledExecutorService scheduler;
+
+    /**
+     * @return a small shared pool of daemon threads for housekeeping work such as keeping pooled sessions alive
+     */
+    static public synchronized @Nonnull ScheduledExecutorService getScheduler() {
+        if( scheduler == null ) {
+            final AtomicInteger count = new AtomicInteger(0);
+
+            scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("vCloud Director Housekeeping " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    static private ListeningExecutorService callbacks;
+
+    /**
+     * @return a small shared pool for continuations of asynchronous operations that map results or consult
+     * the provider's caches, so that this work never runs on jclouds I/O threads or the task poller
+     */
+    static public synchronized @Nonnull ListeningExecutorService getCallbackExecutor() {
+        if( callbacks == null ) {
+            final AtomicInteger count = new AtomicInteger(0);
+
+            callbacks = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("vCloud Director Callback " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }));
+        }
+        return callbacks;
+    }
+
+    static private ListeningExecutorService mappers;
+
+    /**
+     * @return a pool for continuations that may still block on REST calls, such as mapping vApps whose template
+     * facts are not cached yet, so that such work never holds up the callback executor
+     */
+    static public synchronized @Nonnull ListeningExecutorService getMappingExecutor() {
+        if( mappers == null ) {
+            final AtomicInteger count = new AtomicInteger(0);
+
+            mappers = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("vCloud Director Mapping " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }));
+        }
+        return mappers;
+    }
+
     public VCloudDirector() { }
     
     @Override
@@ -82,12 +174,95 @@ public class VCloudDirector extends AbstractCloud {
         return (name == null ? "VMware" : name);
     }
 
+    /**
+     * Borrows an authenticated client from the context pool for this account. Callers must close the
+     * context when done with it, which hands it back to the pool rather than logging out.
+     * @return a pooled client for the current context
+     * @throws CloudException no context was set for this request or the client could not be created
+     */
     public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> getCloudClient() throws CloudException {
-        ProviderContext ctx = getContext();
+        return getContextPool().borrow();
+    }
+
+    /**
+     * Leases the client that this account's asynchronous operations share. Callers must close the lease when the
+     * operation completes; this does not end the session, which every other asynchronous operation keeps using.
+     * @return the shared client for the current context
+     * @throws CloudException no context was set for this request or the client could not be created
+     */
+    public @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> getSharedCloudClient() throws CloudException {
+        return getContextPool().borrowShared();
+    }
+
+    /**
+     * Makes this provider take its clients from the specified factory instead of logging in to vCloud Director,
+     * for benchmarks and tests that run against recorded responses. The clients are pooled apart from those of
+     * any other provider, including one connected to the same account. Replacing a factory closes the pool that
+     * the previous one fed.
+     * @param factory the source of clients for this provider
+     */
+    public void setContextFactory(@Nonnull RestContextPool.ContextFactory factory) {
+        String previous;
+
+        synchronized( this ) {
+            previous = contextFactoryPool;
+            contextFactoryId = "factory-" + factories.incrementAndGet();
+            contextFactory = factory;
+            contextFactoryPool = null;
+        }
+        if( previous != null ) {
+            RestContextPool.close(previous);
+        }
+    }
+
+    public @Nonnull RestContextPool getContextPool() throws CloudException {
+        final ProviderContext ctx = getContext();
         
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
+        RestContextPool.ContextFactory factory = contextFactory;
+        RestContextPool pool;
+
+        if( factory == null ) {
+            pool = RestContextPool.getInstance(getContextKey(), getContextName(), new RestContextPool.ContextFactory() {
+                @Override
+                public @Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> createContext() throws CloudException {
+                    return createCloudClient(ctx);
+                }
+            });
+        }
+        else {
+            String account = getContextKey();
+
+            // an injected factory always gets a pool of its own, never one that logs in to a real cloud; the lock
+            // keeps the factory, its pool and the key recorded for closing that pool consistent with each other
+            synchronized( this ) {
+                String key = account + "|" + contextFactoryId;
+
+                pool = RestContextPool.getInstance(key, getContextName(), contextFactory);
+                contextFactoryPool = key;
+            }
+        }
+
+        pool.configure((int)getLongProperty(RestContextPool.MAX_IDLE, -1L), getLongProperty(RestContextPool.IDLE_TIMEOUT, -1L), getLongProperty(RestContextPool.KEEP_ALIVE, -1L), getLongProperty(RestContextPool.SESSION_TIMEOUT, -1L));
+        pool.getMetrics().configure(getProperty(Metrics.REPORTER, null), getLongProperty(Metrics.REPORT_INTERVAL, -1L));
+        return pool;
+    }
+
+    /**
+     * @return the call, latency and wait metrics for this account
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull Metrics getMetrics() throws CloudException {
+        return getContextPool().getMetrics();
+    }
+
+    public @Nonnull RestContextPool.Statistics getContextPoolStatistics() throws CloudException {
+        return getContextPool().getStatistics();
+    }
+
+    private @Nonnull RestContext<VCloudDirectorAdminClient,VCloudDirectorAdminAsyncClient> createCloudClient(@Nonnull ProviderContext ctx) throws CloudException {
         ComputeServiceContextFactory factory = new ComputeServiceContextFactory();
         String user = new String(ctx.getAccessPublic());
         String key = new String(ctx.getAccessPrivate());
@@ -100,9 +275,109 @@ public class VCloudDirector extends AbstractCloud {
         if( endpoint != null && !endpoint.trim().equals("") ) {
             overrides.setProperty("vcloud.endpoint", endpoint);
         }
-        return factory.createContext("vcloud", user, key, ImmutableSet.of(new Log4JLoggingModule(), new ExecutorServiceModule(sameThreadExecutor(), sameThreadExecutor())), overrides)
+        // user callbacks stay on the calling thread, but I/O gets a bounded pool of real threads so the async client can run
+        // requests in parallel without one thread per request in flight; jclouds shuts it down when the context is finally closed
+        final AtomicInteger count = new AtomicInteger(0);
+        int threads = (int)Math.max(1L, getLongProperty(IO_THREADS, 16L));
+        ThreadPoolExecutor io = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("vCloud Director I/O " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        io.allowCoreThreadTimeOut(true);
+        return factory.createContext("vcloud", user, key, ImmutableSet.of(new Log4JLoggingModule(), new ExecutorServiceModule(sameThreadExecutor(), io)), overrides)
                 .getProviderSpecificContext();
     }
+
+    /**
+     * @return a key identifying the endpoint and credentials of the current context, used to share pooled state;
+     * the secret is only represented by its SHA-256 digest
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull String getContextKey() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return getContextName() + "|" + digest(ctx.getAccessPrivate());
+    }
+
+    /**
+     * @return the endpoint, user and account of the current context, without anything derived from the secret,
+     * for naming pooled state in logs and JMX
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull String getContextName() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return ctx.getEndpoint() + "|" + new String(ctx.getAccessPublic()) + "@" + ctx.getAccountNumber();
+    }
+
+    static private @Nonnull String digest(@Nullable byte[] secret) {
+        MessageDigest sha;
+
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        }
+        catch( NoSuchAlgorithmException e ) {
+            // every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( byte b : sha.digest(secret == null ? new byte[0] : secret) ) {
+            str.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return str.toString();
+    }
+
+    /**
+     * Reads a tuning property from the custom properties of the current context, falling back to a system property.
+     * @param name the name of the property
+     * @param defaultValue the value to use if the property is not set
+     * @return the value of the property
+     */
+    public @Nullable String getProperty(@Nonnull String name, @Nullable String defaultValue) {
+        ProviderContext ctx = getContext();
+        String value = null;
+
+        if( ctx != null ) {
+            Properties p = ctx.getCustomProperties();
+
+            if( p != null ) {
+                value = p.getProperty(name);
+            }
+        }
+        if( value == null ) {
+            value = System.getProperty(name);
+        }
+        return (value == null ? defaultValue : value);
+    }
+
+    public long getLongProperty(@Nonnull String name, long defaultValue) {
+        String value = getProperty(name, null);
+
+        if( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
     
     @Override
     public @Nonnull VCloudDirectorComputeServices getComputeServices() {
@@ -119,7 +394,99 @@ public class VCloudDirector extends AbstractCloud {
         return new VCloudDirectorNetworkServices(this);
     }
     
-    private transient volatile AdminOrg currentOrg;
+    private transient volatile VlanIndex vlanIndex;
+    private transient volatile RestContextPool.ContextFactory contextFactory;
+    private transient volatile String contextFactoryId;
+    private transient volatile String contextFactoryPool;
+    private transient volatile HrefCodec hrefCodec;
+
+    /**
+     * @return the VLAN index shared by every compute and network support object of this provider
+     */
+    public @Nonnull VlanIndex getVlanIndex() {
+        if( vlanIndex == null ) {
+            synchronized( this ) {
+                if( vlanIndex == null ) {
+                    vlanIndex = new VlanIndex(this);
+                }
+            }
+        }
+        return vlanIndex;
+    }
+    
+    public @Nonnull OperationExecutor getOperationExecutor() throws CloudException {
+        OperationExecutor executor = OperationExecutor.getInstance(getContextKey());
+
+        executor.configure((int)getLongProperty(OperationExecutor.QUEUE_LIMIT, -1L));
+        return executor;
+    }
+
+    /**
+     * Runs an operation on the shared operation executor, holding this provider open until it completes.
+     * The concurrency cap for the operation type is read from <code>vcloud.operations.concurrency.&lt;type&gt;</code>,
+     * falling back to <code>vcloud.operations.concurrency</code> and then to 4.
+     * @param type the type of operation
+     * @param operation the work to do
+     * @return a task tracking the progress of the operation
+     * @throws CloudException the executor queue is full
+     */
+    public @Nonnull <T> AsynchronousTask<T> submitOperation(@Nonnull String type, @Nonnull Callable<T> operation) throws CloudException {
+        final AsynchronousTask<T> task = new AsynchronousTask<T>();
+        int concurrency = (int)getLongProperty(OperationExecutor.CONCURRENCY + "." + type, getLongProperty(OperationExecutor.CONCURRENCY, 4L));
+        final ListenableFuture<T> future;
+
+        task.setStartTime(System.currentTimeMillis());
+        hold();
+        try {
+            future = getOperationExecutor().submit(type, concurrency, operation);
+        }
+        catch( CloudException e ) {
+            release();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.completeWithResult(future.get());
+                }
+                catch( ExecutionException e ) {
+                    task.complete(e.getCause());
+                }
+                catch( Throwable t ) {
+                    task.complete(t);
+                }
+                finally {
+                    release();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return task;
+    }
+
+    /**
+     * @return the data centers of the current org, shared by every provider connected with the same endpoint and
+     * credentials and configured with this provider's <code>vcloud.topology.ttlMillis</code>
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull DataCenterTopology getDataCenterTopology() throws CloudException {
+        DataCenterTopology topology = DataCenterTopology.getInstance(this);
+
+        topology.configure(getLongProperty(DataCenterTopology.TTL, -1L));
+        return topology;
+    }
+
+    /**
+     * @return the org cache shared by every provider connected with the same endpoint and credentials, configured
+     * with this provider's <code>vcloud.orgCache.ttlMillis</code>
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull OrgCache getOrgCache() throws CloudException {
+        OrgCache cache = OrgCache.getInstance(getContextPool());
+
+        cache.configure(getLongProperty(OrgCache.TTL, -1L));
+        return cache;
+    }
     
     public @Nonnull AdminOrg getOrg() throws CloudException {
         ProviderContext ctx = getContext();
@@ -127,35 +494,15 @@ public class VCloudDirector extends AbstractCloud {
         if( ctx == null ) {
             throw new CloudException("No context was established for this request");
         }
-        if( currentOrg == null ) {
-            currentOrg = getOrg(ctx.getAccountNumber());
-        }
-        return currentOrg;
+        return getOrg(ctx.getAccountNumber());
     }
     
     public @Nonnull AdminOrg getOrg(URI href) throws CloudException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = getCloudClient();
-        
-        try {
-            return ctx.getApi().getOrgClient().getOrg(href);
-        }
-        finally {
-            ctx.close();
-        }        
+        return getOrgCache().getOrg(href);
     }
     
     public @Nonnull AdminOrg getOrg(String name) throws CloudException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = getCloudClient();
-        
-        try {
-            Reference orgRef = Iterables.find(
-                 ctx.getApi().getOrgClient().getOrgList().getOrgs(),
-                 ReferencePredicates.nameEquals(name));
-            return getOrg(orgRef.getHref());
-        }
-        finally {
-            ctx.close();
-        }
+        return getOrgCache().getOrg(name);
     }
     
     @Override
@@ -198,114 +545,214 @@ public class VCloudDirector extends AbstractCloud {
     }
     
     public @Nonnull URI toHref(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, String id) {
+        return getHrefCodec(ctx).toHref(id);
+    }
+    
+    public @Nonnull String toId(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull URI uri) {
+        return getHrefCodec(ctx).toId(uri);
+    }
+
+    private @Nonnull HrefCodec getHrefCodec(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) {
+        URI endpoint = ctx.getEndpoint();
+        String apiVersion = ctx.getApiVersion();
+        HrefCodec codec = hrefCodec;
+
+        if( codec == null || !codec.matches(endpoint, apiVersion) ) {
+            codec = HrefCodec.getInstance(endpoint, apiVersion);
+            hrefCodec = codec;
+        }
+        return codec;
+    }
+
+    
+    public @Nonnull TaskTracker getTaskTracker() throws CloudException {
+        TaskTracker tracker = getContextPool().getTaskTracker();
+        ProviderContext ctx = getContext();
+
+        tracker.configure(ctx == null ? getContextKey() : String.valueOf(ctx.getEndpoint()), (int)getLongProperty(FetchPipeline.MAX_CONCURRENT_REQUESTS, 8L), getLongProperty(TaskTracker.TIMEOUT, -1L));
+        return tracker;
+    }
+
+    /**
+     * Waits for a future from the task tracker. The tracker fails tasks that run past its timeout, so this bound
+     * only matters if the tracker itself stops making progress.
+     */
+    private @Nullable <T> T await(@Nonnull TaskTracker tracker, @Nonnull ListenableFuture<T> future) throws InterruptedException, ExecutionException, CloudException {
         try {
-            return new URI(ctx.getEndpoint() + "/v" + ctx.getApiVersion() + id);
+            return future.get(tracker.getTimeout() + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
         }
-        catch( URISyntaxException e ) {
-            throw new RuntimeException(e);
+        catch( TimeoutException e ) {
+            throw new CloudException("Timed out waiting for vCloud tasks to complete");
         }
     }
-    
-    public @Nonnull String toId(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull URI uri) {
-        String endpoint = ctx.getEndpoint().toASCIIString();
-        String str = uri.toASCIIString();
-        int extra;
-        
-        if( (str.startsWith("http:") && endpoint.startsWith("http:")) || (str.startsWith("https:") && endpoint.startsWith("https:")) ) {
-            extra = 0;
+
+    private void waitForBusyTasks(@Nullable Iterable<Task> tasks) throws CloudException {
+        if( !hasBusyTask(tasks) ) {
+            return;
         }
-        else if( str.startsWith("https:") && endpoint.startsWith("http:") ) {
-            extra = 1;
+        TaskTracker tracker = getTaskTracker();
+        long start = System.currentTimeMillis();
+
+        try {
+            await(tracker, trackBusyTasks(tasks));
         }
-        else if( str.startsWith("http:") && endpoint.startsWith("https") ) {
-            extra = -1;
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for tasks to complete");
         }
-        else {
-            throw new RuntimeException("Unknown protocol endpoints " + str + " against " + endpoint);
+        catch( ExecutionException e ) {
+            throw new CloudException(e.getCause());
+        }
+        finally {
+            getMetrics().recordPollWait(System.currentTimeMillis() - start);
         }
-        int idx = ((ctx.getEndpoint() + "/v" + ctx.getApiVersion()).length()) + extra;
-        
-        return str.substring(idx);
     }
 
-    
-    public @Nullable Vm waitForIdle(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable Vm vm) {
-        if( vm == null ) {
-            return null;
-        }
-        boolean busy = true;
-        final URI vmUri = vm.getHref();
-        while( busy ) {
-            try { Thread.sleep(1500L); }
-            catch( InterruptedException ignore ) { /* ignore */ }
-            vm = Iterables.find(ctx.getApi().getVAppClient().getVApp(vm.getVAppParent().getHref()).getChildren().getVms(),
-	                  new Predicate<Vm>() {
-			               @Override
-			               public boolean apply(Vm input) {
-			                  return vmUri.equals(input.getHref());
-			               }
-			            });
-            if( vm == null ) {
-                return null;
-            }
-            busy = false;
-            for( Task task : vm.getTasks() ) {
-                busy = false;
-                if( task == null || task.getStatus() == null ) {
-                    continue;
-                }
-                if( task.getStatus().equals(Task.Status.QUEUED) || task.getStatus().equals(Task.Status.RUNNING) ) {
-                    busy = true;
+    /**
+     * Tracks the tasks that are still queued or running, for callers that only need a resource to be idle. Unlike
+     * {@link #trackTasks}, a task that ends in error does not fail the future, since the task belongs to
+     * whoever started it.
+     * @param tasks the tasks of a resource
+     * @return a future completing once none of the tasks is busy
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull ListenableFuture<List<Task>> trackBusyTasks(@Nullable Iterable<Task> tasks) throws CloudException {
+        ArrayList<ListenableFuture<Task>> futures = new ArrayList<ListenableFuture<Task>>();
+
+        if( tasks != null ) {
+            TaskTracker tracker = getTaskTracker();
+
+            for( Task task : tasks ) {
+                if( TaskTracker.isBusy(task) ) {
+                    futures.add(tracker.track(task));
                 }
             }
-        }    
-        return vm;
+        }
+        return Futures.successfulAsList(futures);
     }
-    
-    public @Nullable VApp waitForIdle(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable VApp vapp) {
-        if( vapp == null ) {
-            return null;
+
+    public @Nullable Vm waitForIdle(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable Vm vm) throws CloudException {
+        while( vm != null ) {
+            vm = ctx.getApi().getVmClient().getVm(vm.getHref());
+            if( vm == null || !hasBusyTask(vm.getTasks()) ) {
+                return vm;
+            }
+            waitForBusyTasks(vm.getTasks());
         }
-        boolean busy = true;
-        
-        while( busy ) {
-            try { Thread.sleep(1500L); }
-            catch( InterruptedException ignore ) { }
+        return null;
+    }
+    
+    public @Nullable VApp waitForIdle(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable VApp vapp) throws CloudException {
+        while( vapp != null ) {
             vapp = ctx.getApi().getVAppClient().getVApp(vapp.getHref());
-            if( vapp == null ) {
-                return null;
+            if( vapp == null || !hasBusyTask(vapp.getTasks()) ) {
+                return vapp;
             }
-            busy = false;
-            for( Task task : vapp.getTasks() ) {
-                busy = false;
-                if( task == null || task.getStatus() == null ) {
-                    continue;
-                }
-                if( task.getStatus().equals(Task.Status.QUEUED) || task.getStatus().equals(Task.Status.RUNNING) ) {
-                    busy = true;
+            waitForBusyTasks(vapp.getTasks());
+        }
+        return null;
+    }
+
+    public @Nullable VAppTemplate waitForIdle(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable VAppTemplate template) throws CloudException {
+        while( template != null ) {
+            template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(template.getHref());
+            if( template == null || !hasBusyTask(template.getTasks()) ) {
+                return template;
+            }
+            waitForBusyTasks(template.getTasks());
+        }
+        return null;
+    }
+
+    private boolean hasBusyTask(@Nullable Iterable<Task> tasks) {
+        if( tasks != null ) {
+            for( Task task : tasks ) {
+                if( TaskTracker.isBusy(task) ) {
+                    return true;
                 }
             }
-        }    
-        return vapp;
+        }
+        return false;
     }
     
-    public void waitForTask(@Nonnull Task task) throws CloudException {
-        while( task != null && (task.getStatus().equals(Task.Status.RUNNING) || task.getStatus().equals(Task.Status.QUEUED)) ) {
-            try { Thread.sleep(5000L); }
-            catch( InterruptedException ignore ) { }
-            RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = getCloudClient();
-            
-            try {
-                try {
-                    task = ctx.getApi().getTaskClient().getTask(task.getHref());
-                }
-                catch( RuntimeException e ) {
-                    logger.warn("Error looking up task: " + e.getMessage());
+    /**
+     * Tracks a set of tasks without blocking the caller.
+     * @param tasks the tasks to track
+     * @return a future completing with the finished tasks, or failing with a {@link CloudException} if any of them ended in error
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull ListenableFuture<List<Task>> trackTasks(@Nonnull Iterable<Task> tasks) throws CloudException {
+        ArrayList<ListenableFuture<Task>> futures = new ArrayList<ListenableFuture<Task>>();
+        TaskTracker tracker = getTaskTracker();
+
+        for( Task task : tasks ) {
+            if( task != null ) {
+                futures.add(tracker.track(task));
+            }
+        }
+        return Futures.transform(Futures.allAsList(futures), new AsyncFunction<List<Task>,List<Task>>() {
+            @Override
+            public ListenableFuture<List<Task>> apply(List<Task> results) {
+                for( Task task : results ) {
+                    if( task != null && task.getStatus().equals(Task.Status.ERROR) ) {
+                        return Futures.immediateFailedFuture(new CloudException(task.getError().getMessage()));
+                    }
                 }
+                return Futures.immediateFuture(results);
             }
-            finally {
-                ctx.close();
+        });
+    }
+
+    /**
+     * Waits for a group of tasks that were submitted together, for example the same change applied to
+     * every VM in a vApp. All tasks are tracked at once, so the wait lasts as long as the slowest task.
+     * @param tasks the tasks to wait for
+     * @throws CloudException one or more of the tasks failed
+     */
+    public void waitForTasks(@Nonnull Iterable<Task> tasks) throws CloudException {
+        long start = System.currentTimeMillis();
+
+        try {
+            await(getTaskTracker(), trackTasks(tasks));
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for tasks to complete");
+        }
+        catch( ExecutionException e ) {
+            if( e.getCause() instanceof CloudException ) {
+                throw (CloudException)e.getCause();
+            }
+            throw new CloudException(e.getCause());
+        }
+        finally {
+            getMetrics().recordPollWait(System.currentTimeMillis() - start);
+        }
+    }
+
+    public void waitForTask(@Nullable Task task) throws CloudException {
+        if( task == null ) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        try {
+            TaskTracker tracker = getTaskTracker();
+
+            task = await(tracker, tracker.track(task));
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for task " + task.getHref());
+        }
+        catch( ExecutionException e ) {
+            if( e.getCause() instanceof CloudException ) {
+                throw (CloudException)e.getCause();
             }
+            throw new CloudException(e.getCause());
+        }
+        finally {
+            getMetrics().recordPollWait(System.currentTimeMillis() - start);
         }
         if( task != null ) {
             if( task.getStatus().equals(Task.Status.ERROR) ) {
@@ -20,11 +20,9 @@ package org.dasein.cloud.jclouds.vcloud.director;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Locale;
-import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -38,7 +36,6 @@ import org.dasein.cloud.dc.Region;
 import org.jclouds.rest.RestContext;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
-import org.jclouds.vcloud.director.v1_5.domain.Reference;
 import org.jclouds.vcloud.director.v1_5.domain.Vdc;
 
 public class VCloudDirectorDataCenterServices implements DataCenterServices {
@@ -57,14 +54,7 @@ public class VCloudDirectorDataCenterServices implements DataCenterServices {
     
     @Override
     public @Nullable DataCenter getDataCenter(@Nonnull String providerDataCenterId) throws InternalException, CloudException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
-
-        try {
-            return toDataCenter(ctx, getVdc(providerDataCenterId));
-        }
-        finally {
-            ctx.close();
-        }        
+        return provider.getDataCenterTopology().getDataCenter(providerDataCenterId);
     }
 
     @Override
@@ -87,6 +77,13 @@ public class VCloudDirectorDataCenterServices implements DataCenterServices {
         return null;
     }
 
+    /**
+     * Fetches the current state of a Vdc. Unlike the data center lookups this always goes to vCloud Director,
+     * since callers want the Vdc's current resource entities and capacity.
+     * @param vdcId the Vdc to fetch
+     * @return the Vdc, or <code>null</code> if there is no such Vdc
+     * @throws CloudException an error occurred fetching the Vdc
+     */
     public @Nullable Vdc getVdc(@Nonnull String vdcId) throws CloudException {
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
 
@@ -103,31 +100,7 @@ public class VCloudDirectorDataCenterServices implements DataCenterServices {
         if( !providerRegionId.equals(getContext().getRegionId()) ) {
             return Collections.emptyList();
         }
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
-
-        try {
-            Set<Reference> refs = provider.getOrg().getVdcs();
-                  
-            System.out.println("Data centers=" + refs);
-            ArrayList<DataCenter> dcs = new ArrayList<DataCenter>();
-            
-            if( refs == null ) {
-                return Collections.emptyList();
-            }
-            for( Reference ref : refs ) {
-                Vdc vdc = ctx.getApi().getVdcClient().getVdc(ref.getHref());
-                DataCenter dc = toDataCenter(ctx, vdc);
-                
-                if( dc != null ) {
-                    dcs.add(dc);
-                }
-            }
-            System.out.println("Result=" + dcs);
-            return dcs;
-        }
-        finally {
-            ctx.close();
-        }
+        return provider.getDataCenterTopology().listDataCenters();
     }
 
     @Override
@@ -155,19 +128,5 @@ public class VCloudDirectorDataCenterServices implements DataCenterServices {
         region.setAvailable(true);
         return region;
     }
-    
-    private @Nullable DataCenter toDataCenter(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nullable Vdc vdc) throws CloudException {
-        if( vdc == null ) {
-            return null;
-        }
-        DataCenter dc = new DataCenter();
-        
-        dc.setProviderDataCenterId(provider.toId(ctx, vdc.getHref()));
-        dc.setActive(true);
-        dc.setAvailable(true);
-        dc.setName(vdc.getName());
-        dc.setRegionId(getContext().getRegionId());
-        return dc;        
-    }
 
 }
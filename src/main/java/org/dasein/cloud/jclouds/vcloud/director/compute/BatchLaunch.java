@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.compute.VirtualMachine;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tracks a batch of virtual machines launched together from one template through
+ * {@link VmSupport#launchMany(String, org.dasein.cloud.compute.VirtualMachineProduct, String, String, String, int)}.
+ */
+public class BatchLaunch {
+    private final List<ListenableFuture<VirtualMachine>> launches = Collections.synchronizedList(new ArrayList<ListenableFuture<VirtualMachine>>());
+    private final int           expected;
+    private final long          started = System.currentTimeMillis();
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicLong    launchTime = new AtomicLong(0L);
+    private volatile long       finished = -1L;
+
+    BatchLaunch(int expected) { this.expected = expected; }
+
+    void add(@Nonnull ListenableFuture<VirtualMachine> launch) {
+        launches.add(launch);
+    }
+
+    void completed(long millis) {
+        launchTime.addAndGet(millis);
+        completed.incrementAndGet();
+        checkFinished();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+        checkFinished();
+    }
+
+    private void checkFinished() {
+        if( (completed.get() + failed.get()) >= expected ) {
+            finished = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return one future per requested VM, in the order the VMs were requested
+     */
+    public @Nonnull List<ListenableFuture<VirtualMachine>> getLaunches() {
+        synchronized( launches ) {
+            return new ArrayList<ListenableFuture<VirtualMachine>>(launches);
+        }
+    }
+
+    public int getSubmitted() {
+        return expected;
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getPending() {
+        return (expected - completed.get() - failed.get());
+    }
+
+    public boolean isFinished() {
+        return (finished > -1L);
+    }
+
+    public long getElapsedMillis() {
+        return ((isFinished() ? finished : System.currentTimeMillis()) - started);
+    }
+
+    /**
+     * @return the mean time from the start of an individual launch to its VM being available, in milliseconds
+     */
+    public long getAverageLaunchMillis() {
+        int count = completed.get();
+
+        return (count == 0 ? 0L : launchTime.get()/count);
+    }
+
+    /**
+     * @return the number of VMs launched per minute since the batch started
+     */
+    public double getThroughputPerMinute() {
+        long elapsed = getElapsedMillis();
+
+        return (elapsed < 1L ? 0.0 : (completed.get() * 60000.0)/elapsed);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[submitted=" + getSubmitted() + ",completed=" + getCompleted() + ",failed=" + getFailed() + ",elapsed=" + getElapsedMillis() + "ms,throughput=" + getThroughputPerMinute() + "/min]";
+    }
+}
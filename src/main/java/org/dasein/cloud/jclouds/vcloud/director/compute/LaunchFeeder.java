@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.jclouds.vcloud.director.OperationExecutor;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Holds the launches of one {@link BatchLaunch} and hands them to the launch lane of the {@link OperationExecutor}
+ * no faster than the lane's cap, so a batch of any size waits here instead of overflowing the executor's queue.
+ * Should the queue still be full because of other work, the launch is put back and offered again once one of the
+ * batch's own launches finishes or, if none is running, after a short delay.
+ */
+class LaunchFeeder implements Runnable {
+    static private final Logger logger = Logger.getLogger(LaunchFeeder.class);
+
+    static private final long RETRY_MILLIS = 1000L;
+
+    static private class Entry {
+        private final Callable<VirtualMachine>       launch;
+        private final SettableFuture<VirtualMachine> result = SettableFuture.create();
+
+        private Entry(@Nonnull Callable<VirtualMachine> launch) { this.launch = launch; }
+    }
+
+    private final OperationExecutor   executor;
+    private final int                 concurrency;
+    private final LinkedList<Entry>   waiting = new LinkedList<Entry>();
+    private int                       running;
+
+    LaunchFeeder(@Nonnull OperationExecutor executor, int concurrency) {
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Queues a launch behind the others of this batch. Nothing is submitted until {@link #run()} is called.
+     * @param launch the launch of a single VM
+     * @return a future completing with the launched VM
+     */
+    synchronized @Nonnull ListenableFuture<VirtualMachine> add(@Nonnull Callable<VirtualMachine> launch) {
+        Entry entry = new Entry(launch);
+
+        waiting.add(entry);
+        return entry.result;
+    }
+
+    @Override
+    public void run() {
+        while( true ) {
+            final Entry entry;
+
+            synchronized( this ) {
+                if( running >= concurrency || waiting.isEmpty() ) {
+                    return;
+                }
+                entry = waiting.removeFirst();
+                if( entry.result.isCancelled() ) {
+                    continue;
+                }
+                running++;
+            }
+            ListenableFuture<VirtualMachine> launch;
+
+            try {
+                launch = executor.submit(OperationExecutor.LAUNCH, concurrency, entry.launch);
+            }
+            catch( CloudException e ) {
+                boolean idle;
+
+                synchronized( this ) {
+                    waiting.addFirst(entry);
+                    running--;
+                    idle = (running == 0);
+                }
+                if( idle ) {
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Operation queue full, offering launch again in " + RETRY_MILLIS + "ms");
+                    }
+                    VCloudDirector.getScheduler().schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            Futures.addCallback(launch, new FutureCallback<VirtualMachine>() {
+                @Override
+                public void onSuccess(VirtualMachine vm) {
+                    entry.result.set(vm);
+                    finished();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    entry.result.setException(t);
+                    finished();
+                }
+            });
+        }
+    }
+
+    private void finished() {
+        synchronized( this ) {
+            running--;
+        }
+        run();
+    }
+}
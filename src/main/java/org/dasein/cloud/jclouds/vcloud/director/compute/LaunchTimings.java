@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Records how long each phase of a launch took so slow launches can be attributed to a specific step.
+ */
+public class LaunchTimings {
+    private final LinkedHashMap<String,Long> phases = new LinkedHashMap<String,Long>();
+    private final long started = System.currentTimeMillis();
+    private long last = started;
+
+    /**
+     * Ends the current phase.
+     * @param phase the name of the phase that just completed
+     */
+    public synchronized void mark(@Nonnull String phase) {
+        long now = System.currentTimeMillis();
+        Long previous = phases.get(phase);
+
+        phases.put(phase, (previous == null ? 0L : previous) + (now - last));
+        last = now;
+    }
+
+    public synchronized @Nonnull Map<String,Long> getPhases() {
+        return new LinkedHashMap<String,Long>(phases);
+    }
+
+    public synchronized long getTotal() {
+        return (last - started);
+    }
+
+    @Override
+    public synchronized @Nonnull String toString() {
+        StringBuilder str = new StringBuilder();
+
+        for( Map.Entry<String,Long> phase : phases.entrySet() ) {
+            str.append(phase.getKey()).append('=').append(phase.getValue()).append("ms ");
+        }
+        str.append("total=").append(last - started).append("ms");
+        return str.toString();
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.Platform;
+
+/**
+ * Process-wide index of the machine images found in the catalogs of one org. The index remembers which
+ * catalog items it has already examined so that a refresh only fetches the items that appeared since the
+ * last crawl and drops the ones that disappeared. Each refresh also rebuilds postings over the image id,
+ * name and description tokens, platform and architecture so searches do not have to scan every image.
+ */
+public class MachineImageIndex {
+    static public final String REFRESH_INTERVAL    = "vcloud.imageIndex.refreshMillis";
+    static public final String REVALIDATE_INTERVAL = "vcloud.imageIndex.revalidateMillis";
+
+    static private final ConcurrentHashMap<String,MachineImageIndex> indexes = new ConcurrentHashMap<String,MachineImageIndex>();
+
+    static public @Nonnull MachineImageIndex getInstance(@Nonnull String key) {
+        MachineImageIndex index = indexes.get(key);
+
+        if( index == null ) {
+            index = new MachineImageIndex();
+            MachineImageIndex existing = indexes.putIfAbsent(key, index);
+
+            if( existing != null ) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Matches platforms the way image searches always have: an exact match, any Windows flavor when
+     * searching for a Windows platform, or any Unix flavor when searching for {@link Platform#UNIX}.
+     * @param wanted the platform being searched for
+     * @param p the platform of an image
+     * @return true if the image platform satisfies the search
+     */
+    static public boolean matches(@Nonnull Platform wanted, @Nullable Platform p) {
+        if( wanted.equals(p) ) {
+            return true;
+        }
+        if( p == null ) {
+            return false;
+        }
+        if( wanted.isWindows() ) {
+            return p.isWindows();
+        }
+        else if( wanted.equals(Platform.UNIX) ) {
+            return p.isUnix();
+        }
+        return false;
+    }
+
+    static private @Nonnull List<String> tokenize(@Nullable String text) {
+        ArrayList<String> tokens = new ArrayList<String>();
+
+        if( text == null ) {
+            return tokens;
+        }
+        String str = text.toLowerCase(Locale.ENGLISH);
+        int start = -1;
+
+        for( int i=0; i<=str.length(); i++ ) {
+            boolean alnum = (i < str.length() && Character.isLetterOrDigit(str.charAt(i)));
+
+            if( alnum && start < 0 ) {
+                start = i;
+            }
+            else if( !alnum && start > -1 ) {
+                tokens.add(str.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    static private boolean contains(@Nullable String value, @Nonnull String keyword) {
+        return (value != null && value.contains(keyword));
+    }
+
+    static private class Snapshot {
+        private final Map<URI,MachineImage>       items;
+        private final Map<String,MachineImage>    byId;
+        private final Set<URI>                    known;
+        private final List<MachineImage>          images;
+        private final TreeMap<String,BitSet>      suffixes = new TreeMap<String,BitSet>();
+        private final Map<Platform,BitSet>        platforms = new HashMap<Platform,BitSet>();
+        private final Map<Architecture,BitSet>    architectures = new HashMap<Architecture,BitSet>();
+
+        Snapshot(@Nonnull Map<URI,MachineImage> items, @Nonnull Map<String,MachineImage> byId, @Nonnull Set<URI> known) {
+            this.items = items;
+            this.byId = byId;
+            this.known = known;
+            this.images = new ArrayList<MachineImage>(items.values());
+            for( int i=0; i<images.size(); i++ ) {
+                MachineImage image = images.get(i);
+
+                for( String text : new String[] { image.getProviderMachineImageId(), image.getName(), image.getDescription() } ) {
+                    for( String token : tokenize(text) ) {
+                        // every suffix is posted so that a substring of a token becomes a prefix lookup
+                        for( int j=0; j<token.length(); j++ ) {
+                            post(suffixes, token.substring(j), i);
+                        }
+                    }
+                }
+                post(platforms, image.getPlatform(), i);
+                post(architectures, image.getArchitecture(), i);
+            }
+        }
+
+        private <K> void post(@Nonnull Map<K,BitSet> postings, @Nullable K key, int ordinal) {
+            if( key == null ) {
+                return;
+            }
+            BitSet bits = postings.get(key);
+
+            if( bits == null ) {
+                bits = new BitSet();
+                postings.put(key, bits);
+            }
+            bits.set(ordinal);
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<URI,MachineImage>emptyMap(), Collections.<String,MachineImage>emptyMap(), Collections.<URI>emptySet());
+    private volatile long     refreshed = -1L;
+    private volatile long     revalidated = -1L;
+
+    private MachineImageIndex() { }
+
+    public boolean isPopulated() {
+        return (revalidated > 0L);
+    }
+
+    public boolean needsRefresh(long interval) {
+        return ((System.currentTimeMillis() - refreshed) >= interval);
+    }
+
+    public boolean needsRevalidation(long interval) {
+        return ((System.currentTimeMillis() - revalidated) >= interval);
+    }
+
+    /**
+     * Forces the next listing to check the catalogs again, for example after a template was added or removed.
+     */
+    public void expire() {
+        refreshed = -1L;
+    }
+
+    public @Nonnull Set<URI> getKnownItems() {
+        return snapshot.known;
+    }
+
+    public @Nonnull List<MachineImage> getImages() {
+        return new ArrayList<MachineImage>(snapshot.images);
+    }
+
+    public @Nullable MachineImage getImage(@Nonnull String machineImageId) {
+        return snapshot.byId.get(machineImageId);
+    }
+
+    /**
+     * Searches the indexed images. Keywords match substrings of the image id, name or description exactly as
+     * {@link String#contains(CharSequence)} would; the postings only narrow down which images get checked.
+     * @param keyword the text the id, name or description must contain, or <code>null</code> for any
+     * @param platform the platform to match (see {@link #matches(Platform, Platform)}), or <code>null</code> for any
+     * @param architecture the architecture to match, or <code>null</code> for any
+     * @return the matching images in catalog order
+     */
+    public @Nonnull List<MachineImage> search(@Nullable String keyword, @Nullable Platform platform, @Nullable Architecture architecture) {
+        Snapshot s = snapshot;
+        BitSet candidates = new BitSet();
+
+        candidates.set(0, s.images.size());
+        if( keyword != null ) {
+            for( String token : tokenize(keyword) ) {
+                SortedMap<String,BitSet> range = s.suffixes.subMap(token, token + Character.MAX_VALUE);
+                BitSet hits = new BitSet();
+
+                for( BitSet bits : range.values() ) {
+                    hits.or(bits);
+                }
+                candidates.and(hits);
+            }
+        }
+        if( platform != null ) {
+            BitSet hits = new BitSet();
+
+            for( Map.Entry<Platform,BitSet> entry : s.platforms.entrySet() ) {
+                if( matches(platform, entry.getKey()) ) {
+                    hits.or(entry.getValue());
+                }
+            }
+            candidates.and(hits);
+        }
+        if( architecture != null ) {
+            BitSet bits = s.architectures.get(architecture);
+
+            if( bits == null ) {
+                return Collections.emptyList();
+            }
+            candidates.and(bits);
+        }
+        ArrayList<MachineImage> results = new ArrayList<MachineImage>();
+
+        for( int i=candidates.nextSetBit(0); i>=0; i=candidates.nextSetBit(i+1) ) {
+            MachineImage image = s.images.get(i);
+
+            if( keyword != null ) {
+                if( !contains(image.getProviderMachineImageId(), keyword) && !contains(image.getName(), keyword) && !contains(image.getDescription(), keyword) ) {
+                    continue;
+                }
+            }
+            results.add(image);
+        }
+        return results;
+    }
+
+    /**
+     * Replaces the contents of the index with the result of a crawl.
+     * @param current every catalog item currently in the org's catalogs, in catalog order
+     * @param fetched the items examined by this crawl, mapped to their image or to <code>null</code> if they are not templates
+     * @param full <code>true</code> if every current item was examined, <code>false</code> if only new items were
+     */
+    synchronized void update(@Nonnull List<URI> current, @Nonnull Map<URI,MachineImage> fetched, boolean full) {
+        Snapshot old = snapshot;
+        LinkedHashMap<URI,MachineImage> newItems = new LinkedHashMap<URI,MachineImage>();
+        HashMap<String,MachineImage> newById = new HashMap<String,MachineImage>();
+        HashSet<URI> newKnown = new HashSet<URI>();
+
+        for( URI href : current ) {
+            MachineImage image;
+
+            if( fetched.containsKey(href) ) {
+                image = fetched.get(href);
+            }
+            else if( !full && old.known.contains(href) ) {
+                image = old.items.get(href);
+            }
+            else {
+                continue;
+            }
+            newKnown.add(href);
+            if( image != null ) {
+                newItems.put(href, image);
+                newById.put(image.getProviderMachineImageId(), image);
+            }
+        }
+        snapshot = new Snapshot(newItems, newById, newKnown);
+        refreshed = System.currentTimeMillis();
+        if( full ) {
+            revalidated = refreshed;
+        }
+    }
+}
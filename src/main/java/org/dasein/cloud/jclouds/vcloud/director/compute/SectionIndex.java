@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jclouds.dmtf.ovf.SectionType;
+import org.jclouds.vcloud.director.v1_5.domain.AbstractVAppType;
+import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
+
+/**
+ * A typed view of the OVF sections of a VM, vApp or vApp template. The sections are indexed by their class and
+ * every superclass up to {@link SectionType} in a single pass, so code that reads several sections of the same
+ * object should build one index and use it for every lookup. Nothing is cached between calls.
+ */
+public class SectionIndex {
+    static public @Nonnull SectionIndex of(@Nonnull AbstractVAppType vapp) {
+        return new SectionIndex(vapp.getHref(), vapp.getSections());
+    }
+
+    static public @Nonnull SectionIndex of(@Nonnull VAppTemplate template) {
+        return new SectionIndex(template.getHref(), template.getSections());
+    }
+
+    private final URI                       owner;
+    private final Map<Class<?>,SectionType> sections = new HashMap<Class<?>,SectionType>();
+
+    private SectionIndex(@Nullable URI owner, @Nullable Iterable<? extends SectionType> sections) {
+        this.owner = owner;
+        if( sections != null ) {
+            for( SectionType section : sections ) {
+                Class<?> type = section.getClass();
+
+                while( type != null && SectionType.class.isAssignableFrom(type) ) {
+                    if( !this.sections.containsKey(type) ) {
+                        this.sections.put(type, section);
+                    }
+                    type = type.getSuperclass();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sectionClass the type of section sought
+     * @return the first section of the specified type, or <code>null</code> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable <S extends SectionType> S get(@Nonnull Class<S> sectionClass) {
+        return (S)sections.get(sectionClass);
+    }
+
+    /**
+     * @param sectionClass the type of section sought
+     * @return the first section of the specified type
+     * @throws NoSuchElementException there is no section of the specified type
+     */
+    public @Nonnull <S extends SectionType> S require(@Nonnull Class<S> sectionClass) {
+        S section = get(sectionClass);
+
+        if( section == null ) {
+            throw new NoSuchElementException("No " + sectionClass.getSimpleName() + " in " + owner);
+        }
+        return section;
+    }
+}
@@ -25,8 +25,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -46,9 +52,13 @@ import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.jclouds.vcloud.director.FetchPipeline;
+import org.dasein.cloud.jclouds.vcloud.director.OperationExecutor;
+import org.dasein.cloud.jclouds.vcloud.director.QueryPager;
 import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
 import org.jclouds.dmtf.ovf.SectionType;
 import org.jclouds.rest.AuthorizationException;
+import org.jclouds.rest.ResourceNotFoundException;
 import org.jclouds.rest.RestContext;
 import org.jclouds.vcloud.director.v1_5.VCloudDirectorMediaType;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
@@ -58,7 +68,6 @@ import org.jclouds.vcloud.director.v1_5.domain.CatalogItem;
 import org.jclouds.vcloud.director.v1_5.domain.Link;
 import org.jclouds.vcloud.director.v1_5.domain.Reference;
 import org.jclouds.vcloud.director.v1_5.domain.ResourceEntity.Status;
-import org.jclouds.vcloud.director.v1_5.domain.Task;
 import org.jclouds.vcloud.director.v1_5.domain.VApp;
 import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
 import org.jclouds.vcloud.director.v1_5.domain.Vdc;
@@ -70,6 +79,7 @@ import org.jclouds.vcloud.director.v1_5.domain.params.CaptureVAppParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.DeployVAppParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.UndeployVAppParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.UndeployVAppParams.PowerAction;
+import org.jclouds.vcloud.director.v1_5.domain.query.QueryResultVAppTemplateRecord;
 import org.jclouds.vcloud.director.v1_5.domain.section.NetworkConnectionSection;
 import org.jclouds.vcloud.director.v1_5.domain.section.OperatingSystemSection;
 import org.jclouds.vcloud.director.v1_5.predicates.LinkPredicates;
@@ -77,12 +87,64 @@ import org.jclouds.vcloud.director.v1_5.predicates.LinkPredicates;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class VAppTemplateSupport implements MachineImageSupport {
     static private final Logger logger = Logger.getLogger(VAppTemplateSupport.class);
     
     static public final String TEMPLATE = "vAppTemplate";
-    
+
+    static public final String TEMPLATE_CACHE_SIZE   = "vcloud.templateCache.size";
+    static public final String TEMPLATE_CACHE_TTL    = "vcloud.templateCache.ttlMillis";
+    static public final String TEMPLATE_CACHE_MISS_TTL = "vcloud.templateCache.missTtlMillis";
+
+    /**
+     * The facts about a template that VM mapping needs, cached so that VMs built from the same template
+     * do not each trigger a template fetch.
+     */
+    static public class TemplateFacts {
+        private final boolean      exists;
+        private final Architecture architecture;
+        private final Platform     platform;
+        private final long         fetched = System.currentTimeMillis();
+
+        TemplateFacts(boolean exists, Architecture architecture, Platform platform) {
+            this.exists = exists;
+            this.architecture = architecture;
+            this.platform = platform;
+        }
+
+        public boolean exists() { return exists; }
+
+        public Architecture getArchitecture() { return architecture; }
+
+        public Platform getPlatform() { return platform; }
+    }
+
+    /**
+     * A bounded LRU map of template facts by href, one per account.
+     */
+    @SuppressWarnings("serial")
+    static private class TemplateFactsCache extends LinkedHashMap<String,TemplateFacts> {
+        private final int maxSize;
+
+        TemplateFactsCache(int maxSize) {
+            super(64, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,TemplateFacts> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Map<String,TemplateFacts>> templateFacts = new ConcurrentHashMap<String,Map<String,TemplateFacts>>();
+
     private VCloudDirector provider;
     
     VAppTemplateSupport(@Nonnull VCloudDirector provider) { this.provider = provider; }
@@ -111,6 +173,15 @@ public class VAppTemplateSupport implements MachineImageSupport {
     
     @Override
     public @Nullable MachineImage getMachineImage(@Nonnull String machineImageId) throws CloudException, InternalException {
+        MachineImageIndex index = getIndex(provider.getOrg(), false);
+        
+        if( index.isPopulated() ) {
+            MachineImage image = index.getImage(machineImageId);
+            
+            if( image != null ) {
+                return image;
+            }
+        }
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
         try {
@@ -159,33 +230,16 @@ public class VAppTemplateSupport implements MachineImageSupport {
 
     @Override
     public @Nonnull AsynchronousTask<String> imageVirtualMachine(@Nonnull String vmId, @Nonnull String name, @Nonnull String description) throws CloudException, InternalException {
-        final AsynchronousTask<String> imageTask = new AsynchronousTask<String>();
         final String f_vmId = vmId;
         final String f_name = name;
         final String f_desc = description;
         
-        imageTask.setStartTime(System.currentTimeMillis());
-        provider.hold();
-        Thread t = new Thread() {
-            public void run() {
-                try {
-                    MachineImage image = executeImage(f_vmId, f_name, f_desc);
-                    
-                    imageTask.completeWithResult(image.getProviderMachineImageId());
-                }
-                catch( Throwable t ) {
-                    imageTask.complete(t);
-                }
-                finally {
-                    provider.release();
-                }
+        return provider.submitOperation(OperationExecutor.IMAGE, new Callable<String>() {
+            @Override
+            public String call() throws CloudException, InternalException {
+                return executeImage(f_vmId, f_name, f_desc).getProviderMachineImageId();
             }
-        };
-        
-        t.setName("Image " + vmId + " - " + name);
-        t.setDaemon(true);
-        t.start();
-        return imageTask;
+        });
     }
     
     private @Nonnull MachineImage executeImage(@Nonnull String vmId, @Nonnull String name, @Nonnull String description) throws CloudException, InternalException {
@@ -205,7 +259,7 @@ public class VAppTemplateSupport implements MachineImageSupport {
                 HashMap<String,Collection<NetworkConnection.Builder>> oldBuilders = new HashMap<String,Collection<NetworkConnection.Builder>>();
                 for( Vm child : parent.getChildren().getVms() ) {
                     ArrayList<NetworkConnection.Builder> list = new ArrayList<NetworkConnection.Builder>();
-                    NetworkConnectionSection section = (NetworkConnectionSection) Iterables.find(child.getSections(), Predicates.instanceOf(NetworkConnectionSection.class));
+                    NetworkConnectionSection section = VmSupport.getSection(child, NetworkConnectionSection.class);
                     for( NetworkConnection c : section.getNetworkConnections() ) {
                         NetworkConnection.Builder builder = NetworkConnection.builder().fromNetworkConnection(c);
                         list.add(builder);
@@ -259,6 +313,7 @@ public class VAppTemplateSupport implements MachineImageSupport {
                         Reference ref = Reference.builder().fromEntity(template).build();
                         CatalogItem item = CatalogItem.builder().name(name).description(description).entity(ref).build();
                         ctx.getApi().getCatalogClient().addCatalogItem(catalog.getHref(), item);
+                        getIndex(provider.getOrg(), false).expire();
                         if( logger.isInfoEnabled() ) {
                             logger.info("Template added to catalog");
                         }
@@ -359,45 +414,287 @@ public class VAppTemplateSupport implements MachineImageSupport {
         return listMachineImages(provider.getOrg(), false);
     }
     
+    /**
+     * Lists the machine images of the current org without blocking the caller. A fresh index answers immediately;
+     * otherwise the same crawl as {@link #listMachineImages()} is chained through the account's shared async
+     * client, and only the mapping of templates into images runs on the provider's callback executor.
+     * @return a future completing with the machine images
+     */
+    public @Nonnull ListenableFuture<List<MachineImage>> listMachineImagesAsync() {
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx;
+        final SettableFuture<List<MachineImage>> result = SettableFuture.create();
+        final MachineImageIndex index;
+        ListenableFuture<Void> crawled;
+        AdminOrg org;
+        boolean full;
+
+        try {
+            org = provider.getOrg();
+            index = getIndex(org, false);
+            if( !index.needsRefresh(provider.getLongProperty(MachineImageIndex.REFRESH_INTERVAL, 30000L)) ) {
+                return Futures.immediateFuture(index.getImages());
+            }
+            full = (!index.isPopulated() || index.needsRevalidation(provider.getLongProperty(MachineImageIndex.REVALIDATE_INTERVAL, 600000L)));
+            ctx = provider.getSharedCloudClient();
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        try {
+            if( QueryPager.isEnabled(provider) ) {
+                crawled = crawlByQueryAsync(ctx, org, false, index, full);
+            }
+            else {
+                crawled = crawlAsync(ctx, org, false, index, full);
+            }
+        }
+        catch( RuntimeException e ) {
+            crawled = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(crawled, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignore) {
+                ctx.close();
+                result.set(index.getImages());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                ctx.close();
+                if( t instanceof CloudException ) {
+                    result.setException(t);
+                    return;
+                }
+                logger.error("Error looking up images: " + t.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    t.printStackTrace();
+                }
+                result.setException(new CloudException(t));
+            }
+        });
+        return result;
+    }
+    
+    private @Nonnull MachineImageIndex getIndex(@Nonnull AdminOrg org, boolean published) throws CloudException {
+        // query mode keys the index by template rather than catalog item, so each mode keeps its own
+        return MachineImageIndex.getInstance(provider.getContextKey() + "|" + org.getHref() + "|" + published + (QueryPager.isEnabled(provider) ? "|query" : ""));
+    }
+    
     private Iterable<MachineImage> listMachineImages(AdminOrg org, boolean published) throws CloudException, InternalException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        MachineImageIndex index = getIndex(org, published);
+        
+        synchronized( index ) {
+            if( index.needsRefresh(provider.getLongProperty(MachineImageIndex.REFRESH_INTERVAL, 30000L)) ) {
+                boolean full = (!index.isPopulated() || index.needsRevalidation(provider.getLongProperty(MachineImageIndex.REVALIDATE_INTERVAL, 600000L)));
+                
+                if( QueryPager.isEnabled(provider) ) {
+                    crawlByQuery(org, published, index, full);
+                }
+                else {
+                    crawl(org, published, index, full);
+                }
+            }
+        }
+        return index.getImages();
+    }
+    
+    private void crawl(final AdminOrg org, boolean published, MachineImageIndex index, boolean full) throws CloudException, InternalException {
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
         try {
             try {
                 Set<Reference> refs = org.getCatalogs();
+                ArrayList<URI> current = new ArrayList<URI>();
                 
-                if( refs == null ) {
-                    return Collections.emptyList();
-                }
-                ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+                if( refs != null ) {
+                    List<Catalog> catalogs = FetchPipeline.fetchAll(provider, refs, new FetchPipeline.Fetcher<Reference,Catalog>() {
+                        @Override
+                        public @Nonnull ListenableFuture<? extends Catalog> fetch(@Nonnull Reference ref) {
+                            return ctx.getAsyncApi().getCatalogClient().getCatalog(ref.getHref());
+                        }
+                    });
 
-                for( Reference type : refs ) {
-                    Catalog c = ctx.getApi().getCatalogClient().getCatalog(type.getHref());
+                    for( Catalog c : catalogs ) {
+                        if( c != null && (c.isPublished() == published) ) {
+                            for( Reference itemType : c.getCatalogItems() ) {
+                                current.add(itemType.getHref());
+                            }
+                        }
+                    }
+                }
+                Set<URI> known = (full ? Collections.<URI>emptySet() : index.getKnownItems());
+                ArrayList<URI> added = new ArrayList<URI>();
+                
+                for( URI href : current ) {
+                    if( !known.contains(href) ) {
+                        added.add(href);
+                    }
+                }
+                List<CatalogItem> items = FetchPipeline.fetchAll(provider, added, new FetchPipeline.Fetcher<URI,CatalogItem>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends CatalogItem> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getCatalogClient().getCatalogItem(href);
+                    }
+                });
+                HashMap<URI,MachineImage> fetched = new HashMap<URI,MachineImage>();
+                ArrayList<URI> templateItems = new ArrayList<URI>();
+                ArrayList<URI> templates = new ArrayList<URI>();
+                
+                for( int i=0; i<added.size(); i++ ) {
+                    CatalogItem item = items.get(i);
                     
+                    fetched.put(added.get(i), null);
+                    if( item != null && item.getEntity().getType().equals(VCloudDirectorMediaType.VAPP_TEMPLATE) ) {
+                        templateItems.add(added.get(i));
+                        templates.add(item.getEntity().getHref());
+                    }
+                }
+                List<VAppTemplate> results = FetchPipeline.fetchAll(provider, templates, new FetchPipeline.Fetcher<URI,VAppTemplate>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends VAppTemplate> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getVAppTemplateClient().getVAppTemplate(href);
+                    }
+                }, AuthorizationException.class);
+                
+                for( int i=0; i<templateItems.size(); i++ ) {
+                    fetched.put(templateItems.get(i), toMachineImage(ctx, org, results.get(i)));
+                }
+                index.update(current, fetched, full);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error looking up images in " + provider.getContext().getRegionId() + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #crawl}: catalogs, new catalog items and their templates are fetched
+     * one level after another through the async client.
+     */
+    private @Nonnull ListenableFuture<Void> crawlAsync(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final AdminOrg org, final boolean published, @Nonnull final MachineImageIndex index, final boolean full) {
+        final ArrayList<URI> current = new ArrayList<URI>();
+        final ArrayList<URI> added = new ArrayList<URI>();
+        final HashMap<URI,MachineImage> fetched = new HashMap<URI,MachineImage>();
+        final ArrayList<URI> templateItems = new ArrayList<URI>();
+        Set<Reference> refs = org.getCatalogs();
+        ListenableFuture<List<Catalog>> catalogs;
+
+        if( refs == null ) {
+            catalogs = Futures.immediateFuture(Collections.<Catalog>emptyList());
+        }
+        else {
+            catalogs = FetchPipeline.fetchAllAsync(provider, refs, new FetchPipeline.Fetcher<Reference,Catalog>() {
+                @Override
+                public @Nonnull ListenableFuture<? extends Catalog> fetch(@Nonnull Reference ref) {
+                    return ctx.getAsyncApi().getCatalogClient().getCatalog(ref.getHref());
+                }
+            });
+        }
+        ListenableFuture<List<CatalogItem>> items = Futures.transform(catalogs, new AsyncFunction<List<Catalog>,List<CatalogItem>>() {
+            @Override
+            public ListenableFuture<List<CatalogItem>> apply(List<Catalog> catalogs) {
+                for( Catalog c : catalogs ) {
                     if( c != null && (c.isPublished() == published) ) {
                         for( Reference itemType : c.getCatalogItems() ) {
-                            CatalogItem item = ctx.getApi().getCatalogClient().getCatalogItem(itemType.getHref());
-                            
-                            if( item.getEntity().getType().equals(VCloudDirectorMediaType.VAPP_TEMPLATE) ) {
-                                try {
-                                    VAppTemplate template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(item.getEntity().getHref());
-                                    MachineImage image = toMachineImage(ctx, org, template);
-                                    
-                                    if( image != null ) {
-                                        images.add(image);
-                                    } 
-                                }
-                                catch( AuthorizationException ignore ) {
-                                    // ignore
-                                }
-                           }
+                            current.add(itemType.getHref());
                         }
                     }
                 }
-                return images;
+                Set<URI> known = (full ? Collections.<URI>emptySet() : index.getKnownItems());
+
+                for( URI href : current ) {
+                    if( !known.contains(href) ) {
+                        added.add(href);
+                    }
+                }
+                return FetchPipeline.fetchAllAsync(provider, added, new FetchPipeline.Fetcher<URI,CatalogItem>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends CatalogItem> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getCatalogClient().getCatalogItem(href);
+                    }
+                });
+            }
+        });
+        ListenableFuture<List<VAppTemplate>> templates = Futures.transform(items, new AsyncFunction<List<CatalogItem>,List<VAppTemplate>>() {
+            @Override
+            public ListenableFuture<List<VAppTemplate>> apply(List<CatalogItem> items) {
+                ArrayList<URI> templates = new ArrayList<URI>();
+
+                for( int i=0; i<added.size(); i++ ) {
+                    CatalogItem item = items.get(i);
+
+                    fetched.put(added.get(i), null);
+                    if( item != null && item.getEntity().getType().equals(VCloudDirectorMediaType.VAPP_TEMPLATE) ) {
+                        templateItems.add(added.get(i));
+                        templates.add(item.getEntity().getHref());
+                    }
+                }
+                return FetchPipeline.fetchAllAsync(provider, templates, new FetchPipeline.Fetcher<URI,VAppTemplate>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends VAppTemplate> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getVAppTemplateClient().getVAppTemplate(href);
+                    }
+                }, AuthorizationException.class);
+            }
+        });
+        return Futures.transform(templates, new AsyncFunction<List<VAppTemplate>,Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<VAppTemplate> results) throws CloudException {
+                for( int i=0; i<templateItems.size(); i++ ) {
+                    fetched.put(templateItems.get(i), toMachineImage(ctx, org, results.get(i)));
+                }
+                index.update(current, fetched, full);
+                return Futures.immediateFuture(null);
+            }
+        }, VCloudDirector.getCallbackExecutor());
+    }
+
+    /**
+     * Finds the org's catalogued templates from paged query records and fetches only the templates the index
+     * has not seen before.
+     */
+    private void crawlByQuery(final AdminOrg org, boolean published, MachineImageIndex index, boolean full) throws CloudException, InternalException {
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        
+        try {
+            try {
+                ArrayList<URI> current = new ArrayList<URI>();
+                
+                for( QueryResultVAppTemplateRecord record : QueryPager.queryAll(provider, ctx, QueryPager.VAPP_TEMPLATE, null, QueryResultVAppTemplateRecord.class) ) {
+                    if( record.getCatalogName() != null && (Boolean.TRUE.equals(record.isPublished()) == published) ) {
+                        current.add(record.getHref());
+                    }
+                }
+                Set<URI> known = (full ? Collections.<URI>emptySet() : index.getKnownItems());
+                ArrayList<URI> added = new ArrayList<URI>();
+                
+                for( URI href : current ) {
+                    if( !known.contains(href) ) {
+                        added.add(href);
+                    }
+                }
+                List<VAppTemplate> results = FetchPipeline.fetchAll(provider, added, new FetchPipeline.Fetcher<URI,VAppTemplate>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends VAppTemplate> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getVAppTemplateClient().getVAppTemplate(href);
+                    }
+                }, AuthorizationException.class);
+                HashMap<URI,MachineImage> fetched = new HashMap<URI,MachineImage>();
+                
+                for( int i=0; i<added.size(); i++ ) {
+                    fetched.put(added.get(i), toMachineImage(ctx, org, results.get(i)));
+                }
+                index.update(current, fetched, full);
             }
             catch( RuntimeException e ) {
-                logger.error("Error looking up images in " + provider.getContext().getRegionId() + ": " + e.getMessage());
+                logger.error("Error querying images in " + provider.getContext().getRegionId() + ": " + e.getMessage());
                 if( logger.isDebugEnabled() ) {
                     e.printStackTrace();
                 }
@@ -409,6 +706,50 @@ public class VAppTemplateSupport implements MachineImageSupport {
         }
     }
 
+    /**
+     * Non-blocking counterpart of {@link #crawlByQuery}.
+     */
+    private @Nonnull ListenableFuture<Void> crawlByQueryAsync(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final AdminOrg org, final boolean published, @Nonnull final MachineImageIndex index, final boolean full) {
+        final ArrayList<URI> current = new ArrayList<URI>();
+        final ArrayList<URI> added = new ArrayList<URI>();
+        ListenableFuture<List<QueryResultVAppTemplateRecord>> records = QueryPager.queryAllAsync(provider, ctx, QueryPager.VAPP_TEMPLATE, null, QueryResultVAppTemplateRecord.class);
+        ListenableFuture<List<VAppTemplate>> templates = Futures.transform(records, new AsyncFunction<List<QueryResultVAppTemplateRecord>,List<VAppTemplate>>() {
+            @Override
+            public ListenableFuture<List<VAppTemplate>> apply(List<QueryResultVAppTemplateRecord> records) {
+                for( QueryResultVAppTemplateRecord record : records ) {
+                    if( record.getCatalogName() != null && (Boolean.TRUE.equals(record.isPublished()) == published) ) {
+                        current.add(record.getHref());
+                    }
+                }
+                Set<URI> known = (full ? Collections.<URI>emptySet() : index.getKnownItems());
+
+                for( URI href : current ) {
+                    if( !known.contains(href) ) {
+                        added.add(href);
+                    }
+                }
+                return FetchPipeline.fetchAllAsync(provider, added, new FetchPipeline.Fetcher<URI,VAppTemplate>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends VAppTemplate> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getVAppTemplateClient().getVAppTemplate(href);
+                    }
+                }, AuthorizationException.class);
+            }
+        });
+        return Futures.transform(templates, new AsyncFunction<List<VAppTemplate>,Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<VAppTemplate> results) throws CloudException {
+                HashMap<URI,MachineImage> fetched = new HashMap<URI,MachineImage>();
+
+                for( int i=0; i<added.size(); i++ ) {
+                    fetched.put(added.get(i), toMachineImage(ctx, org, results.get(i)));
+                }
+                index.update(current, fetched, full);
+                return Futures.immediateFuture(null);
+            }
+        }, VCloudDirector.getCallbackExecutor());
+    }
+
     @Override
     public Iterable<MachineImage> listMachineImagesOwnedBy(String accountId) throws CloudException, InternalException {
         if( accountId == null ) {
@@ -445,20 +786,13 @@ public class VAppTemplateSupport implements MachineImageSupport {
         try {
             try {
                 VAppTemplate template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, machineImageId));
-                boolean busy = true;
                 
-                while( busy ) {
-                    try { Thread.sleep(1500L); }
-                    catch( InterruptedException e ) { }
-                    template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, machineImageId));
-                    busy = false;
-                    for( Task task : template.getTasks() ) {
-                        if( task.getStatus().equals(Task.Status.QUEUED) || task.getStatus().equals(Task.Status.RUNNING) ) {
-                            busy = true;
-                        }
-                    }
+                template = provider.waitForIdle(ctx, template);
+                if( template == null ) {
+                    throw new CloudException("No such template: " + machineImageId);
                 }
                 provider.waitForTask(ctx.getApi().getVAppTemplateClient().deleteVappTemplate(template.getHref()));
+                getIndex(provider.getOrg(), false).expire();
             }
             catch( RuntimeException e ) {
                 logger.error("Error deleting " + machineImageId + ": " + e.getMessage());
@@ -478,32 +812,23 @@ public class VAppTemplateSupport implements MachineImageSupport {
         if( !architecture.equals(Architecture.I64) ) {
             return Collections.emptyList();
         }
+        AdminOrg org = provider.getOrg();
+        MachineImageIndex index = getIndex(org, false);
+        
+        if( index.isPopulated() ) {
+            listMachineImages(org, false);
+            return index.search(keyword, platform, null);
+        }
         ArrayList<MachineImage> results = new ArrayList<MachineImage>();
         
-        for( MachineImage image : listMachineImages() ) {
+        for( MachineImage image : listMachineImages(org, false) ) {
             if( keyword != null ) {
                 if( !image.getProviderMachineImageId().contains(keyword) && !image.getName().contains(keyword) && !image.getDescription().contains(keyword) ) {
                     continue;
                 }
             }
-            if( platform != null ) {
-                Platform p = image.getPlatform();
-                
-                if( !platform.equals(p) ) {
-                    if( platform.isWindows() ) {
-                        if( !p.isWindows() ) {
-                            continue;
-                        }
-                    }
-                    else if( platform.equals(Platform.UNIX) ){
-                        if( !p.isUnix() ) {
-                            continue;
-                        }
-                    }
-                    else {
-                        continue;
-                    }
-                }
+            if( platform != null && !MachineImageIndex.matches(platform, image.getPlatform()) ) {
+                continue;
             }
             results.add(image);
         }
@@ -535,7 +860,7 @@ public class VAppTemplateSupport implements MachineImageSupport {
         throw new OperationNotSupportedException("Not supported");
     }
 
-    private MachineImage toMachineImage(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, Org org, VAppTemplate template) {
+    MachineImage toMachineImage(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, Org org, VAppTemplate template) throws CloudException {
         if( template == null) {
             return null;
         }
@@ -553,15 +878,103 @@ public class VAppTemplateSupport implements MachineImageSupport {
         image.setProviderOwnerId(org.getName());
         image.setProviderRegionId(provider.getContext().getRegionId());
         image.setType(MachineImageType.VOLUME);
-        image.setArchitecture(getArchitecture(template));
+        TemplateFacts facts = cacheTemplateFacts(template);
+        
+        image.setArchitecture(facts.getArchitecture());
         image.setSoftware("");
         image.setTags(new HashMap<String,String>());
         
         image.setCurrentState(MachineImageState.ACTIVE);
-        image.setPlatform(getPlatform(template));
+        image.setPlatform(facts.getPlatform());
         return image;
     }
     
+    /**
+     * Resolves the architecture and platform of a template, answering from a bounded LRU cache when possible.
+     * Templates that vCloud Director reports as missing or forbidden are cached as misses for a shorter period
+     * so unknown ids are not fetched on every listing. Any other failure is not cached.
+     * @param ctx the client through which the template is fetched on a cache miss
+     * @param templateId the provider ID of the template
+     * @return the facts about the template
+     * @throws CloudException the template could not be fetched for a reason other than not existing
+     */
+    public @Nonnull TemplateFacts getTemplateFacts(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull String templateId) throws CloudException {
+        URI href;
+
+        try {
+            href = provider.toHref(ctx, templateId);
+        }
+        catch( RuntimeException e ) {
+            return new TemplateFacts(false, null, null);
+        }
+        String key = href.toASCIIString();
+        TemplateFacts facts = getTemplateFactsCache().get(key);
+
+        if( facts != null ) {
+            long ttl = (facts.exists ? provider.getLongProperty(TEMPLATE_CACHE_TTL, 600000L) : provider.getLongProperty(TEMPLATE_CACHE_MISS_TTL, 120000L));
+
+            if( (System.currentTimeMillis() - facts.fetched) < ttl ) {
+                return facts;
+            }
+        }
+        VAppTemplate template;
+
+        try {
+            template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(href);
+        }
+        catch( AuthorizationException e ) {
+            // vCloud Director answers 403 for templates this account cannot see
+            template = null;
+        }
+        catch( ResourceNotFoundException e ) {
+            template = null;
+        }
+        catch( RuntimeException e ) {
+            logger.error("Error looking up template " + templateId + ": " + e.getMessage());
+            if( logger.isDebugEnabled() ) {
+                e.printStackTrace();
+            }
+            throw new CloudException(e);
+        }
+        if( template == null ) {
+            facts = new TemplateFacts(false, null, null);
+            cacheTemplateFacts(key, facts);
+            return facts;
+        }
+        return cacheTemplateFacts(template);
+    }
+
+    private @Nonnull TemplateFacts cacheTemplateFacts(@Nonnull VAppTemplate template) throws CloudException {
+        TemplateFacts facts = new TemplateFacts(true, getArchitecture(template), getPlatform(template));
+
+        cacheTemplateFacts(template.getHref().toASCIIString(), facts);
+        return facts;
+    }
+
+    private void cacheTemplateFacts(@Nonnull String key, @Nonnull TemplateFacts facts) throws CloudException {
+        getTemplateFactsCache().put(key, facts);
+    }
+
+    /**
+     * @return the template facts of the current account, since what a template looks like, and whether it can be
+     * seen at all, depends on who asks
+     * @throws CloudException no context was set for this request
+     */
+    private @Nonnull Map<String,TemplateFacts> getTemplateFactsCache() throws CloudException {
+        String contextKey = provider.getContextKey();
+        Map<String,TemplateFacts> cache = templateFacts.get(contextKey);
+
+        if( cache == null ) {
+            Map<String,TemplateFacts> c = Collections.synchronizedMap(new TemplateFactsCache((int)Math.max(1L, provider.getLongProperty(TEMPLATE_CACHE_SIZE, 1000L))));
+
+            cache = templateFacts.putIfAbsent(contextKey, c);
+            if( cache == null ) {
+                cache = c;
+            }
+        }
+        return cache;
+    }
+
     public Architecture getArchitecture(VAppTemplate template) {
         String str = template.getName() + " " + template.getDescription();
         
@@ -576,7 +989,8 @@ public class VAppTemplateSupport implements MachineImageSupport {
     public Platform getPlatform(VAppTemplate template) {
         String osType = null;
         
-        OperatingSystemSection osSec = getSection(template, OperatingSystemSection.class);
+        // templates without an operating system section fall back to guessing from the name
+        OperatingSystemSection osSec = findSection(template, OperatingSystemSection.class);
         if( osSec != null ) {
             osType = osSec.getOsType();
         }
@@ -587,7 +1001,22 @@ public class VAppTemplateSupport implements MachineImageSupport {
     }
 
     public static <S extends SectionType> S getSection(VAppTemplate template, Class<S> sectionClass) {
-        S section = (S) Iterables.find(template.getSections(), Predicates.instanceOf(sectionClass));
+        S section = findSection(template, sectionClass);
+
+        if( section == null ) {
+            throw new NoSuchElementException("No " + sectionClass.getSimpleName() + " in " + template.getHref());
+        }
         return section;
     }
+
+    static private @Nullable <S extends SectionType> S findSection(@Nonnull VAppTemplate template, @Nonnull Class<S> sectionClass) {
+        if( template.getSections() != null ) {
+            for( SectionType section : template.getSections() ) {
+                if( sectionClass.isInstance(section) ) {
+                    return sectionClass.cast(section);
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -37,4 +37,8 @@ public class VCloudDirectorComputeServices extends AbstractComputeServices {
     public @Nonnull VmSupport getVirtualMachineSupport() {
         return new VmSupport(provider);
     }
+    
+    public @Nonnull VmAsyncSupport getVirtualMachineAsyncSupport() {
+        return new VmAsyncSupport(provider);
+    }
 }
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Remembers individual virtual machine lookups for a few seconds so that frequent status checks of the same
+ * VM do not each cost two GETs. Concurrent lookups of a VM that is not cached share a single load. Lookups
+ * that found nothing are cached as well. Operations that change a VM's state invalidate its entry, and a
+ * load that was in progress when the entry was invalidated is not cached. One cache is kept per account;
+ * entries live for <code>vcloud.vmCache.ttlMillis</code> (default 5 seconds), and expired entries are purged
+ * once the cache holds more than <code>vcloud.vmCache.maxSize</code> (default 10,000).
+ */
+public class VirtualMachineCache {
+    static public final String TTL      = "vcloud.vmCache.ttlMillis";
+    static public final String MAX_SIZE = "vcloud.vmCache.maxSize";
+
+    static public interface Loader {
+        public @Nullable VirtualMachine load(@Nonnull String vmId) throws CloudException, InternalException;
+    }
+
+    static private final ConcurrentHashMap<String,VirtualMachineCache> caches = new ConcurrentHashMap<String,VirtualMachineCache>();
+
+    static public @Nonnull VirtualMachineCache getInstance(@Nonnull String key) {
+        VirtualMachineCache cache = caches.get(key);
+
+        if( cache == null ) {
+            cache = new VirtualMachineCache();
+            VirtualMachineCache existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    static private class Entry {
+        private final VirtualMachine vm;
+        private final long           loaded = System.currentTimeMillis();
+
+        Entry(@Nullable VirtualMachine vm) { this.vm = vm; }
+    }
+
+    private final ConcurrentHashMap<String,Entry>                         entries = new ConcurrentHashMap<String,Entry>();
+    private final ConcurrentHashMap<String,SettableFuture<VirtualMachine>> loading = new ConcurrentHashMap<String,SettableFuture<VirtualMachine>>();
+
+    private VirtualMachineCache() { }
+
+    /**
+     * @param vmId the VM to look up
+     * @param ttl how long a cached lookup remains valid, in milliseconds
+     * @param maxSize the number of entries above which expired entries are purged
+     * @param loader loads the VM when there is no valid entry and no load already in progress
+     * @return the VM, or <code>null</code> if it does not exist
+     * @throws CloudException the load failed
+     * @throws InternalException the load failed
+     */
+    public @Nullable VirtualMachine get(@Nonnull String vmId, long ttl, int maxSize, @Nonnull Loader loader) throws CloudException, InternalException {
+        Entry entry = entries.get(vmId);
+
+        if( entry != null && (System.currentTimeMillis() - entry.loaded) < ttl ) {
+            return entry.vm;
+        }
+        SettableFuture<VirtualMachine> future = SettableFuture.create();
+        SettableFuture<VirtualMachine> existing = loading.putIfAbsent(vmId, future);
+
+        if( existing != null ) {
+            return await(existing);
+        }
+        try {
+            VirtualMachine vm = loader.load(vmId);
+
+            // only cache the result if nobody invalidated the VM while it was loading
+            if( loading.remove(vmId, future) ) {
+                entries.put(vmId, new Entry(vm));
+                if( entries.size() > maxSize ) {
+                    purge(ttl);
+                }
+            }
+            future.set(vm);
+            return vm;
+        }
+        catch( CloudException e ) {
+            future.setException(e);
+            throw e;
+        }
+        catch( InternalException e ) {
+            future.setException(e);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            future.setException(e);
+            throw e;
+        }
+        finally {
+            loading.remove(vmId, future);
+        }
+    }
+
+    private @Nullable VirtualMachine await(@Nonnull SettableFuture<VirtualMachine> future) throws CloudException, InternalException {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for a virtual machine lookup");
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new CloudException(cause);
+        }
+    }
+
+    private void purge(long ttl) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            if( (now - it.next().getValue().loaded) >= ttl ) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops any cached lookup of a VM, including a load that is still in progress.
+     * @param vmId the VM whose state has changed
+     */
+    public void invalidate(@Nonnull String vmId) {
+        loading.remove(vmId);
+        entries.remove(vmId);
+    }
+
+    public void invalidate() {
+        loading.clear();
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
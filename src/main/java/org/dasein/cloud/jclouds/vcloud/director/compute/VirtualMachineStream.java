@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.jclouds.vcloud.director.FetchPipeline;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Reference;
+import org.jclouds.vcloud.director.v1_5.domain.VApp;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Lists virtual machines a window of vApps at a time. Only the vApp references are gathered up front; each
+ * window is fetched when the previous one starts being consumed, so at most two windows of jclouds objects
+ * are held at once and callers see the first VMs as soon as the first window arrives. Each window borrows
+ * its own context and hands it back when its requests complete, so abandoning an iteration part way does
+ * not leak a context. Errors fetching or converting a window surface from the iterator as a
+ * {@link RuntimeException} whose cause is the {@link CloudException}.
+ */
+public class VirtualMachineStream implements Iterable<VirtualMachine> {
+    static public final String WINDOW_SIZE = "vcloud.listing.windowSize";
+
+    private final VCloudDirector  provider;
+    private final VmSupport       support;
+    private final List<Reference> refs;
+    private final int             windowSize;
+
+    VirtualMachineStream(@Nonnull VCloudDirector provider, @Nonnull VmSupport support, @Nonnull List<Reference> refs) {
+        this.provider = provider;
+        this.support = support;
+        this.refs = refs;
+        this.windowSize = (int)Math.max(1L, provider.getLongProperty(WINDOW_SIZE, 100L));
+    }
+
+    /**
+     * @return the number of vApps the stream will fetch
+     */
+    public int getVAppCount() {
+        return refs.size();
+    }
+
+    @Override
+    public @Nonnull Iterator<VirtualMachine> iterator() {
+        return new Iterator<VirtualMachine>() {
+            private int                          nextWindow = 0;
+            private ListenableFuture<List<VApp>> prefetched = fetch(0);
+            private Iterator<VirtualMachine>     current = Collections.<VirtualMachine>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while( !current.hasNext() ) {
+                    if( prefetched == null ) {
+                        return false;
+                    }
+                    ListenableFuture<List<VApp>> window = prefetched;
+
+                    nextWindow++;
+                    prefetched = fetch(nextWindow);
+                    current = convert(window).iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public VirtualMachine next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private @Nullable ListenableFuture<List<VApp>> fetch(int window) {
+        int start = window * windowSize;
+
+        if( start >= refs.size() ) {
+            return null;
+        }
+        List<Reference> keys = refs.subList(start, Math.min(refs.size(), start + windowSize));
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx;
+
+        try {
+            ctx = provider.getCloudClient();
+        }
+        catch( CloudException e ) {
+            throw new RuntimeException(e);
+        }
+        ListenableFuture<List<VApp>> future = FetchPipeline.fetchAllAsync(provider, keys, new FetchPipeline.Fetcher<Reference,VApp>() {
+            @Override
+            public @Nonnull ListenableFuture<? extends VApp> fetch(@Nonnull Reference ref) {
+                return ctx.getAsyncApi().getVAppClient().getVApp(ref.getHref());
+            }
+        });
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ctx.close();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private @Nonnull List<VirtualMachine> convert(@Nonnull ListenableFuture<List<VApp>> window) {
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+        try {
+            RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+
+            try {
+                for( VApp app : window.get() ) {
+                    if( app != null ) {
+                        vms.addAll(support.toVirtualMachines(ctx, app));
+                    }
+                }
+            }
+            finally {
+                ctx.close();
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(new CloudException("Interrupted while listing virtual machines"));
+        }
+        catch( ExecutionException e ) {
+            throw new RuntimeException(e.getCause() instanceof CloudException ? e.getCause() : new CloudException(e.getCause()));
+        }
+        catch( CloudException e ) {
+            throw new RuntimeException(e);
+        }
+        catch( InternalException e ) {
+            throw new RuntimeException(new CloudException(e));
+        }
+        return vms;
+    }
+}
@@ -0,0 +1,592 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.compute;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.jclouds.vcloud.director.DataCenterTopology;
+import org.dasein.cloud.jclouds.vcloud.director.FetchPipeline;
+import org.dasein.cloud.jclouds.vcloud.director.TaskTracker;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.dasein.cloud.network.VLAN;
+import org.jclouds.rest.RestContext;
+import org.jclouds.vcloud.director.v1_5.VCloudDirectorMediaType;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
+import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
+import org.jclouds.vcloud.director.v1_5.domain.Reference;
+import org.jclouds.vcloud.director.v1_5.domain.ResourceEntity.Status;
+import org.jclouds.vcloud.director.v1_5.domain.Task;
+import org.jclouds.vcloud.director.v1_5.domain.VApp;
+import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
+import org.jclouds.vcloud.director.v1_5.domain.Vdc;
+import org.jclouds.vcloud.director.v1_5.domain.Vm;
+import org.jclouds.vcloud.director.v1_5.domain.params.DeployVAppParams;
+import org.jclouds.vcloud.director.v1_5.domain.params.UndeployVAppParams;
+import org.jclouds.vcloud.director.v1_5.domain.section.VirtualHardwareSection;
+import org.jclouds.vcloud.director.v1_5.predicates.ReferencePredicates;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Non-blocking counterpart of {@link VmSupport}. Every REST call goes through the jclouds async client and
+ * every task is followed by the shared {@link TaskTracker}, so an operation holds no thread while it waits on
+ * vCloud Director. The VLAN index is brought up to date through the async client before vApps are mapped into
+ * Dasein objects, and the mapping itself runs on {@link VCloudDirector#getMappingExecutor()} because template facts
+ * that are not cached yet still cost a blocking request.
+ * Failures are reported through the returned future as {@link CloudException} or {@link InternalException}.
+ */
+public class VmAsyncSupport {
+    static private final Logger logger = Logger.getLogger(VmAsyncSupport.class);
+
+    /**
+     * The number of times a vApp deletion is retried while vCloud Director still reports the vApp as busy.
+     */
+    static private final int DELETE_ATTEMPTS = 60;
+
+    private interface Operation<T> {
+        public @Nonnull ListenableFuture<T> start(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException, InternalException;
+    }
+
+    private VCloudDirector provider;
+
+    VmAsyncSupport(@Nonnull VCloudDirector provider) { this.provider = provider; }
+
+    public @Nonnull ListenableFuture<Void> boot(@Nonnull final String vmId) {
+        return invalidateWhenDone(vmId, run("booting " + vmId, new Operation<Void>() {
+            @Override
+            public @Nonnull ListenableFuture<Void> start(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException {
+                return whenDone(ctx.getAsyncApi().getVAppClient().powerOn(provider.toHref(ctx, vmId)));
+            }
+        }));
+    }
+
+    public @Nonnull ListenableFuture<Void> pause(@Nonnull final String vmId) {
+        return invalidateWhenDone(vmId, run("pausing " + vmId, new Operation<Void>() {
+            @Override
+            public @Nonnull ListenableFuture<Void> start(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException {
+                return whenDone(ctx.getAsyncApi().getVAppClient().powerOff(provider.toHref(ctx, vmId)));
+            }
+        }));
+    }
+
+    /**
+     * Launches a VM by composing a vApp from the template in a single request, resizing it to the product and
+     * deploying it. This always follows the compose path of {@link VmSupport#launch}, whatever the configured
+     * launch mode, because it is the one that needs the fewest round trips.
+     * @param fromMachineImageId the template from which the VM is launched
+     * @param product the product defining the size of the VM
+     * @param dataCenterId the VDC in which to launch, or <code>null</code> for the template's VDC
+     * @param name the name of the VM
+     * @param inVlanId the network to which the VM is attached, or <code>null</code> for the first network in the org
+     * @return a future completing with the launched VM
+     */
+    public @Nonnull ListenableFuture<VirtualMachine> launch(@Nonnull final String fromMachineImageId, @Nonnull final VirtualMachineProduct product, @Nullable final String dataCenterId, @Nonnull final String name, @Nullable final String inVlanId) {
+        return run("launching from " + fromMachineImageId, new Operation<VirtualMachine>() {
+            @Override
+            public @Nonnull ListenableFuture<VirtualMachine> start(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException, InternalException {
+                final VmSupport support = new VmSupport(provider);
+                // the product id is parsed, not looked up
+                final VirtualMachineProduct size = support.getProduct(product.getProductId());
+
+                if( size == null ) {
+                    throw new CloudException("No such product: " + product.getProductId());
+                }
+                final String vmName = provider.validateName(name);
+                final ListenableFuture<VAppTemplate> template = ctx.getAsyncApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, fromMachineImageId));
+
+                ListenableFuture<VApp> composed = Futures.transform(getLaunchNetwork(fromMachineImageId, inVlanId), new AsyncFunction<VLAN,VApp>() {
+                    @Override
+                    public ListenableFuture<VApp> apply(final VLAN network) {
+                        return Futures.transform(template, new AsyncFunction<VAppTemplate,VApp>() {
+                            @Override
+                            public ListenableFuture<VApp> apply(VAppTemplate template) throws CloudException {
+                                if( template == null ) {
+                                    throw new CloudException("No such template: " + fromMachineImageId);
+                                }
+                                URI vdcURI = (dataCenterId == null ? support.getVdcHref(template) : provider.toHref(ctx, dataCenterId));
+
+                                return ctx.getAsyncApi().getVdcClient().composeVApp(vdcURI, support.toComposeParams(ctx, template, fromMachineImageId, vmName, network));
+                            }
+                        });
+                    }
+                });
+                ListenableFuture<VApp> resized = Futures.transform(composed, new AsyncFunction<VApp,VApp>() {
+                    @Override
+                    public ListenableFuture<VApp> apply(VApp app) throws CloudException {
+                        if( app == null ) {
+                            throw new CloudException("No vApp was composed for " + fromMachineImageId);
+                        }
+                        return Futures.transform(idle(ctx, app.getHref()), new AsyncFunction<VApp,VApp>() {
+                            @Override
+                            public ListenableFuture<VApp> apply(VApp app) throws CloudException {
+                                return resize(ctx, app, size);
+                            }
+                        });
+                    }
+                });
+                ListenableFuture<VApp> deployed = Futures.transform(resized, new AsyncFunction<VApp,VApp>() {
+                    @Override
+                    public ListenableFuture<VApp> apply(final VApp app) throws CloudException {
+                        DeployVAppParams deploy = DeployVAppParams.builder().powerOn().build();
+
+                        return Futures.transform(whenDone(ctx.getAsyncApi().getVAppClient().deploy(app.getHref(), deploy)), new AsyncFunction<Void,VApp>() {
+                            @Override
+                            public ListenableFuture<VApp> apply(Void ignore) {
+                                return ctx.getAsyncApi().getVAppClient().getVApp(app.getHref());
+                            }
+                        });
+                    }
+                });
+                ListenableFuture<List<VApp>> apps = Futures.transform(deployed, new Function<VApp,List<VApp>>() {
+                    @Override
+                    public List<VApp> apply(VApp app) {
+                        return Collections.singletonList(app);
+                    }
+                });
+
+                return Futures.transform(toVirtualMachines(ctx, apps), new Function<List<VirtualMachine>,VirtualMachine>() {
+                    @Override
+                    public VirtualMachine apply(List<VirtualMachine> vms) {
+                        return (vms.isEmpty() ? null : vms.get(0));
+                    }
+                });
+            }
+        });
+    }
+
+    public @Nonnull ListenableFuture<List<VirtualMachine>> listVirtualMachines() {
+        return run("listing virtual machines", new Operation<List<VirtualMachine>>() {
+            @Override
+            public @Nonnull ListenableFuture<List<VirtualMachine>> start(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException {
+                Set<Reference> vdcRefs = provider.getOrg().getVdcs();
+                final DataCenterTopology topology = provider.getDataCenterTopology();
+
+                if( vdcRefs == null ) {
+                    return Futures.immediateFuture(Collections.<VirtualMachine>emptyList());
+                }
+                ListenableFuture<List<Vdc>> vdcs = FetchPipeline.fetchAllAsync(provider, vdcRefs, new FetchPipeline.Fetcher<Reference,Vdc>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends Vdc> fetch(@Nonnull Reference ref) {
+                        return ctx.getAsyncApi().getVdcClient().getVdc(ref.getHref());
+                    }
+                });
+                ListenableFuture<List<VApp>> apps = Futures.transform(vdcs, new AsyncFunction<List<Vdc>,List<VApp>>() {
+                    @Override
+                    public ListenableFuture<List<VApp>> apply(List<Vdc> vdcs) {
+                        ArrayList<Reference> appRefs = new ArrayList<Reference>();
+
+                        topology.update(ctx, vdcs);
+                        for( Vdc vdc : vdcs ) {
+                            if( vdc != null && vdc.getResourceEntities() != null ) {
+                                Iterables.addAll(appRefs, Iterables.filter(vdc.getResourceEntities(), ReferencePredicates.typeEquals(VCloudDirectorMediaType.VAPP)));
+                            }
+                        }
+                        return FetchPipeline.fetchAllAsync(provider, appRefs, new FetchPipeline.Fetcher<Reference,VApp>() {
+                            @Override
+                            public @Nonnull ListenableFuture<? extends VApp> fetch(@Nonnull Reference ref) {
+                                return ctx.getAsyncApi().getVAppClient().getVApp(ref.getHref());
+                            }
+                        });
+                    }
+                });
+                return toVirtualMachines(ctx, apps);
+            }
+        });
+    }
+
+    /**
+     * Powers off the VM and, once no VM in its vApp is running any more, undeploys and deletes the vApp.
+     * @param vmId the VM to terminate
+     * @return a future completing once the VM is gone
+     */
+    public @Nonnull ListenableFuture<Void> terminate(@Nonnull final String vmId) {
+        return invalidateWhenDone(vmId, run("terminating " + vmId, new Operation<Void>() {
+            @Override
+            public @Nonnull ListenableFuture<Void> start(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException {
+                ListenableFuture<Vm> stopped = Futures.transform(ctx.getAsyncApi().getVmClient().getVm(provider.toHref(ctx, vmId)), new AsyncFunction<Vm,Vm>() {
+                    @Override
+                    public ListenableFuture<Vm> apply(final Vm vm) throws CloudException {
+                        if( vm == null ) {
+                            throw new CloudException("No such VM: " + vmId);
+                        }
+                        if( !vm.getStatus().equals(Status.POWERED_ON) ) {
+                            return Futures.immediateFuture(vm);
+                        }
+                        return Futures.transform(whenDone(ctx.getAsyncApi().getVAppClient().powerOff(vm.getHref())), new Function<Void,Vm>() {
+                            @Override
+                            public Vm apply(Void ignore) {
+                                return vm;
+                            }
+                        });
+                    }
+                });
+                return Futures.transform(stopped, new AsyncFunction<Vm,Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(final Vm vm) throws CloudException {
+                        URI parent = vm.getVAppParent().getHref();
+
+                        if( !VCloudDirectorMediaType.VAPP.equals(vm.getVAppParent().getType()) ) {
+                            UndeployVAppParams undeploy = UndeployVAppParams.builder().undeployPowerAction(UndeployVAppParams.PowerAction.POWER_OFF).build();
+
+                            return whenDone(ctx.getAsyncApi().getVAppClient().undeploy(vm.getHref(), undeploy));
+                        }
+                        return Futures.transform(idle(ctx, parent), new AsyncFunction<VApp,Void>() {
+                            @Override
+                            public ListenableFuture<Void> apply(VApp app) throws CloudException {
+                                for( Vm child : app.getChildren().getVms() ) {
+                                    if( child.getStatus().equals(Status.POWERED_ON) ) {
+                                        return Futures.immediateFuture(null);
+                                    }
+                                }
+                                return undeployAndDelete(ctx, app.getHref());
+                            }
+                        });
+                    }
+                });
+            }
+        }));
+    }
+
+    /**
+     * Picks the network for a launch from the VLAN index, which is refreshed through the async client when stale.
+     * A network outside the current org is not in the index and is looked up on the mapping executor instead.
+     */
+    private @Nonnull ListenableFuture<VLAN> getLaunchNetwork(@Nonnull final String fromMachineImageId, @Nullable final String inVlanId) {
+        return Futures.transform(provider.getVlanIndex().getVlansAsync(), new AsyncFunction<List<VLAN>,VLAN>() {
+            @Override
+            public ListenableFuture<VLAN> apply(List<VLAN> vlans) throws CloudException {
+                for( VLAN vlan : vlans ) {
+                    if( inVlanId == null || inVlanId.equals(vlan.getProviderVlanId()) ) {
+                        return Futures.immediateFuture(vlan);
+                    }
+                }
+                if( inVlanId == null ) {
+                    throw new CloudException("No network is available for launching " + fromMachineImageId);
+                }
+                return VCloudDirector.getMappingExecutor().submit(new Callable<VLAN>() {
+                    @Override
+                    public VLAN call() throws CloudException, InternalException {
+                        VLAN network = provider.getNetworkServices().getVlanSupport().getVlan(inVlanId);
+
+                        if( network == null ) {
+                            throw new CloudException("No network is available for launching " + fromMachineImageId);
+                        }
+                        return network;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Maps vApps into virtual machines once the VLAN index is current, so the network lookups made while mapping
+     * are answered from memory. The mapping runs on the mapping executor since template facts that are not
+     * cached yet are still fetched synchronously.
+     */
+    private @Nonnull ListenableFuture<List<VirtualMachine>> toVirtualMachines(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull ListenableFuture<List<VApp>> apps) {
+        ListenableFuture<List<VApp>> ready = Futures.transform(apps, new AsyncFunction<List<VApp>,List<VApp>>() {
+            @Override
+            public ListenableFuture<List<VApp>> apply(final List<VApp> apps) {
+                return Futures.transform(provider.getVlanIndex().getVlansAsync(), new Function<List<VLAN>,List<VApp>>() {
+                    @Override
+                    public List<VApp> apply(List<VLAN> ignore) {
+                        return apps;
+                    }
+                });
+            }
+        }, VCloudDirector.getMappingExecutor());
+
+        return Futures.transform(ready, new Function<List<VApp>,List<VirtualMachine>>() {
+            @Override
+            public List<VirtualMachine> apply(List<VApp> apps) {
+                VmSupport support = new VmSupport(provider);
+                ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+
+                try {
+                    for( VApp app : apps ) {
+                        if( app != null ) {
+                            list.addAll(support.toVirtualMachines(ctx, app));
+                        }
+                    }
+                }
+                catch( CloudException e ) {
+                    throw new MappingException(e);
+                }
+                catch( InternalException e ) {
+                    throw new MappingException(e);
+                }
+                return list;
+            }
+        }, VCloudDirector.getMappingExecutor());
+    }
+
+    private @Nonnull ListenableFuture<Void> undeployAndDelete(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final URI href) throws CloudException {
+        UndeployVAppParams undeploy = UndeployVAppParams.builder().undeployPowerAction(UndeployVAppParams.PowerAction.POWER_OFF).build();
+        final SettableFuture<Void> undeployed = SettableFuture.create();
+
+        // as with the synchronous terminate, a failed undeploy is not fatal since the vApp may not have been deployed
+        Futures.addCallback(whenDone(ctx.getAsyncApi().getVAppClient().undeploy(href, undeploy)), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignore) {
+                undeployed.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Ignoring failed undeploy of " + href + ": " + t.getMessage());
+                }
+                undeployed.set(null);
+            }
+        });
+        return Futures.transform(undeployed, new AsyncFunction<Void,Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Void ignore) throws CloudException {
+                return Futures.transform(idle(ctx, href), new AsyncFunction<VApp,Void>() {
+                    @Override
+                    public ListenableFuture<Void> apply(VApp app) throws CloudException {
+                        SettableFuture<Void> deleted = SettableFuture.create();
+
+                        delete(ctx, href, deleted, 1);
+                        return deleted;
+                    }
+                });
+            }
+        });
+    }
+
+    private void delete(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final URI href, @Nonnull final SettableFuture<Void> result, final int attempt) {
+        ListenableFuture<Void> done;
+
+        try {
+            done = whenDone(ctx.getAsyncApi().getVAppClient().deleteVApp(href));
+        }
+        catch( Throwable t ) {
+            result.setException(t);
+            return;
+        }
+        Futures.addCallback(done, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignore) {
+                result.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if( !(t instanceof IllegalStateException) || attempt >= DELETE_ATTEMPTS ) {
+                    result.setException(t);
+                    return;
+                }
+                // vCloud Director sometimes claims the vApp is still busy right after undeploying it
+                VCloudDirector.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        delete(ctx, href, result, attempt + 1);
+                    }
+                }, 5L, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    private @Nonnull ListenableFuture<VApp> resize(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final VApp app, @Nonnull VirtualMachineProduct product) throws CloudException {
+        VmSupport support = new VmSupport(provider);
+        ArrayList<ListenableFuture<Task>> submitted = new ArrayList<ListenableFuture<Task>>();
+
+        for( Vm vm : app.getChildren().getVms() ) {
+            VirtualHardwareSection hardware = support.toResizedHardware(vm, product);
+
+            if( hardware != null ) {
+                submitted.add(ctx.getAsyncApi().getVmClient().modifyVirtualHardwareSection(vm.getHref(), hardware));
+            }
+        }
+        if( submitted.isEmpty() ) {
+            return Futures.immediateFuture(app);
+        }
+        return Futures.transform(Futures.allAsList(submitted), new AsyncFunction<List<Task>,VApp>() {
+            @Override
+            public ListenableFuture<VApp> apply(List<Task> tasks) throws CloudException {
+                return Futures.transform(provider.trackTasks(tasks), new AsyncFunction<List<Task>,VApp>() {
+                    @Override
+                    public ListenableFuture<VApp> apply(List<Task> ignore) throws CloudException {
+                        return idle(ctx, app.getHref());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fetches a vApp once none of its tasks is queued or running, whether or not those tasks succeed.
+     * @param ctx the client to use
+     * @param href the vApp to fetch
+     * @return a future completing with the idle vApp
+     */
+    private @Nonnull ListenableFuture<VApp> idle(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull final URI href) {
+        return Futures.transform(ctx.getAsyncApi().getVAppClient().getVApp(href), new AsyncFunction<VApp,VApp>() {
+            @Override
+            public ListenableFuture<VApp> apply(VApp app) throws CloudException {
+                if( app == null ) {
+                    throw new CloudException("No such vApp: " + href);
+                }
+                boolean busy = false;
+
+                if( app.getTasks() != null ) {
+                    for( Task task : app.getTasks() ) {
+                        if( TaskTracker.isBusy(task) ) {
+                            busy = true;
+                            break;
+                        }
+                    }
+                }
+                if( !busy ) {
+                    return Futures.immediateFuture(app);
+                }
+                // as with VCloudDirector.waitForIdle, only the end of the tasks matters here, not their outcome
+                return Futures.transform(provider.trackBusyTasks(app.getTasks()), new AsyncFunction<List<Task>,VApp>() {
+                    @Override
+                    public ListenableFuture<VApp> apply(List<Task> ignore) {
+                        return idle(ctx, href);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops the VM from the lookup cache once an operation on it finishes, whether or not it succeeded.
+     */
+    private @Nonnull <T> ListenableFuture<T> invalidateWhenDone(@Nonnull final String vmId, @Nonnull ListenableFuture<T> operation) {
+        operation.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VirtualMachineCache.getInstance(provider.getContextKey()).invalidate(vmId);
+                }
+                catch( CloudException ignore ) {
+                    // no context, so nothing can have been cached for it
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return operation;
+    }
+
+    private @Nonnull ListenableFuture<Void> whenDone(@Nonnull ListenableFuture<Task> submitted) {
+        return Futures.transform(submitted, new AsyncFunction<Task,Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Task task) throws CloudException {
+                if( task == null ) {
+                    return Futures.immediateFuture(null);
+                }
+                return Futures.transform(provider.trackTasks(Collections.singleton(task)), new Function<List<Task>,Void>() {
+                    @Override
+                    public Void apply(List<Task> ignore) {
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Leases the account's shared client for the duration of an operation and translates its failures into Dasein
+     * exceptions. Operations in flight share one session, so their number is not limited by contexts or logins.
+     */
+    private @Nonnull <T> ListenableFuture<T> run(@Nonnull final String description, @Nonnull Operation<T> operation) {
+        final SettableFuture<T> result = SettableFuture.create();
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx;
+        ListenableFuture<T> future;
+
+        try {
+            ctx = provider.getSharedCloudClient();
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        catch( RuntimeException e ) {
+            return Futures.immediateFailedFuture(translate(description, e));
+        }
+        try {
+            future = operation.start(ctx);
+        }
+        catch( Throwable t ) {
+            ctx.close();
+            result.setException(translate(description, t));
+            return result;
+        }
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                ctx.close();
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                ctx.close();
+                result.setException(translate(description, t));
+            }
+        });
+        return result;
+    }
+
+    private @Nonnull Throwable translate(@Nonnull String description, @Nonnull Throwable t) {
+        if( t instanceof MappingException ) {
+            t = t.getCause();
+        }
+        if( t instanceof CloudException || t instanceof InternalException ) {
+            return t;
+        }
+        logger.error("Error " + description + ": " + t.getMessage());
+        if( logger.isDebugEnabled() ) {
+            t.printStackTrace();
+        }
+        return new CloudException(t);
+    }
+
+    /**
+     * Carries a checked exception out of a Guava {@link Function}.
+     */
+    static private class MappingException extends RuntimeException {
+        private static final long serialVersionUID = -1893741552206745620L;
+
+        MappingException(@Nonnull Exception cause) { super(cause); }
+    }
+}
@@ -21,17 +21,25 @@ package org.dasein.cloud.jclouds.vcloud.director.compute;
 import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
+import org.dasein.cloud.AsynchronousTask;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.Tag;
@@ -42,8 +50,10 @@ import org.dasein.cloud.compute.VirtualMachineProduct;
 import org.dasein.cloud.compute.VirtualMachineSupport;
 import org.dasein.cloud.compute.VmState;
 import org.dasein.cloud.compute.VmStatistics;
-import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.jclouds.vcloud.director.FetchPipeline;
+import org.dasein.cloud.jclouds.vcloud.director.OperationExecutor;
+import org.dasein.cloud.jclouds.vcloud.director.QueryPager;
 import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
 import org.dasein.cloud.network.VLAN;
 import org.jclouds.dmtf.cim.ResourceAllocationSettingData;
@@ -64,14 +74,21 @@ import org.jclouds.vcloud.director.v1_5.domain.VAppTemplate;
 import org.jclouds.vcloud.director.v1_5.domain.Vdc;
 import org.jclouds.vcloud.director.v1_5.domain.Vm;
 import org.jclouds.vcloud.director.v1_5.domain.dmtf.RasdItem;
+import org.jclouds.vcloud.director.v1_5.domain.network.FenceMode;
+import org.jclouds.vcloud.director.v1_5.domain.network.NetworkConfiguration;
 import org.jclouds.vcloud.director.v1_5.domain.network.NetworkConnection;
 import org.jclouds.vcloud.director.v1_5.domain.network.NetworkConnection.IpAddressAllocationMode;
+import org.jclouds.vcloud.director.v1_5.domain.network.VAppNetworkConfiguration;
 import org.jclouds.vcloud.director.v1_5.domain.params.CloneVAppParams;
+import org.jclouds.vcloud.director.v1_5.domain.params.ComposeVAppParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.DeployVAppParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.InstantiateVAppTemplateParams;
 import org.jclouds.vcloud.director.v1_5.domain.params.InstantiationParams;
+import org.jclouds.vcloud.director.v1_5.domain.params.SourcedCompositionItemParam;
 import org.jclouds.vcloud.director.v1_5.domain.params.UndeployVAppParams;
+import org.jclouds.vcloud.director.v1_5.domain.query.QueryResultVMRecord;
 import org.jclouds.vcloud.director.v1_5.domain.section.GuestCustomizationSection;
+import org.jclouds.vcloud.director.v1_5.domain.section.NetworkConfigSection;
 import org.jclouds.vcloud.director.v1_5.domain.section.NetworkConnectionSection;
 import org.jclouds.vcloud.director.v1_5.domain.section.VirtualHardwareSection;
 import org.jclouds.vcloud.director.v1_5.predicates.LinkPredicates;
@@ -81,10 +98,25 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class VmSupport implements VirtualMachineSupport {
     static private final Logger logger = Logger.getLogger(VirtualMachineSupport.class);
     
+    static public final String LAUNCH_MODE = "vcloud.launchMode";
+    
+    /**
+     * Launch mode that instantiates the template as-is and then reconfigures each VM (the default).
+     */
+    static public final String RECONFIGURE = "reconfigure";
+    
+    /**
+     * Launch mode that composes the vApp with network connections and computer names set per VM at creation time.
+     */
+    static public final String INSTANTIATE = "instantiate";
+    
     private VCloudDirector provider;
     
     VmSupport(VCloudDirector provider) { this.provider = provider; }
@@ -109,9 +141,26 @@ public class VmSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            getCache().invalidate(vmId);
         }
     }
 
+    /**
+     * Boots the specified virtual machine on the shared operation executor.
+     * @param vmId the virtual machine to boot
+     * @return a task that completes once the boot has finished
+     * @throws CloudException too many operations are already queued for this account
+     */
+    public @Nonnull AsynchronousTask<Void> bootAsync(@Nonnull final String vmId) throws CloudException {
+        return provider.submitOperation(OperationExecutor.BOOT, new Callable<Void>() {
+            @Override
+            public Void call() throws CloudException, InternalException {
+                boot(vmId);
+                return null;
+            }
+        });
+    }
+
     @Override
     public VirtualMachine clone(String vmId, String intoDcId, String name, String description, boolean powerOn, String... firewallIds) throws InternalException, CloudException {
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
@@ -166,14 +215,63 @@ public class VmSupport implements VirtualMachineSupport {
 
     @Override
     public VirtualMachineProduct getProduct(String productId) throws InternalException, CloudException {
-        for( Architecture architecture : Architecture.values() ) {
-            for( VirtualMachineProduct product : listProducts(architecture) ) {
-                if( product.getProductId().equals(productId) ) {
-                    return product;
+        if( productId == null ) {
+            return null;
+        }
+        int idx = productId.indexOf(':');
+        
+        if( idx < 1 ) {
+            return null;
+        }
+        int ram = parseDimension(productId, 0, idx);
+        int cpu = parseDimension(productId, idx+1, productId.length());
+        
+        if( ram < 0 || cpu < 0 ) {
+            return null;
+        }
+        return ProductTable.find(ram, cpu);
+    }
+    
+    static private int parseDimension(String str, int start, int end) {
+        if( start >= end || (end - start) > 9 ) {
+            return -1;
+        }
+        int value = 0;
+        
+        for( int i=start; i<end; i++ ) {
+            char c = str.charAt(i);
+            
+            if( c < '0' || c > '9' ) {
+                return -1;
+            }
+            value = (value * 10) + (c - '0');
+        }
+        return value;
+    }
+    
+    /**
+     * Returns the standard product for a VM shape, or a memoized ad hoc product for shapes outside the standard table.
+     */
+    private @Nonnull VirtualMachineProduct getProduct(int ramInMb, int cpuCount) {
+        VirtualMachineProduct product = ProductTable.find(ramInMb, cpuCount);
+        
+        if( product != null ) {
+            return product;
+        }
+        Long key = ProductTable.toKey(ramInMb, cpuCount);
+        
+        product = customProducts.get(key);
+        if( product == null ) {
+            product = ProductTable.toProduct(ramInMb, cpuCount, ramInMb + ":" + cpuCount);
+            if( customProducts.size() < 1024 ) {
+                VirtualMachineProduct existing = customProducts.putIfAbsent(key, product);
+                
+                if( existing != null ) {
+                    product = existing;
                 }
             }
         }
-        return null;
+        return product;
     }
 
     @Override
@@ -183,12 +281,55 @@ public class VmSupport implements VirtualMachineSupport {
 
     @Override
     public VirtualMachine getVirtualMachine(String vmId) throws InternalException, CloudException {
-        for( VirtualMachine vm : listVirtualMachines() ) {
-            if( vm.getProviderVirtualMachineId().equals(vmId) ) {
-                return vm;
+        long ttl = provider.getLongProperty(VirtualMachineCache.TTL, 5000L);
+        
+        if( ttl <= 0L ) {
+            return loadVirtualMachine(vmId);
+        }
+        return getCache().get(vmId, ttl, (int)provider.getLongProperty(VirtualMachineCache.MAX_SIZE, 10000L), new VirtualMachineCache.Loader() {
+            @Override
+            public @Nullable VirtualMachine load(@Nonnull String id) throws CloudException, InternalException {
+                return loadVirtualMachine(id);
+            }
+        });
+    }
+    
+    @Nonnull VirtualMachineCache getCache() throws CloudException {
+        return VirtualMachineCache.getInstance(provider.getContextKey());
+    }
+    
+    private @Nullable VirtualMachine loadVirtualMachine(@Nonnull String vmId) throws CloudException, InternalException {
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        
+        try {
+            try {
+                Vm vm = ctx.getApi().getVmClient().getVm(provider.toHref(ctx, vmId));
+                
+                if( vm == null || vm.getVAppParent() == null ) {
+                    return null;
+                }
+                VApp parent = ctx.getApi().getVAppClient().getVApp(vm.getVAppParent().getHref());
+                
+                if( parent == null ) {
+                    return null;
+                }
+                return toVirtualMachine(ctx, parent, vm);
+            }
+            catch( AuthorizationException e ) {
+                // vCloud Director answers 403 for VMs that do not exist
+                return null;
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error looking up virtual machine " + vmId + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
             }
         }
-        return null;
+        finally {
+            ctx.close();
+        }
     }
 
     @Override
@@ -201,7 +342,7 @@ public class VmSupport implements VirtualMachineSupport {
         return Collections.emptyList();
     }
 
-    private boolean isPublicIp(String ipAddress) {
+    boolean isPublicIp(String ipAddress) {
         if( !ipAddress.startsWith("10.") && !ipAddress.startsWith("192.168.") ) {
             if( ipAddress.startsWith("172.") ) {
                 String[] nums = ipAddress.split("\\.");
@@ -249,130 +390,416 @@ public class VmSupport implements VirtualMachineSupport {
     public VirtualMachine launch(String fromMachineImageId, VirtualMachineProduct product, String dataCenterId, String name, String description, String withKeypairId, String inVlanId, boolean withAnalytics, boolean asSandbox, String[] firewallIds, Tag... tags) throws InternalException, CloudException {
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
-        provider.getComputeServices().getImageSupport().listMachineImages();
         try {
             try {
                 product = getProduct(product.getProductId());
-
-                InstantiateVAppTemplateParams.Builder<?> options = InstantiateVAppTemplateParams.builder().description(fromMachineImageId);
-                VAppTemplate template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, fromMachineImageId));
-
-                for( VAppTemplate child : template.getChildren() ) {
-                    NetworkConnectionSection section = VAppTemplateSupport.getSection(child, NetworkConnectionSection.class);
-                    for( NetworkConnection c : section.getNetworkConnections() ) {
-                        System.out.println("Template connection: " + c.getIpAddressAllocationMode());
-                    }
+                VAppTemplate template = getLaunchTemplate(ctx, fromMachineImageId);
+                VLAN network = getLaunchNetwork(fromMachineImageId, inVlanId);
+                
+                return launch(ctx, template, fromMachineImageId, product, dataCenterId, provider.validateName(name), network, inVlanId);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error launching from " + fromMachineImageId + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
                 }
-                options.powerOn(false);
-                options.deploy(false);
-                if( inVlanId != null ) {
-                    NetworkConnection connection = NetworkConnection.builder().network(inVlanId).build();
-                    InstantiationParams instantiate = InstantiationParams.builder()
-                            .section(NetworkConnectionSection.builder().networkConnection(connection).build())
-                            .build();
-                    options.instantiationParams(instantiate);
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+        }
+    }
+    
+    static public final String LAUNCH_CONCURRENCY = "vcloud.launch.concurrency";
+    
+    /**
+     * Launches a number of identical virtual machines from one template. The template and the network are looked
+     * up once for the whole batch and the individual launches run in the launch lane of the account's
+     * {@link OperationExecutor}, with at most <code>vcloud.launch.concurrency</code> in progress at any time across
+     * all batches so the VDC's task queue is not flooded. That cap is a fixed setting, 8 unless configured; it is
+     * not derived from the VDC. The batch holds its own launches and feeds them to the lane as slots free up, so
+     * a batch larger than the executor's queue limit waits rather than being rejected. This method returns as
+     * soon as the batch has been queued.
+     * @param fromMachineImageId the template from which the VMs are launched
+     * @param product the product defining the size of each VM
+     * @param dataCenterId the VDC in which to launch, or <code>null</code> for the template's VDC
+     * @param namePrefix the base name of the VMs, to which a sequence number is appended
+     * @param inVlanId the network to which the VMs are attached, or <code>null</code> for the first network in the org
+     * @param count the number of VMs to launch
+     * @return the batch, holding a future for each VM and throughput statistics
+     * @throws CloudException the template or network could not be resolved
+     * @throws InternalException an internal error occurred preparing the batch
+     */
+    public @Nonnull BatchLaunch launchMany(@Nonnull final String fromMachineImageId, @Nonnull VirtualMachineProduct product, @Nullable final String dataCenterId, @Nonnull String namePrefix, @Nullable final String inVlanId, int count) throws CloudException, InternalException {
+        final VAppTemplate template;
+        final VLAN network;
+        final VirtualMachineProduct size = getProduct(product.getProductId());
+        
+        if( size == null ) {
+            throw new CloudException("No such product: " + product.getProductId());
+        }
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        
+        try {
+            try {
+                template = getLaunchTemplate(ctx, fromMachineImageId);
+                network = getLaunchNetwork(fromMachineImageId, inVlanId);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error preparing launch from " + fromMachineImageId + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
                 }
-                VApp app = ctx.getApi().getVdcClient().instantiateVApp(template.getHref(), options.build());
-                
-                if( app == null ) {
-                    throw new CloudException("No vApp was instantiated for " + fromMachineImageId);
-                }
-                while( app.getStatus().equals(Status.UNRESOLVED) ) {
-                    try { Thread.sleep(5000L); }
-                    catch( InterruptedException e ) { }
-                    try { app = ctx.getApi().getVAppClient().getVApp(app.getHref()); }
-                    catch( Throwable ignore ) { }
-                }
-                app = provider.waitForIdle(ctx, app);
-                List<Vm> children = app.getChildren().getVms();
-                int i = 0;
-
-                name = provider.validateName(name);                
-                for( Vm vm : children ) {
-                    i++;
-                    vm = provider.waitForIdle(ctx, vm);
-                    GuestCustomizationSection s = getSection(vm, GuestCustomizationSection.class);
-                    GuestCustomizationSection.Builder<?> sb = s.toBuilder();
-                    String n = (children.size() < 2 ? (name + "-" + i) : name);
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+        }
+        int concurrency = (int)Math.max(1L, provider.getLongProperty(LAUNCH_CONCURRENCY, 8L));
+        LaunchFeeder feeder = new LaunchFeeder(provider.getOperationExecutor(), concurrency);
+        final BatchLaunch batch = new BatchLaunch(count);
+        String prefix = provider.validateName(namePrefix);
+        
+        provider.hold();
+        for( int i=1; i<=count; i++ ) {
+            String suffix = "-" + i;
+            final String name = (prefix.length() + suffix.length() > 13 ? prefix.substring(0, Math.max(1, 13 - suffix.length())) : prefix) + suffix;
+            
+            batch.add(feeder.add(new Callable<VirtualMachine>() {
+                @Override
+                public VirtualMachine call() throws CloudException, InternalException {
+                    long start = System.currentTimeMillis();
                     
-                    sb.enabled(true);
-                    sb.info(name);
-                    sb.computerName(n);
-                    ctx.getApi().getVmClient().modifyGuestCustomizationSection(vm.getHref(), sb.build());
-                }
-                app = provider.waitForIdle(ctx, app);
-                VLAN network = null;
-                
-                if( inVlanId == null ) {
-                    for( VLAN n : provider.getNetworkServices().getVlanSupport().listVlans() ) {
-                        network = n;
-                        break;
+                    try {
+                        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+                        
+                        try {
+                            VirtualMachine vm = launch(ctx, template, fromMachineImageId, size, dataCenterId, name, network, inVlanId);
+                            
+                            batch.completed(System.currentTimeMillis() - start);
+                            return vm;
+                        }
+                        catch( RuntimeException e ) {
+                            logger.error("Error launching " + name + " from " + fromMachineImageId + ": " + e.getMessage());
+                            if( logger.isDebugEnabled() ) {
+                                e.printStackTrace();
+                            }
+                            throw new CloudException(e);
+                        }
+                        finally {
+                            ctx.close();
+                        }
+                    }
+                    catch( CloudException e ) {
+                        batch.failed();
+                        throw e;
+                    }
+                    catch( InternalException e ) {
+                        batch.failed();
+                        throw e;
                     }
                 }
-                else {
-                    network = provider.getNetworkServices().getVlanSupport().getVlan(inVlanId);                    
+            }));
+        }
+        feeder.run();
+        Futures.successfulAsList(batch.getLaunches()).addListener(new Runnable() {
+            @Override
+            public void run() {
+                provider.release();
+                if( logger.isInfoEnabled() ) {
+                    logger.info("Batch launch from " + fromMachineImageId + " finished: " + batch);
                 }
-                for( Vm vm : children ) {
-                    vm = provider.waitForIdle(ctx, vm);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return batch;
+    }
+    
+    private @Nonnull VAppTemplate getLaunchTemplate(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull String fromMachineImageId) throws CloudException {
+        VAppTemplate template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, fromMachineImageId));
+        
+        if( template == null ) {
+            throw new CloudException("No such template: " + fromMachineImageId);
+        }
+        return template;
+    }
+    
+    @Nonnull VLAN getLaunchNetwork(@Nonnull String fromMachineImageId, @Nullable String inVlanId) throws CloudException, InternalException {
+        VLAN network = null;
+        
+        if( inVlanId == null ) {
+            for( VLAN n : provider.getNetworkServices().getVlanSupport().listVlans() ) {
+                network = n;
+                break;
+            }
+        }
+        else {
+            network = provider.getNetworkServices().getVlanSupport().getVlan(inVlanId);                    
+        }
+        if( network == null ) {
+            throw new CloudException("No network is available for launching " + fromMachineImageId);
+        }
+        return network;
+    }
+    
+    private @Nullable VirtualMachine launch(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull VAppTemplate template, @Nonnull String fromMachineImageId, @Nonnull VirtualMachineProduct product, @Nullable String dataCenterId, @Nonnull String name, @Nonnull VLAN network, @Nullable String inVlanId) throws CloudException, InternalException {
+        LaunchTimings timings = new LaunchTimings();
+        VApp app;
+        
+        if( INSTANTIATE.equals(getLaunchMode()) ) {
+            URI vdcURI = (dataCenterId == null ? null : provider.toHref(ctx, dataCenterId));
+            
+            app = compose(ctx, template, vdcURI, fromMachineImageId, name, network, timings);
+            app = resize(ctx, app, product, timings);
+        }
+        else {
+            InstantiateVAppTemplateParams.Builder<?> options = InstantiateVAppTemplateParams.builder().description(fromMachineImageId);
+            
+            options.powerOn(false);
+            options.deploy(false);
+            if( inVlanId != null ) {
+                NetworkConnection connection = NetworkConnection.builder().network(inVlanId).build();
+                InstantiationParams instantiate = InstantiationParams.builder()
+                        .section(NetworkConnectionSection.builder().networkConnection(connection).build())
+                        .build();
+                options.instantiationParams(instantiate);
+            }
+            app = ctx.getApi().getVdcClient().instantiateVApp(template.getHref(), options.build());
+            if( app == null ) {
+                throw new CloudException("No vApp was instantiated for " + fromMachineImageId);
+            }
+            app = provider.waitForIdle(ctx, app);
+            timings.mark("instantiate");
+            app = customize(ctx, app, name, network, product, timings);
+        }
+        DeployVAppParams deploy = DeployVAppParams.builder().powerOn().build();
+        ctx.getApi().getVAppClient().deploy(app.getHref(), deploy);
+        timings.mark("deploy");
+        if( logger.isInfoEnabled() ) {
+            logger.info("Launched " + app.getHref() + " from " + fromMachineImageId + ": " + timings);
+        }
+        Collection<VirtualMachine> vms = toVirtualMachines(ctx, app);
+        
+        if( vms.isEmpty() ) {
+            return null;
+        }
+        return vms.iterator().next();
+    }
+    
+    /**
+     * Applies the guest customization, network connection and hardware sizing of a freshly instantiated vApp.
+     * Each phase submits the change for every child VM before waiting on any of them, so children are
+     * reconfigured concurrently and a phase only takes as long as its slowest VM. Each VM gets one request
+     * per section: the network section is replaced in a single call and CPU and memory are changed together
+     * through the virtual hardware section.
+     * @param ctx the client to use
+     * @param app the idle vApp to customize
+     * @param name the validated base name for the child VMs
+     * @param network the network to attach the VMs to
+     * @param product the product defining the CPU and memory of each VM
+     * @param timings collects the time spent in each phase
+     * @return the idle vApp after customization
+     * @throws CloudException an error occurred reconfiguring a VM
+     */
+    private @Nonnull VApp customize(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull VApp app, @Nonnull String name, @Nonnull VLAN network, @Nonnull VirtualMachineProduct product, @Nonnull LaunchTimings timings) throws CloudException {
+        List<Vm> children = app.getChildren().getVms();
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        int i = 0;
 
-                    NetworkConnectionSection section = ctx.getApi().getVmClient().getNetworkConnectionSection(vm.getHref())
-                            .toBuilder()
-                            .networkConnections(Sets.<NetworkConnection>newLinkedHashSet())
-                            .build();
-                    provider.waitForTask(ctx.getApi().getVmClient().modifyNetworkConnectionSection(vm.getHref(), section));
-                    vm = provider.waitForIdle(ctx, vm);
-                    
-                    NetworkConnection connection = NetworkConnection.builder()
-                            .isConnected(true)
-		                    .ipAddressAllocationMode(IpAddressAllocationMode.POOL)
-		                    .network(network.getName())
-		                    .networkConnectionIndex(0)
-		                    .build();
-                    section = ctx.getApi().getVmClient().getNetworkConnectionSection(vm.getHref())
-                            .toBuilder()
-                            .networkConnection(connection)
-                            .build();
-                    provider.waitForTask(ctx.getApi().getVmClient().modifyNetworkConnectionSection(vm.getHref(), section));
-                    vm = provider.waitForIdle(ctx, vm);
+        for( Vm vm : children ) {
+            i++;
+            GuestCustomizationSection s = getSection(vm, GuestCustomizationSection.class);
+            GuestCustomizationSection.Builder<?> sb = s.toBuilder();
+            String n = (children.size() < 2 ? (name + "-" + i) : name);
+            
+            sb.enabled(true);
+            sb.info(name);
+            sb.computerName(n);
+            tasks.add(ctx.getApi().getVmClient().modifyGuestCustomizationSection(vm.getHref(), sb.build()));
+        }
+        provider.waitForTasks(tasks);
+        app = provider.waitForIdle(ctx, app);
+        timings.mark("customize");
+        
+        tasks.clear();
+        for( Vm vm : app.getChildren().getVms() ) {
+            NetworkConnection connection = NetworkConnection.builder()
+                    .isConnected(true)
+                    .ipAddressAllocationMode(IpAddressAllocationMode.POOL)
+                    .network(network.getName())
+                    .networkConnectionIndex(0)
+                    .build();
+            NetworkConnectionSection section = getSection(vm, NetworkConnectionSection.class)
+                    .toBuilder()
+                    .networkConnections(Sets.newLinkedHashSet(Collections.singleton(connection)))
+                    .build();
+            
+            tasks.add(ctx.getApi().getVmClient().modifyNetworkConnectionSection(vm.getHref(), section));
+        }
+        provider.waitForTasks(tasks);
+        app = provider.waitForIdle(ctx, app);
+        timings.mark("network");
 
-                    // FIXME
+        return resize(ctx, app, product, timings);
+    }
 
-                    RasdItem cpu = ctx.getApi().getVmClient().getVirtualHardwareSectionCpu(vm.getHref())
-                            .toBuilder()
-                            .virtualQuantity(BigInteger.valueOf(product.getCpuCount()))
-                            .build();
-                    provider.waitForTask(ctx.getApi().getVmClient().modifyVirtualHardwareSectionCpu(vm.getHref(), cpu));
-                    vm = provider.waitForIdle(ctx, vm);
+    /**
+     * Sets the CPU count and memory of every child VM that does not already match the product, changing both
+     * through a single virtual hardware section request per VM. All requests are submitted before waiting.
+     * @param ctx the client to use
+     * @param app the idle vApp whose VMs are to be resized
+     * @param product the product defining the CPU and memory of each VM
+     * @param timings collects the time spent resizing
+     * @return the idle vApp after resizing
+     * @throws CloudException an error occurred resizing a VM
+     */
+    private @Nonnull VApp resize(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull VApp app, @Nonnull VirtualMachineProduct product, @Nonnull LaunchTimings timings) throws CloudException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        
+        for( Vm vm : app.getChildren().getVms() ) {
+            VirtualHardwareSection hardware = toResizedHardware(vm, product);
+            
+            if( hardware != null ) {
+                tasks.add(ctx.getApi().getVmClient().modifyVirtualHardwareSection(vm.getHref(), hardware));
+            }
+        }
+        if( !tasks.isEmpty() ) {
+            provider.waitForTasks(tasks);
+            app = provider.waitForIdle(ctx, app);
+        }
+        timings.mark("hardware");
+        return app;
+    }
 
-                    RasdItem ram = ctx.getApi().getVmClient().getVirtualHardwareSectionCpu(vm.getHref())
-                            .toBuilder()
-                            .virtualQuantity(BigInteger.valueOf(product.getRamInMb()))
-                            .build();
-                    provider.waitForTask(ctx.getApi().getVmClient().modifyVirtualHardwareSectionMemory(vm.getHref(), ram));
-                    vm = provider.waitForIdle(ctx, vm);
-                }
-                app = provider.waitForIdle(ctx, app);
-                DeployVAppParams deploy = DeployVAppParams.builder().powerOn().build();
-                ctx.getApi().getVAppClient().deploy(app.getHref(), deploy);
-                
-                Collection<VirtualMachine> vms = toVirtualMachines(ctx, app);
-                
-                if( vms.isEmpty() ) {
-                    return null;
-                }
-                return vms.iterator().next();
+    /**
+     * @param vm the VM to be resized
+     * @param product the product defining the CPU and memory of the VM
+     * @return the virtual hardware section with the product's CPU count and memory, or <code>null</code> if the VM already matches
+     */
+    @Nullable VirtualHardwareSection toResizedHardware(@Nonnull Vm vm, @Nonnull VirtualMachineProduct product) {
+        BigInteger cpus = BigInteger.valueOf(product.getCpuCount());
+        BigInteger ram = BigInteger.valueOf(product.getRamInMb());
+        VirtualHardwareSection hardware = getSection(vm, VirtualHardwareSection.class);
+        LinkedHashSet<ResourceAllocationSettingData> items = new LinkedHashSet<ResourceAllocationSettingData>();
+        boolean changed = false;
+        
+        for( ResourceAllocationSettingData item : hardware.getItems() ) {
+            if( item.getResourceType().equals(ResourceType.PROCESSOR) && !cpus.equals(item.getVirtualQuantity()) ) {
+                item = item.toBuilder().virtualQuantity(cpus).build();
+                changed = true;
             }
-            catch( RuntimeException e ) {
-                logger.error("Error launching from " + fromMachineImageId + ": " + e.getMessage());
-                if( logger.isDebugEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new CloudException(e);
+            else if( item.getResourceType().equals(ResourceType.MEMORY) && !ram.equals(item.getVirtualQuantity()) ) {
+                item = item.toBuilder().virtualQuantity(ram).build();
+                changed = true;
             }
+            items.add(item);
         }
-        finally {
-            ctx.close();
+        return (changed ? hardware.toBuilder().items(items).build() : null);
+    }
+    
+    /**
+     * Builds the vApp in a single compose request in which every VM of the template is sourced with its network
+     * connection and guest customization already set, so only hardware sizing remains to be changed afterwards.
+     * vCloud Director 1.5 does not accept virtual hardware overrides at instantiation time.
+     * @param ctx the client to use
+     * @param template the template to launch
+     * @param vdcURI the VDC in which the vApp is created, or <code>null</code> for the template's VDC
+     * @param templateId the ID of the template, recorded as the vApp description
+     * @param name the validated base name for the VMs
+     * @param network the org network to which the VMs are bridged
+     * @param timings collects the time spent composing
+     * @return the idle vApp
+     * @throws CloudException the vApp could not be composed
+     */
+    private @Nonnull VApp compose(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull VAppTemplate template, @Nullable URI vdcURI, @Nonnull String templateId, @Nonnull String name, @Nonnull VLAN network, @Nonnull LaunchTimings timings) throws CloudException {
+        if( vdcURI == null ) {
+            vdcURI = getVdcHref(template);
         }
+        VApp app = ctx.getApi().getVdcClient().composeVApp(vdcURI, toComposeParams(ctx, template, templateId, name, network));
+        
+        if( app == null ) {
+            throw new CloudException("No vApp was composed for " + templateId);
+        }
+        app = provider.waitForIdle(ctx, app);
+        timings.mark("compose");
+        return app;
+    }
+    
+    /**
+     * @param template the template to be launched
+     * @return the VDC that owns the template
+     */
+    @Nonnull URI getVdcHref(@Nonnull VAppTemplate template) {
+        return Iterables.find(template.getLinks(),
+                Predicates.and(LinkPredicates.relEquals(Link.Rel.UP),
+                        LinkPredicates.typeEquals(VCloudDirectorMediaType.VDC))).getHref();
+    }
+    
+    /**
+     * Builds the compose request sourcing every VM of the template with its network connection and guest
+     * customization already set.
+     * @param ctx the client used to resolve the network href
+     * @param template the template to launch
+     * @param templateId the ID of the template, recorded as the vApp description
+     * @param name the validated base name for the VMs
+     * @param network the org network to which the VMs are bridged
+     * @return the compose parameters
+     */
+    @Nonnull ComposeVAppParams toComposeParams(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull VAppTemplate template, @Nonnull String templateId, @Nonnull String name, @Nonnull VLAN network) {
+        List<VAppTemplate> children = template.getChildren();
+        VAppNetworkConfiguration vAppNetwork = VAppNetworkConfiguration.builder()
+                .networkName(network.getName())
+                .configuration(NetworkConfiguration.builder()
+                        .parentNetwork(Reference.builder().href(provider.toHref(ctx, network.getProviderVlanId())).build())
+                        .fenceMode(FenceMode.BRIDGED)
+                        .build())
+                .build();
+        NetworkConfigSection networks = NetworkConfigSection.builder()
+                .info("Configuration parameters for logical networks")
+                .networkConfigs(Collections.singleton(vAppNetwork))
+                .build();
+        ComposeVAppParams.Builder<?> params = ComposeVAppParams.builder()
+                .name(name)
+                .description(templateId)
+                .deploy(false)
+                .powerOn(false)
+                .instantiationParams(InstantiationParams.builder().section(networks).build());
+        int i = 0;
+        
+        for( VAppTemplate child : children ) {
+            i++;
+            String n = (children.size() < 2 ? (name + "-" + i) : name);
+            NetworkConnection connection = NetworkConnection.builder()
+                    .isConnected(true)
+                    .ipAddressAllocationMode(IpAddressAllocationMode.POOL)
+                    .network(network.getName())
+                    .networkConnectionIndex(0)
+                    .build();
+            NetworkConnectionSection connections = NetworkConnectionSection.builder()
+                    .info("Specifies the available VM network connections")
+                    .primaryNetworkConnectionIndex(0)
+                    .networkConnection(connection)
+                    .build();
+            GuestCustomizationSection customization = VAppTemplateSupport.getSection(child, GuestCustomizationSection.class)
+                    .toBuilder()
+                    .enabled(true)
+                    .info(name)
+                    .computerName(n)
+                    .build();
+            
+            params.sourcedItem(SourcedCompositionItemParam.builder()
+                    .source(Reference.builder().fromEntity(child).build())
+                    .instantiationParams(InstantiationParams.builder().section(connections).section(customization).build())
+                    .build());
+        }
+        return params.build();
+    }
+    
+    private @Nonnull String getLaunchMode() {
+        String mode = provider.getProperty(LAUNCH_MODE, RECONFIGURE);
+        
+        return (mode == null ? RECONFIGURE : mode.trim().toLowerCase(Locale.ENGLISH));
     }
     
     @Override
@@ -380,56 +807,102 @@ public class VmSupport implements VirtualMachineSupport {
         return Collections.emptyList();
     }
 
-    static private Iterable<VirtualMachineProduct> products = null;
-    
-    @Override
-    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
-        if( products == null ) {
+    /**
+     * The standard products, built once when first used and never modified. Lookups use the RAM and CPU
+     * count packed into a single long and a binary search, so no product id string has to be compared.
+     */
+    static private final class ProductTable {
+        static private final int[] RAM = { 512, 1024, 1536, 2048, 4096, 8192, 12288, 16384 };
+        static private final int[] CPU = { 1, 2, 4, 8 };
+        
+        static private final List<VirtualMachineProduct> products;
+        static private final long[]                      keys;
+        static private final VirtualMachineProduct[]     values;
+        
+        static {
             ArrayList<VirtualMachineProduct> sizes = new ArrayList<VirtualMachineProduct>();
             
-            for( int ram : new int[] { 512, 1024, 1536, 2048, 4096, 8192, 12288, 16384 } ) {
-                for( int cpu : new int[] { 1, 2, 4, 8 } ) {
-                    VirtualMachineProduct product = new VirtualMachineProduct();
-
-                    product.setProductId(ram + ":" + cpu);
-                    product.setName(cpu + " CPU, " + ram + "M RAM");
-                    product.setDescription(cpu + " CPU, " + ram + "M RAM");
-                    product.setCpuCount(cpu);
-                    product.setDiskSizeInGb(4);
-                    product.setRamInMb(ram);
-                    sizes.add(product);
+            for( int ram : RAM ) {
+                for( int cpu : CPU ) {
+                    sizes.add(toProduct(ram, cpu, cpu + " CPU, " + ram + "M RAM"));
                 }
             }
             products = Collections.unmodifiableList(sizes);
+            keys = new long[sizes.size()];
+            values = new VirtualMachineProduct[sizes.size()];
+            
+            ArrayList<VirtualMachineProduct> sorted = new ArrayList<VirtualMachineProduct>(sizes);
+            
+            Collections.sort(sorted, new Comparator<VirtualMachineProduct>() {
+                @Override
+                public int compare(VirtualMachineProduct a, VirtualMachineProduct b) {
+                    long ka = toKey(a.getRamInMb(), a.getCpuCount());
+                    long kb = toKey(b.getRamInMb(), b.getCpuCount());
+                    
+                    return (ka < kb ? -1 : (ka == kb ? 0 : 1));
+                }
+            });
+            for( int i=0; i<sorted.size(); i++ ) {
+                VirtualMachineProduct product = sorted.get(i);
+                
+                keys[i] = toKey(product.getRamInMb(), product.getCpuCount());
+                values[i] = product;
+            }
+        }
+        
+        static long toKey(int ramInMb, int cpuCount) {
+            return ((((long)ramInMb) << 32) | (cpuCount & 0xFFFFFFFFL));
         }
-        return products;
+        
+        static VirtualMachineProduct find(int ramInMb, int cpuCount) {
+            int idx = Arrays.binarySearch(keys, toKey(ramInMb, cpuCount));
+            
+            return (idx < 0 ? null : values[idx]);
+        }
+        
+        static @Nonnull VirtualMachineProduct toProduct(int ramInMb, int cpuCount, @Nonnull String description) {
+            VirtualMachineProduct product = new VirtualMachineProduct();
+
+            product.setProductId(ramInMb + ":" + cpuCount);
+            product.setName(description);
+            product.setDescription(description);
+            product.setCpuCount(cpuCount);
+            product.setDiskSizeInGb(4);
+            product.setRamInMb(ramInMb);
+            return product;
+        }
+    }
+    
+    static private final ConcurrentHashMap<Long,VirtualMachineProduct> customProducts = new ConcurrentHashMap<Long,VirtualMachineProduct>();
+    
+    @Override
+    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
+        return ProductTable.products;
     }
 
     @Override
     public Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
         try {
             try {
+                if( QueryPager.isEnabled(provider) ) {
+                    return listVirtualMachinesByQuery(ctx);
+                }
+                if( Boolean.parseBoolean(provider.getProperty(STREAMING, "false")) ) {
+                    return new VirtualMachineStream(provider, this, listVAppReferences(ctx));
+                }
                 ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+                List<VApp> apps = FetchPipeline.fetchAll(provider, listVAppReferences(ctx), new FetchPipeline.Fetcher<Reference,VApp>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends VApp> fetch(@Nonnull Reference ref) {
+                        return ctx.getAsyncApi().getVAppClient().getVApp(ref.getHref());
+                    }
+                });
                 
-                for( DataCenter dc : provider.getDataCenterServices().listDataCenters(provider.getContext().getRegionId()) ) {
-                    System.out.println("DC=" + dc);
-                    Vdc vdc = provider.getDataCenterServices().getVdc(dc.getProviderDataCenterId());
-                    System.out.println("dc for " + dc.getProviderDataCenterId() + "=" + vdc);
-                    if( vdc != null ) {
-                        Set<Reference> refs = vdc.getResourceEntities();
-                    
-                        if( refs == null ) {
-                            return Collections.emptyList();
-                        }
-                        for( Reference type : Iterables.filter(refs, ReferencePredicates.typeEquals(VCloudDirectorMediaType.VAPP)) ) {
-                            VApp app = ctx.getApi().getVAppClient().getVApp(type.getHref());
-                                
-                            if( app != null ) {
-                                list.addAll(toVirtualMachines(ctx, app));
-                            }
-                        }
+                for( VApp app : apps ) {
+                    if( app != null ) {
+                        list.addAll(toVirtualMachines(ctx, app));
                     }
                 }
                 return list;
@@ -447,6 +920,133 @@ public class VmSupport implements VirtualMachineSupport {
         }
     }
 
+    static public final String STREAMING = "vcloud.listing.streaming";
+    
+    /**
+     * Lists virtual machines without holding the whole inventory in memory. Only the vApp references are read
+     * before this method returns; the vApps themselves are fetched in windows of
+     * <code>vcloud.listing.windowSize</code> as the result is iterated. {@link #listVirtualMachines()} returns
+     * the same stream when <code>vcloud.listing.streaming</code> is <code>true</code>.
+     * @return a stream of the VMs in the org
+     * @throws CloudException the VDCs could not be read
+     * @throws InternalException an internal error occurred reading the VDCs
+     */
+    public @Nonnull VirtualMachineStream streamVirtualMachines() throws CloudException, InternalException {
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        
+        try {
+            try {
+                return new VirtualMachineStream(provider, this, listVAppReferences(ctx));
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error streaming virtual machines in " + provider.getContext().getRegionId() + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+        }
+    }
+    
+    private @Nonnull List<Reference> listVAppReferences(@Nonnull final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException {
+        ArrayList<Reference> appRefs = new ArrayList<Reference>();
+        Set<Reference> vdcRefs = provider.getOrg().getVdcs();
+        
+        if( vdcRefs == null ) {
+            return appRefs;
+        }
+        List<Vdc> vdcs = FetchPipeline.fetchAll(provider, vdcRefs, new FetchPipeline.Fetcher<Reference,Vdc>() {
+            @Override
+            public @Nonnull ListenableFuture<? extends Vdc> fetch(@Nonnull Reference ref) {
+                return ctx.getAsyncApi().getVdcClient().getVdc(ref.getHref());
+            }
+        });
+        
+        provider.getDataCenterTopology().update(ctx, vdcs);
+        for( Vdc vdc : vdcs ) {
+            if( vdc != null && vdc.getResourceEntities() != null ) {
+                Iterables.addAll(appRefs, Iterables.filter(vdc.getResourceEntities(), ReferencePredicates.typeEquals(VCloudDirectorMediaType.VAPP)));
+            }
+        }
+        return appRefs;
+    }
+
+    /**
+     * Lists the VMs of the org from paged query records. VM records carry no network connection details or
+     * creation date, so VMs listed this way have no IP addresses, an unknown machine image and an unknown
+     * creation timestamp; look a VM up individually for those.
+     */
+    private @Nonnull List<VirtualMachine> listVirtualMachinesByQuery(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException, InternalException {
+        ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+        String owner = provider.getOrg().getName();
+
+        for( QueryResultVMRecord record : QueryPager.queryAll(provider, ctx, QueryPager.VM, "isVAppTemplate==false", QueryResultVMRecord.class) ) {
+            if( Boolean.TRUE.equals(record.isDeleted()) ) {
+                continue;
+            }
+            list.add(toVirtualMachine(ctx, owner, record));
+        }
+        return list;
+    }
+
+    @Nonnull VirtualMachine toVirtualMachine(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull String owner, @Nonnull QueryResultVMRecord record) throws CloudException {
+        VirtualMachine vm = new VirtualMachine();
+        String vmId = provider.toId(ctx, record.getHref());
+        String guestOs = record.getGuestOs();
+        
+        vm.setProviderVirtualMachineId(vmId);
+        vm.setName(record.getName() == null ? (record.getContainerName() == null ? vmId : record.getContainerName()) : record.getName());
+        vm.setDescription(record.getContainerName() == null ? vm.getName() : record.getContainerName());
+        vm.setProviderOwnerId(owner);
+        vm.setProviderRegionId(provider.getContext().getRegionId());
+        vm.setProviderAssignedIpAddressId(null);
+        if( record.getVdc() != null ) {
+            vm.setProviderDataCenterId(provider.toId(ctx, record.getVdc()));
+        }
+        vm.setPlatform(Platform.guess(vm.getName() + " " + (guestOs == null ? vm.getDescription() : guestOs)));
+        vm.setArchitecture(guestOs != null && guestOs.contains("32-bit") ? Architecture.I32 : Architecture.I64);
+        vm.setClonable(true);
+        vm.setImagable(true);
+        vm.setPausable(true);
+        vm.setPersistent(true);
+        vm.setRebootable(true);
+        vm.setProduct(getProduct(record.getMemoryMB() == null ? 256 : record.getMemoryMB(), record.getNumberOfCpus() == null ? 1 : record.getNumberOfCpus()));
+        vm.setProviderMachineImageId("/vAppTemplate/" + provider.getContext().getAccountNumber() + "-unknown");
+        vm.setPrivateIpAddresses(new String[0]);
+        vm.setPublicIpAddresses(new String[0]);
+        if( record.getNetworkName() != null ) {
+            VLAN vlan = provider.getVlanIndex().getVlanByName(record.getNetworkName());
+            
+            if( vlan != null ) {
+                vm.setProviderVlanId(vlan.getProviderVlanId());
+            }
+        }
+        vm.setRootUser(vm.getPlatform().isWindows() ? "administrator" : "root");
+        vm.setTags(new HashMap<String,String>());
+        String status = record.getStatus();
+        
+        if( "POWERED_ON".equals(status) ) {
+            vm.setCurrentState(VmState.RUNNING);
+        }
+        else if( "POWERED_OFF".equals(status) || "SUSPENDED".equals(status) ) {
+            vm.setCurrentState(VmState.PAUSED);
+        }
+        else if( "FAILED_CREATION".equals(status) ) {
+            vm.setCurrentState(VmState.TERMINATED);
+        }
+        else {
+            vm.setCurrentState(VmState.PENDING);
+        }
+        vm.setLastPauseTimestamp(-1L);
+        vm.setLastBootTimestamp(-1L);
+        vm.setCreationTimestamp(-1L);
+        vm.setTerminationTimestamp(0L);
+        return vm;
+    }
+
     @Override
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
@@ -470,9 +1070,26 @@ public class VmSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            getCache().invalidate(vmId);
         }
     }
 
+    /**
+     * Pauses the specified virtual machine on the shared operation executor.
+     * @param vmId the virtual machine to pause
+     * @return a task that completes once the pause has finished
+     * @throws CloudException too many operations are already queued for this account
+     */
+    public @Nonnull AsynchronousTask<Void> pauseAsync(@Nonnull final String vmId) throws CloudException {
+        return provider.submitOperation(OperationExecutor.PAUSE, new Callable<Void>() {
+            @Override
+            public Void call() throws CloudException, InternalException {
+                pause(vmId);
+                return null;
+            }
+        });
+    }
+
     @Override
     public void reboot(String vmId) throws CloudException, InternalException {
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
@@ -491,9 +1108,26 @@ public class VmSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            getCache().invalidate(vmId);
         }
     }
 
+    /**
+     * Reboots the specified virtual machine on the shared operation executor.
+     * @param vmId the virtual machine to reboot
+     * @return a task that completes once the reboot request has finished
+     * @throws CloudException too many operations are already queued for this account
+     */
+    public @Nonnull AsynchronousTask<Void> rebootAsync(@Nonnull final String vmId) throws CloudException {
+        return provider.submitOperation(OperationExecutor.REBOOT, new Callable<Void>() {
+            @Override
+            public Void call() throws CloudException, InternalException {
+                reboot(vmId);
+                return null;
+            }
+        });
+    }
+
     @Override
     public boolean supportsAnalytics() throws CloudException, InternalException {
         return false;
@@ -550,6 +1184,7 @@ public class VmSupport implements VirtualMachineSupport {
                             catch( IllegalStateException vCloudLies ) {
                                 try { Thread.sleep(5000L); }
                                 catch( InterruptedException e ) { }
+                                provider.getMetrics().recordPollWait(5000L);
                             }
                         }
                     }
@@ -568,6 +1203,7 @@ public class VmSupport implements VirtualMachineSupport {
                         while( vm != null && vm.getStatus().equals(Status.DEPLOYED) ) {
                             try { Thread.sleep(5000L); }
                             catch( InterruptedException e ) { }
+                            provider.getMetrics().recordPollWait(5000L);
                             try { vm = ctx.getApi().getVmClient().getVm(vm.getHref()); }
                             catch( Throwable ignore ) { }
                         }                    
@@ -584,10 +1220,27 @@ public class VmSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            getCache().invalidate(vmId);
         }
     }
+
+    /**
+     * Terminates the specified virtual machine on the shared operation executor.
+     * @param vmId the virtual machine to terminate
+     * @return a task that completes once the termination has finished
+     * @throws CloudException too many operations are already queued for this account
+     */
+    public @Nonnull AsynchronousTask<Void> terminateAsync(@Nonnull final String vmId) throws CloudException {
+        return provider.submitOperation(OperationExecutor.TERMINATE, new Callable<Void>() {
+            @Override
+            public Void call() throws CloudException, InternalException {
+                terminate(vmId);
+                return null;
+            }
+        });
+    }
     
-    private VirtualMachine toVirtualMachine(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, VApp app, Vm vcloudVm) throws CloudException, InternalException {
+    VirtualMachine toVirtualMachine(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, VApp app, Vm vcloudVm) throws CloudException, InternalException {
         if( vcloudVm == null ) {
             return null;
         }
@@ -625,8 +1278,9 @@ public class VmSupport implements VirtualMachineSupport {
         }
         
         
-        VirtualHardwareSection hardware = getSection(vcloudVm, VirtualHardwareSection.class);
-        long ram = 256, cpus = 1;
+        SectionIndex sections = SectionIndex.of(vcloudVm);
+        VirtualHardwareSection hardware = sections.require(VirtualHardwareSection.class);
+        int ram = 256, cpus = 1;
         
         for( ResourceAllocationSettingData allocation : hardware.getItems() ) {
             if( allocation.getResourceType().equals(ResourceType.MEMORY) ) {
@@ -636,37 +1290,19 @@ public class VmSupport implements VirtualMachineSupport {
                 cpus = allocation.getVirtualQuantity().intValue();
             }
         }
-        VirtualMachineProduct product = getProduct(ram + ":" + cpus);
-      
-        if( product == null ) {
-            product = new VirtualMachineProduct();
-            product.setCpuCount((int)cpus);
-            product.setRamInMb((int)ram);
-            product.setProductId(ram + ":" + cpus);
-            product.setDescription(ram + ":" + cpus);
-            product.setName(product.getDescription());
-            product.setDiskSizeInGb(4);
-        }
-        vm.setProduct(product);
+        vm.setProduct(getProduct(ram, cpus));
         ArrayList<String> publicIpAddresses = new ArrayList<String>();
         ArrayList<String> privateIpAddresses = new ArrayList<String>();
         String externalIp = null, providerNetworkId = null;
         
-        System.out.println("Checking network connections: " + getSection(vcloudVm, NetworkConnectionSection.class).getNetworkConnections());
+        NetworkConnectionSection connections = sections.require(NetworkConnectionSection.class);
         
-        for( NetworkConnection c : getSection(vcloudVm, NetworkConnectionSection.class).getNetworkConnections() ) {
-            System.out.println("EXT=" + c.getExternalIpAddress());
-            System.out.println("Assigned=" + c.getIpAddress());
-            System.out.println("Model=" + c.getIpAddressAllocationMode());
-            System.out.println("Network=" + c.getNetwork());
-
-            if( c.getNetworkConnectionIndex() == getSection(vcloudVm, NetworkConnectionSection.class).getPrimaryNetworkConnectionIndex() ) {
-                Iterable<VLAN> vlans = provider.getNetworkServices().getVlanSupport().listVlans();
+        for( NetworkConnection c : connections.getNetworkConnections() ) {
+            if( c.getNetworkConnectionIndex() == connections.getPrimaryNetworkConnectionIndex() ) {
+                VLAN vlan = provider.getVlanIndex().getVlanByName(c.getNetwork());
                 
-                for( VLAN vlan : vlans ) {
-                    if( vlan.getName().equalsIgnoreCase(c.getNetwork()) ) {
-                        providerNetworkId = vlan.getProviderVlanId();
-                    }
+                if( vlan != null ) {
+                    providerNetworkId = vlan.getProviderVlanId();
                 }
                 if( c.getExternalIpAddress() != null ) {
                     externalIp = c.getExternalIpAddress();
@@ -686,20 +1322,12 @@ public class VmSupport implements VirtualMachineSupport {
         String imageId = app.getDescription();
 
         if( imageId != null ) {
-            VAppTemplate template;
+            VAppTemplateSupport.TemplateFacts template = provider.getComputeServices().getImageSupport().getTemplateFacts(ctx, imageId);
             
-            try {
-                template = ctx.getApi().getVAppTemplateClient().getVAppTemplate(provider.toHref(ctx, imageId));
-            }
-            catch( RuntimeException e ) {
-                template = null;
-            }
-            if( template != null ) {
-                VAppTemplateSupport support = provider.getComputeServices().getImageSupport();
-                
+            if( template.exists() ) {
                 vm.setProviderMachineImageId(imageId);
-                vm.setArchitecture(support.getArchitecture(template));
-                vm.setPlatform(support.getPlatform(template));
+                vm.setArchitecture(template.getArchitecture());
+                vm.setPlatform(template.getPlatform());
             }
             else if( imageId.startsWith("/vAppTemplate") ) {
                 vm.setProviderMachineImageId(imageId);
@@ -720,7 +1348,7 @@ public class VmSupport implements VirtualMachineSupport {
             vm.setPublicIpAddresses(publicIpAddresses.toArray(new String[0]));
         }
         vm.setProviderVlanId(providerNetworkId);
-        vm.setRootPassword(getSection(vcloudVm, GuestCustomizationSection.class).getAdminPassword());
+        vm.setRootPassword(sections.require(GuestCustomizationSection.class).getAdminPassword());
         vm.setRootUser(vm.getPlatform().isWindows() ? "administrator" : "root");
         vm.setTags(new HashMap<String,String>());
         switch( vcloudVm.getStatus() ) {
@@ -774,7 +1402,7 @@ public class VmSupport implements VirtualMachineSupport {
         return vm;
     }
     
-    private Collection<VirtualMachine> toVirtualMachines(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, VApp app) throws CloudException, InternalException {
+    @Nonnull Collection<VirtualMachine> toVirtualMachines(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, VApp app) throws CloudException, InternalException {
         ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
         
         for( Vm vm : app.getChildren().getVms() ) {
@@ -787,9 +1415,18 @@ public class VmSupport implements VirtualMachineSupport {
         return vms;
     }
 
+    /**
+     * Scans for a single section. Code that reads several sections of the same object should use a {@link SectionIndex}.
+     */
     public static <S extends SectionType> S getSection(AbstractVAppType vapp, Class<S> sectionClass) {
-        S section = (S) Iterables.find(vapp.getSections(), Predicates.instanceOf(sectionClass));
-        return section;
+        if( vapp.getSections() != null ) {
+            for( SectionType section : vapp.getSections() ) {
+                if( sectionClass.isInstance(section) ) {
+                    return sectionClass.cast(section);
+                }
+            }
+        }
+        throw new NoSuchElementException("No " + sectionClass.getSimpleName() + " in " + vapp.getHref());
     }
 
 }
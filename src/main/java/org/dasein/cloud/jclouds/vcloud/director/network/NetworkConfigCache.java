@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director.network;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the addressing configuration of org networks by href so that VLAN lookups and launches can describe a
+ * network without fetching it again, or fetching every other network in the org. Entries are refreshed by any
+ * network fetch or VLAN listing, dropped when a network leaves the org or is found to be gone, and otherwise
+ * expire after <code>vcloud.networkConfig.ttlMillis</code> (default 10 minutes). One cache is kept per account.
+ */
+public class NetworkConfigCache {
+    static public final String TTL = "vcloud.networkConfig.ttlMillis";
+
+    /**
+     * The name, owner and IP scope of a network, with the CIDR computed once from the gateway and netmask.
+     */
+    static public class NetworkConfig {
+        private final URI    href;
+        private final String name;
+        private final String description;
+        private final URI    orgHref;
+        private final String gateway;
+        private final String netmask;
+        private final String dns1;
+        private final String dns2;
+        private final String dnsSuffix;
+        private final String cidr;
+        private final long   loaded = System.currentTimeMillis();
+
+        NetworkConfig(@Nonnull URI href, @Nullable String name, @Nullable String description, @Nullable URI orgHref, @Nullable String gateway, @Nullable String netmask, @Nullable String dns1, @Nullable String dns2, @Nullable String dnsSuffix, @Nullable String cidr) {
+            this.href = href;
+            this.name = name;
+            this.description = description;
+            this.orgHref = orgHref;
+            this.gateway = gateway;
+            this.netmask = netmask;
+            this.dns1 = dns1;
+            this.dns2 = dns2;
+            this.dnsSuffix = dnsSuffix;
+            this.cidr = cidr;
+        }
+
+        public @Nonnull URI getHref() { return href; }
+
+        public @Nullable String getName() { return name; }
+
+        public @Nullable String getDescription() { return description; }
+
+        /**
+         * @return the org that owns the network, or <code>null</code> if it came from a query record of the current org
+         */
+        public @Nullable URI getOrgHref() { return orgHref; }
+
+        public @Nullable String getGateway() { return gateway; }
+
+        public @Nullable String getNetmask() { return netmask; }
+
+        public @Nullable String getDnsSuffix() { return dnsSuffix; }
+
+        public @Nullable String getCidr() { return cidr; }
+
+        public @Nonnull String[] getDnsServers() {
+            if( dns1 == null ) {
+                return (dns2 == null ? new String[0] : new String[] { dns2 });
+            }
+            return (dns2 == null ? new String[] { dns1 } : new String[] { dns1, dns2 });
+        }
+    }
+
+    static private final ConcurrentHashMap<String,NetworkConfigCache> caches = new ConcurrentHashMap<String,NetworkConfigCache>();
+
+    static public @Nonnull NetworkConfigCache getInstance(@Nonnull String key) {
+        NetworkConfigCache cache = caches.get(key);
+
+        if( cache == null ) {
+            cache = new NetworkConfigCache();
+            NetworkConfigCache existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    private final ConcurrentHashMap<URI,NetworkConfig> configs = new ConcurrentHashMap<URI,NetworkConfig>();
+
+    private NetworkConfigCache() { }
+
+    /**
+     * @param href the network
+     * @param ttl how long a cached configuration remains valid, in milliseconds
+     * @return the cached configuration, or <code>null</code> if there is none or it has expired
+     */
+    public @Nullable NetworkConfig get(@Nonnull URI href, long ttl) {
+        NetworkConfig config = configs.get(href);
+
+        if( config == null || (System.currentTimeMillis() - config.loaded) >= ttl ) {
+            return null;
+        }
+        return config;
+    }
+
+    public @Nonnull NetworkConfig put(@Nonnull NetworkConfig config) {
+        configs.put(config.getHref(), config);
+        return config;
+    }
+
+    public void invalidate(@Nonnull URI href) {
+        configs.remove(href);
+    }
+
+    public void invalidate() {
+        configs.clear();
+    }
+}
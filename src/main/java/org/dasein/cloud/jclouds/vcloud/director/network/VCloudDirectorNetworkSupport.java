@@ -18,20 +18,29 @@
 
 package org.dasein.cloud.jclouds.vcloud.director.network;
 
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.jclouds.vcloud.director.FetchPipeline;
+import org.dasein.cloud.jclouds.vcloud.director.QueryPager;
 import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.dasein.cloud.jclouds.vcloud.director.network.NetworkConfigCache.NetworkConfig;
 import org.dasein.cloud.network.NetworkInterface;
 import org.dasein.cloud.network.Subnet;
 import org.dasein.cloud.network.VLAN;
@@ -42,16 +51,18 @@ import org.jclouds.vcloud.director.v1_5.VCloudDirectorMediaType;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminAsyncClient;
 import org.jclouds.vcloud.director.v1_5.admin.VCloudDirectorAdminClient;
 import org.jclouds.vcloud.director.v1_5.domain.Reference;
-import org.jclouds.vcloud.director.v1_5.domain.Vm;
 import org.jclouds.vcloud.director.v1_5.domain.network.IpScope;
 import org.jclouds.vcloud.director.v1_5.domain.network.Network;
 import org.jclouds.vcloud.director.v1_5.domain.network.NetworkConnection;
 import org.jclouds.vcloud.director.v1_5.domain.org.AdminOrg;
+import org.jclouds.vcloud.director.v1_5.domain.query.QueryResultNetworkRecord;
 import org.jclouds.vcloud.director.v1_5.domain.section.NetworkConnectionSection;
 
-import com.google.common.base.Predicates;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class VCloudDirectorNetworkSupport implements VLANSupport {
     static private final Logger logger = Logger.getLogger(VCloudDirectorNetworkSupport.class);
@@ -72,12 +83,30 @@ public class VCloudDirectorNetworkSupport implements VLANSupport {
 
     @Override
     public VLAN getVlan(String vlanId) throws CloudException, InternalException {
-        for( VLAN vlan : listVlans() ) {
-            if( vlan.getProviderVlanId().equals(vlanId) ) {
-                return vlan;
+        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        
+        try {
+            try {
+                NetworkConfig config = getNetworkConfig(ctx, provider.toHref(ctx, vlanId));
+                
+                if( config == null ) {
+                    return null;
+                }
+                URI orgHref = config.getOrgHref();
+                
+                return toVlan(ctx, config, orgHref == null ? provider.getOrg().getName() : provider.getOrg(orgHref).getName());
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error looking up VLAN " + vlanId + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
             }
         }
-        return null;
+        finally {
+            ctx.close();
+        }
     }
 
     @Override
@@ -96,58 +125,45 @@ public class VCloudDirectorNetworkSupport implements VLANSupport {
 
     @Override
     public Iterable<NetworkInterface> listNetworkInterfaces(String forVmId) throws CloudException, InternalException {
-        RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
+        List<NetworkInterface> nics = listNetworkInterfaces(Collections.singletonList(forVmId)).get(forVmId);
+        
+        return (nics == null ? Collections.<NetworkInterface>emptyList() : nics);
+    }
+
+    /**
+     * Lists the network interfaces of many VMs at once. The org's networks are described once from the VLAN
+     * index and the network configuration cache, and the network connection sections of the VMs are fetched in
+     * parallel. The interface on each VM's primary connection, or its lowest-numbered connection if none is
+     * marked primary, is flagged as the default route.
+     * @param vmIds the VMs whose interfaces are wanted
+     * @return the interfaces of each VM that exists, keyed by VM id in the order requested
+     * @throws CloudException the networks or connection sections could not be read
+     * @throws InternalException an internal error occurred reading the networks
+     */
+    public @Nonnull Map<String,List<NetworkInterface>> listNetworkInterfaces(@Nonnull Collection<String> vmIds) throws CloudException, InternalException {
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
         try {
             try {
-                Set<Reference> refs = provider.getOrg().getNetworks();
-                List<NetworkInterface> list = Lists.newArrayList();
-                List<Network> networks = Lists.newArrayList();
-                Vm vm = ctx.getApi().getVmClient().getVm(provider.toHref(ctx, forVmId));
-                NetworkConnection def = null;
-
-                if( refs != null ) {
-                    for( Reference t : refs ) {
-                        if( t.getType().equals(VCloudDirectorMediaType.NETWORK) ) {
-                            Network network = ctx.getApi().getNetworkClient().getNetwork(t.getHref());
-                            
-                            if( network != null ) {
-                                networks.add(network);
-                            }
-                        }
+                Map<String,NetworkConfig> networks = getNetworkSnapshot(ctx);
+                ArrayList<String> ids = new ArrayList<String>(vmIds);
+                List<NetworkConnectionSection> sections = FetchPipeline.fetchAll(provider, ids, new FetchPipeline.Fetcher<String,NetworkConnectionSection>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends NetworkConnectionSection> fetch(@Nonnull String vmId) {
+                        return ctx.getAsyncApi().getVmClient().getNetworkConnectionSection(provider.toHref(ctx, vmId));
                     }
-                }
-                NetworkConnectionSection section = (NetworkConnectionSection) Iterables.find(vm.getSections(), Predicates.instanceOf(NetworkConnectionSection.class));
-                for( NetworkConnection c : section.getNetworkConnections() ) {
-                    NetworkInterface nic = new NetworkInterface();
-                    
-                    nic.setProviderNetworkInterfaceId(c.getMACAddress());
-                    nic.setIpAddress(c.getIpAddress());
-                    nic.setProviderVirtualMachineId(forVmId);
-                    for( Network network : networks ) {
-                        if( network.getName().equals(c.getNetwork()) ) {
-                            IpScope scope = network.getConfiguration().getIpScope();
-                            
-                            if( def == null || def.getNetworkConnectionIndex() > c.getNetworkConnectionIndex() ) {
-                                def = c;
-                            }
-                            nic.setGatewayAddress(scope.getGateway());
-                            nic.setNetmask(scope.getNetmask());
-                            nic.setProviderVlanId(provider.toId(ctx, network.getHref()));
-                        }
-                    }
-                }
-                if( def != null ) {
-                    for( NetworkInterface nic : list ) {
-                        if( def.getMACAddress().equals(nic.getProviderNetworkInterfaceId()) ) {
-                            nic.setDefaultRoute(true);
-                        }
+                }, AuthorizationException.class);
+                LinkedHashMap<String,List<NetworkInterface>> results = new LinkedHashMap<String,List<NetworkInterface>>();
+                
+                for( int i=0; i<ids.size(); i++ ) {
+                    if( sections.get(i) != null ) {
+                        results.put(ids.get(i), toNetworkInterfaces(ctx, ids.get(i), sections.get(i), networks));
                     }
                 }
-                return list;
+                return results;
             }
             catch( RuntimeException e ) {
-                logger.error("Error listing network interfaces for " + forVmId + ": " + e.getMessage());
+                logger.error("Error listing network interfaces for " + vmIds.size() + " VMs: " + e.getMessage());
                 if( logger.isDebugEnabled() ) {
                     e.printStackTrace();
                 }
@@ -159,24 +175,187 @@ public class VCloudDirectorNetworkSupport implements VLANSupport {
         }
     }
     
+    private @Nonnull Map<String,NetworkConfig> getNetworkSnapshot(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx) throws CloudException, InternalException {
+        HashMap<String,NetworkConfig> networks = new HashMap<String,NetworkConfig>();
+        
+        for( VLAN vlan : provider.getVlanIndex().getVlans() ) {
+            NetworkConfig config = getNetworkConfig(ctx, provider.toHref(ctx, vlan.getProviderVlanId()));
+            
+            if( config != null && config.getName() != null ) {
+                networks.put(config.getName(), config);
+            }
+        }
+        return networks;
+    }
+    
+    private @Nonnull List<NetworkInterface> toNetworkInterfaces(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull String vmId, @Nonnull NetworkConnectionSection section, @Nonnull Map<String,NetworkConfig> networks) {
+        ArrayList<NetworkInterface> list = new ArrayList<NetworkInterface>();
+        NetworkConnection def = null;
+        
+        if( section.getNetworkConnections() == null ) {
+            return list;
+        }
+        Integer primary = section.getPrimaryNetworkConnectionIndex();
+        
+        for( NetworkConnection c : section.getNetworkConnections() ) {
+            if( primary != null && primary.intValue() == c.getNetworkConnectionIndex() ) {
+                def = c;
+                break;
+            }
+        }
+        if( def == null ) {
+            for( NetworkConnection c : section.getNetworkConnections() ) {
+                if( def == null || def.getNetworkConnectionIndex() > c.getNetworkConnectionIndex() ) {
+                    def = c;
+                }
+            }
+        }
+        for( NetworkConnection c : section.getNetworkConnections() ) {
+            NetworkInterface nic = new NetworkInterface();
+            NetworkConfig network = networks.get(c.getNetwork());
+            
+            nic.setProviderNetworkInterfaceId(c.getMACAddress());
+            nic.setIpAddress(c.getIpAddress());
+            nic.setProviderVirtualMachineId(vmId);
+            if( network != null ) {
+                nic.setGatewayAddress(network.getGateway());
+                nic.setNetmask(network.getNetmask());
+                nic.setProviderVlanId(provider.toId(ctx, network.getHref()));
+            }
+            nic.setDefaultRoute(c == def);
+            list.add(nic);
+        }
+        return list;
+    }
+    
     @Override
     public Iterable<VLAN> listVlans() throws CloudException, InternalException {
+        return new ArrayList<VLAN>(provider.getVlanIndex().getVlans());
+    }
+
+    /**
+     * Lists the VLANs of the current org without blocking the caller. A current VLAN index answers immediately;
+     * otherwise the networks are fetched through the async client and the index is rebuilt from them.
+     * @return a future completing with the VLANs
+     */
+    public @Nonnull ListenableFuture<List<VLAN>> listVlansAsync() {
+        return provider.getVlanIndex().getVlansAsync();
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #loadVlans()}. Requests go out through the account's shared async client
+     * and the networks are mapped into VLANs on the provider's callback executor.
+     * @param networks the networks of the org, as listed in the org's references
+     * @return a future completing with the VLANs, or failing with a {@link CloudException}
+     */
+    @Nonnull ListenableFuture<List<VLAN>> loadVlansAsync(@Nonnull Collection<URI> networks) {
+        final RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx;
+        final SettableFuture<List<VLAN>> result = SettableFuture.create();
+        final AdminOrg org;
+        ListenableFuture<List<VLAN>> vlans;
+
+        try {
+            org = provider.getOrg();
+            ctx = provider.getSharedCloudClient();
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        try {
+            if( QueryPager.isEnabled(provider) ) {
+                ListenableFuture<List<QueryResultNetworkRecord>> records = QueryPager.queryAllAsync(provider, ctx, QueryPager.ORG_NETWORK, null, QueryResultNetworkRecord.class);
+
+                vlans = Futures.transform(records, new AsyncFunction<List<QueryResultNetworkRecord>,List<VLAN>>() {
+                    @Override
+                    public ListenableFuture<List<VLAN>> apply(List<QueryResultNetworkRecord> records) throws CloudException {
+                        ArrayList<VLAN> list = new ArrayList<VLAN>();
+
+                        for( QueryResultNetworkRecord record : records ) {
+                            list.add(toVlan(ctx, org.getName(), record));
+                        }
+                        return Futures.<List<VLAN>>immediateFuture(list);
+                    }
+                }, VCloudDirector.getCallbackExecutor());
+            }
+            else {
+                ListenableFuture<List<Network>> fetched = FetchPipeline.fetchAllAsync(provider, networks, new FetchPipeline.Fetcher<URI,Network>() {
+                    @Override
+                    public @Nonnull ListenableFuture<? extends Network> fetch(@Nonnull URI href) {
+                        return ctx.getAsyncApi().getNetworkClient().getNetwork(href);
+                    }
+                });
+
+                vlans = Futures.transform(fetched, new AsyncFunction<List<Network>,List<VLAN>>() {
+                    @Override
+                    public ListenableFuture<List<VLAN>> apply(List<Network> networks) throws CloudException {
+                        HashMap<URI,String> owners = new HashMap<URI,String>();
+                        ArrayList<VLAN> list = new ArrayList<VLAN>();
+
+                        for( Network network : networks ) {
+                            VLAN vlan = toVlan(ctx, network, owners);
+
+                            if( vlan != null ) {
+                                list.add(vlan);
+                            }
+                        }
+                        return Futures.<List<VLAN>>immediateFuture(list);
+                    }
+                }, VCloudDirector.getCallbackExecutor());
+            }
+        }
+        catch( RuntimeException e ) {
+            vlans = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(vlans, new FutureCallback<List<VLAN>>() {
+            @Override
+            public void onSuccess(List<VLAN> list) {
+                ctx.close();
+                result.set(list);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                ctx.close();
+                if( t instanceof CloudException ) {
+                    result.setException(t);
+                    return;
+                }
+                logger.error("Error listing VLANs: " + t.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    t.printStackTrace();
+                }
+                result.setException(new CloudException(t));
+            }
+        });
+        return result;
+    }
+
+    @Nonnull List<VLAN> loadVlans() throws CloudException, InternalException {
         RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx = provider.getCloudClient();
         
         try {
             try {
                 ArrayList<VLAN> list = new ArrayList<VLAN>();
                 AdminOrg org = provider.getOrg();
+                
+                if( QueryPager.isEnabled(provider) ) {
+                    for( QueryResultNetworkRecord record : QueryPager.queryAll(provider, ctx, QueryPager.ORG_NETWORK, null, QueryResultNetworkRecord.class) ) {
+                        list.add(toVlan(ctx, org.getName(), record));
+                    }
+                    return list;
+                }
                 Set<Reference> refs = org.getNetworks();
                 
                 if( refs == null ) {
-                    return Collections.emptyList();
+                    return list;
                 }
+                HashMap<URI,String> owners = new HashMap<URI,String>();
+                
                 for( Reference type : refs ) {
                     if( type.getType().equals(VCloudDirectorMediaType.NETWORK) ) {
                         Network network = ctx.getApi().getNetworkClient().getNetwork(type.getHref());
                         
-                        VLAN vlan = toVlan(ctx, network);
+                        VLAN vlan = toVlan(ctx, network, owners);
                         
                         if( vlan != null ) {
                             list.add(vlan);
@@ -208,7 +387,10 @@ public class VCloudDirectorNetworkSupport implements VLANSupport {
         throw new OperationNotSupportedException("Network provisioning is not supported");
     }
 
-    private String toCidr(String gateway, String netmask) {
+    String toCidr(String gateway, String netmask) {
+        if( gateway == null || netmask == null ) {
+            return null;
+        }
         String[] dots = netmask.split("\\.");
         int cidr = 0;
         
@@ -253,53 +435,92 @@ public class VCloudDirectorNetworkSupport implements VLANSupport {
         return network.toString();
     }
     
-    private VLAN toVlan(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, Network network) throws CloudException {
+    VLAN toVlan(RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, Network network, Map<URI,String> owners) throws CloudException {
         if( network == null ) {
             return null;
         }
-        AdminOrg org = provider.getOrg(network.getOrg().getHref());
+        NetworkConfig config = getConfigCache().put(toNetworkConfig(network));
+        URI orgHref = config.getOrgHref();
+        String owner = owners.get(orgHref);
+        
+        if( owner == null ) {
+            owner = provider.getOrg(orgHref).getName();
+            owners.put(orgHref, owner);
+        }
+        return toVlan(ctx, config, owner);
+    }
+
+    @Nonnull VLAN toVlan(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull String owner, @Nonnull QueryResultNetworkRecord record) throws CloudException {
+        NetworkConfig config = new NetworkConfig(record.getHref(), record.getName(), null, null, record.getGateway(), record.getNetmask(), record.getDns1(), record.getDns2(), record.getDnsSuffix(), toCidr(record.getGateway(), record.getNetmask()));
+        
+        return toVlan(ctx, getConfigCache().put(config), owner);
+    }
+
+    private @Nonnull VLAN toVlan(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull NetworkConfig config, @Nonnull String owner) throws CloudException {
         VLAN vlan = new VLAN();
 
-        vlan.setProviderOwnerId(org.getName());
+        vlan.setProviderOwnerId(owner);
         vlan.setProviderRegionId(provider.getContext().getRegionId());
-        vlan.setProviderVlanId(provider.toId(ctx, network.getHref()));
-        vlan.setName(network.getName());
+        vlan.setProviderVlanId(provider.toId(ctx, config.getHref()));
+        vlan.setName(config.getName());
         if( vlan.getName() == null ) {
             vlan.setName(vlan.getProviderVlanId());
         }
-        vlan.setDescription(network.getDescription());
+        vlan.setDescription(config.getDescription());
         if( vlan.getDescription() == null ) {
             vlan.setDescription(vlan.getName());
         }
-        IpScope scope = network.getConfiguration().getIpScope();
+        vlan.setCidr(config.getCidr());
+        vlan.setGateway(config.getGateway());
+        vlan.setDnsServers(config.getDnsServers());
+        return vlan;
+    }
+
+    @Nonnull NetworkConfig toNetworkConfig(@Nonnull Network network) {
+        IpScope scope = (network.getConfiguration() == null ? null : network.getConfiguration().getIpScope());
+        URI orgHref = (network.getOrg() == null ? null : network.getOrg().getHref());
         
-        if( scope != null ) {
-            String netmask = scope.getNetmask();
-            String gateway = scope.getGateway();
-            
-            if( netmask != null && gateway != null ) {
-                vlan.setCidr(toCidr(gateway, netmask));
-            }
-            vlan.setGateway(gateway);
-            if( scope.getDns2() == null ) {
-                if( scope.getDns1() == null ) {
-                    vlan.setDnsServers(new String[0]);            
-                }
-                else {
-                    vlan.setDnsServers(new String[] { scope.getDns1() });
-                }
-            }
-            else if( scope.getDns1() == null ) {
-                vlan.setDnsServers(new String[] { scope.getDns2() });
-            }
-            else {
-                vlan.setDnsServers(new String[] { scope.getDns1(), scope.getDns2() });
-            }
+        if( scope == null ) {
+            return new NetworkConfig(network.getHref(), network.getName(), network.getDescription(), orgHref, null, null, null, null, null, null);
+        }
+        return new NetworkConfig(network.getHref(), network.getName(), network.getDescription(), orgHref, scope.getGateway(), scope.getNetmask(), scope.getDns1(), scope.getDns2(), scope.getDnsSuffix(), toCidr(scope.getGateway(), scope.getNetmask()));
+    }
+
+    /**
+     * Describes a network from the configuration cache, fetching only that network if it is not cached. A network
+     * that turns out not to exist is also dropped from the VLAN index.
+     * @param ctx the context through which to fetch the network
+     * @param href the network
+     * @return the network's configuration, or <code>null</code> if there is no such network
+     * @throws CloudException no context was set for this request
+     */
+    @Nullable NetworkConfig getNetworkConfig(@Nonnull RestContext<VCloudDirectorAdminClient, VCloudDirectorAdminAsyncClient> ctx, @Nonnull URI href) throws CloudException {
+        NetworkConfigCache cache = getConfigCache();
+        NetworkConfig config = cache.get(href, provider.getLongProperty(NetworkConfigCache.TTL, 600000L));
+        
+        if( config != null ) {
+            return config;
         }
-        else {
-            vlan.setDnsServers(new String[0]);            
+        Network network;
+        
+        try {
+            network = ctx.getApi().getNetworkClient().getNetwork(href);
         }
-        return vlan;
+        catch( AuthorizationException e ) {
+            // vCloud Director answers 403 for networks that do not exist
+            network = null;
+        }
+        if( network == null ) {
+            // the network was removed behind our back, so stop describing it
+            cache.invalidate(href);
+            provider.getVlanIndex().invalidate(provider.toId(ctx, href));
+            return null;
+        }
+        return cache.put(toNetworkConfig(network));
+    }
+
+    private @Nonnull NetworkConfigCache getConfigCache() throws CloudException {
+        return NetworkConfigCache.getInstance(provider.getContextKey());
     }
 
     @Override
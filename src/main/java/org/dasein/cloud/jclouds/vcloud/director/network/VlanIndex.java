@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.jclouds.vcloud.director.network;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.director.VCloudDirector;
+import org.dasein.cloud.network.VLAN;
+import org.jclouds.vcloud.director.v1_5.VCloudDirectorMediaType;
+import org.jclouds.vcloud.director.v1_5.domain.Reference;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Name and id index over the VLANs of the current org, shared by the VM and network support of a provider.
+ * The index is rebuilt when its TTL expires, when the set of networks in the org changes, or when it is
+ * explicitly invalidated.
+ */
+public class VlanIndex {
+    static public final String TTL = "vcloud.vlanIndex.ttlMillis";
+
+    static private class Snapshot {
+        private final List<VLAN>     vlans;
+        private final Map<String,VLAN> byName;
+        private final Map<String,VLAN> byId;
+        private final Set<URI>       networks;
+        private final long           built;
+
+        Snapshot(@Nonnull List<VLAN> vlans, @Nonnull Set<URI> networks) {
+            HashMap<String,VLAN> byName = new HashMap<String,VLAN>();
+            HashMap<String,VLAN> byId = new HashMap<String,VLAN>();
+
+            for( VLAN vlan : vlans ) {
+                byName.put(vlan.getName().toLowerCase(Locale.ENGLISH), vlan);
+                byId.put(vlan.getProviderVlanId(), vlan);
+            }
+            this.vlans = Collections.unmodifiableList(vlans);
+            this.byName = byName;
+            this.byId = byId;
+            this.networks = networks;
+            this.built = System.currentTimeMillis();
+        }
+    }
+
+    private final VCloudDirector provider;
+    private volatile Snapshot    snapshot;
+
+    public VlanIndex(@Nonnull VCloudDirector provider) { this.provider = provider; }
+
+    private @Nonnull Snapshot getSnapshot() throws CloudException, InternalException {
+        Snapshot s = snapshot;
+        Set<URI> networks = getNetworkReferences();
+
+        if( s != null && isCurrent(s, networks) ) {
+            return s;
+        }
+        synchronized( this ) {
+            s = snapshot;
+            if( s != null && isCurrent(s, networks) ) {
+                return s;
+            }
+            forgetRemoved(s, networks);
+            s = new Snapshot(provider.getNetworkServices().getVlanSupport().loadVlans(), networks);
+            snapshot = s;
+            return s;
+        }
+    }
+
+    private @Nonnull Set<URI> getNetworkReferences() throws CloudException {
+        HashSet<URI> networks = new HashSet<URI>();
+        Set<Reference> refs = provider.getOrg().getNetworks();
+
+        if( refs != null ) {
+            for( Reference ref : refs ) {
+                if( ref.getType().equals(VCloudDirectorMediaType.NETWORK) ) {
+                    networks.add(ref.getHref());
+                }
+            }
+        }
+        return networks;
+    }
+
+    /**
+     * Drops the cached configuration of every network that has left the org since the previous snapshot was built.
+     */
+    private void forgetRemoved(@Nullable Snapshot previous, @Nonnull Set<URI> networks) throws CloudException {
+        if( previous == null ) {
+            return;
+        }
+        NetworkConfigCache cache = NetworkConfigCache.getInstance(provider.getContextKey());
+
+        for( URI href : previous.networks ) {
+            if( !networks.contains(href) ) {
+                cache.invalidate(href);
+            }
+        }
+    }
+
+    private boolean isCurrent(@Nonnull Snapshot s, @Nonnull Set<URI> networks) {
+        long ttl = provider.getLongProperty(TTL, 60000L);
+
+        return ((System.currentTimeMillis() - s.built) < ttl && s.networks.equals(networks));
+    }
+
+    public @Nonnull List<VLAN> getVlans() throws CloudException, InternalException {
+        return getSnapshot().vlans;
+    }
+
+    /**
+     * Lists the VLANs without blocking the caller. A current snapshot answers immediately; otherwise the networks
+     * are loaded through the async client and become the new snapshot.
+     * @return a future completing with the VLANs
+     */
+    public @Nonnull ListenableFuture<List<VLAN>> getVlansAsync() {
+        final Set<URI> networks;
+
+        try {
+            networks = getNetworkReferences();
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        Snapshot s = snapshot;
+
+        if( s != null && isCurrent(s, networks) ) {
+            return Futures.immediateFuture(s.vlans);
+        }
+        try {
+            forgetRemoved(s, networks);
+        }
+        catch( CloudException e ) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return Futures.transform(provider.getNetworkServices().getVlanSupport().loadVlansAsync(networks), new Function<List<VLAN>,List<VLAN>>() {
+            @Override
+            public List<VLAN> apply(List<VLAN> vlans) {
+                Snapshot s = new Snapshot(vlans, networks);
+
+                snapshot = s;
+                return s.vlans;
+            }
+        });
+    }
+
+    public @Nullable VLAN getVlanById(@Nonnull String vlanId) throws CloudException, InternalException {
+        return getSnapshot().byId.get(vlanId);
+    }
+
+    public @Nullable VLAN getVlanByName(@Nullable String name) throws CloudException, InternalException {
+        if( name == null ) {
+            return null;
+        }
+        return getSnapshot().byName.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Forgets the snapshot if it lists the specified VLAN, for callers that found the VLAN no longer exists.
+     * @param vlanId the VLAN that has gone away
+     */
+    public void invalidate(@Nonnull String vlanId) {
+        Snapshot s = snapshot;
+
+        if( s != null && s.byId.containsKey(vlanId) ) {
+            snapshot = null;
+        }
+    }
+
+    public void invalidate() {
+        snapshot = null;
+    }
+}
@@ -0,0 +1,614 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the parts of the vCloud Director 1.5 REST API the provider uses: login, org,
+ * VDC, vApp, VM, catalog, template, network and task resources plus the power, deploy, compose and delete
+ * actions. It holds a fleet of single-VM vApps and a catalog of templates, answers every request after a
+ * configurable latency, and reports tasks as running until a configurable duration has passed. Typed
+ * <code>vm</code>, <code>vAppTemplate</code> and <code>orgNetwork</code> record queries are paged. Every
+ * request is counted by HTTP method and resource type so tests can put budgets on REST traffic.
+ */
+public class MockVCloudDirector {
+    static public final String ORG_ID     = "6f312e42-cd2b-488d-a2bb-97519cd57ed0";
+    static public final String ORG_NAME   = "acme";
+    static public final String VDC_ID     = "e9cd3387-ac57-4d27-a481-9bee75e0690f";
+    static public final String NETWORK_ID = "55a677cf-ab3f-48ae-b880-fab90421980c";
+    static public final String CATALOG_ID = "0e1e3bba-5ea0-4a6f-8c0b-1b6ea9fc62ba";
+
+    static private final String NS = "xmlns=\"http://www.vmware.com/vcloud/v1.5\" xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\" "
+            + "xmlns:vssd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_VirtualSystemSettingData\" "
+            + "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\"";
+
+    static private class VAppRecord {
+        private final String  id;
+        private final String  vmId;
+        private final String  name;
+        private final String  templateId;
+        private volatile int  cpus = 1;
+        private volatile int  ram = 1024;
+        private volatile boolean poweredOn;
+        private volatile boolean deployed;
+        private volatile String  busyTask;
+
+        VAppRecord(@Nonnull String name, @Nonnull String templateId, boolean poweredOn) {
+            this.id = UUID.randomUUID().toString();
+            this.vmId = UUID.randomUUID().toString();
+            this.name = name;
+            this.templateId = templateId;
+            this.poweredOn = poweredOn;
+            this.deployed = poweredOn;
+        }
+    }
+
+    static private class TaskRecord {
+        private final String id = UUID.randomUUID().toString();
+        private final String operation;
+        private final String ownerHref;
+        private final long   started = System.currentTimeMillis();
+        private final long   duration;
+
+        TaskRecord(@Nonnull String operation, @Nonnull String ownerHref, long duration) {
+            this.operation = operation;
+            this.ownerHref = ownerHref;
+            this.duration = duration;
+        }
+
+        boolean isDone() {
+            return ((System.currentTimeMillis() - started) >= duration);
+        }
+    }
+
+    private final ConcurrentHashMap<String,VAppRecord> vApps = new ConcurrentHashMap<String,VAppRecord>();
+    private final ConcurrentHashMap<String,VAppRecord> vms = new ConcurrentHashMap<String,VAppRecord>();
+    private final ConcurrentHashMap<String,TaskRecord> tasks = new ConcurrentHashMap<String,TaskRecord>();
+    private final List<String>                         templates = new ArrayList<String>();
+    private final ConcurrentHashMap<String,AtomicInteger> counts = new ConcurrentHashMap<String,AtomicInteger>();
+    private final AtomicLong                           total = new AtomicLong(0L);
+
+    private volatile long latency = 0L;
+    private volatile long taskDuration = 250L;
+    private HttpServer      server;
+    private ExecutorService threads;
+
+    /**
+     * @param fleetSize the number of running single-VM vApps in the VDC
+     * @param catalogSize the number of templates in the org's catalog
+     */
+    public MockVCloudDirector(int fleetSize, int catalogSize) {
+        for( int i=0; i<catalogSize; i++ ) {
+            templates.add(UUID.randomUUID().toString());
+        }
+        for( int i=0; i<fleetSize; i++ ) {
+            VAppRecord app = new VAppRecord("vm-" + i, templates.get(i % templates.size()), true);
+
+            add(app);
+        }
+    }
+
+    private void add(@Nonnull VAppRecord app) {
+        vApps.put(app.id, app);
+        vms.put(app.vmId, app);
+    }
+
+    /**
+     * @param millis the delay added before answering each request
+     */
+    public void setLatency(long millis) {
+        latency = millis;
+    }
+
+    /**
+     * @param millis how long each task reports itself as running
+     */
+    public void setTaskDuration(long millis) {
+        taskDuration = millis;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        threads = Executors.newFixedThreadPool(16);
+        server.setExecutor(threads);
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                }
+                catch( RuntimeException e ) {
+                    respond(exchange, 500, error(500, e.toString()));
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        if( server != null ) {
+            server.stop(0);
+            threads.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the API endpoint to configure in the provider context
+     */
+    public @Nonnull String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    public @Nonnull String getTemplateId(int index) {
+        return "/vAppTemplate/vappTemplate-" + templates.get(index);
+    }
+
+    public @Nonnull String getVmId(int index) {
+        return "/vApp/vm-" + new ArrayList<VAppRecord>(vApps.values()).get(index).vmId;
+    }
+
+    public @Nonnull String getNetworkId() {
+        return "/network/" + NETWORK_ID;
+    }
+
+    public int getFleetSize() {
+        return vApps.size();
+    }
+
+    public long getRequestCount() {
+        return total.get();
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param type the resource type, such as <code>vApp</code>, <code>vm</code>, <code>task</code> or <code>action</code>
+     * @return the number of matching requests since the counts were last reset
+     */
+    public int getRequestCount(@Nonnull String method, @Nonnull String type) {
+        AtomicInteger count = counts.get(method + " " + type);
+
+        return (count == null ? 0 : count.get());
+    }
+
+    public @Nonnull Map<String,Integer> getRequestCounts() {
+        TreeMap<String,Integer> map = new TreeMap<String,Integer>();
+
+        for( Map.Entry<String,AtomicInteger> entry : counts.entrySet() ) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
+    public void resetCounts() {
+        counts.clear();
+        total.set(0L);
+    }
+
+    private @Nonnull String href(@Nonnull String path) {
+        return getEndpoint() + "/v1.5" + path;
+    }
+
+    private void count(@Nonnull String method, @Nonnull String type) {
+        AtomicInteger count = counts.get(method + " " + type);
+
+        if( count == null ) {
+            AtomicInteger c = new AtomicInteger(0);
+
+            count = counts.putIfAbsent(method + " " + type, c);
+            if( count == null ) {
+                count = c;
+            }
+        }
+        count.incrementAndGet();
+        total.incrementAndGet();
+    }
+
+    private void serve(@Nonnull HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath().substring("/api".length());
+
+        if( path.startsWith("/v1.5/") ) {
+            path = path.substring("/v1.5".length());
+        }
+        drain(exchange.getRequestBody());
+        if( latency > 0L ) {
+            try { Thread.sleep(latency); }
+            catch( InterruptedException e ) { Thread.currentThread().interrupt(); }
+        }
+        String[] parts = path.split("/");
+        String root = (parts.length > 1 ? parts[1] : "");
+        String id = (parts.length > 2 ? parts[2] : "");
+
+        if( root.equals("admin") && parts.length > 3 ) {
+            root = parts[2];
+            id = parts[3];
+        }
+        boolean action = path.contains("/action/") || path.contains("/power/");
+        String type = (action ? "action" : (id.startsWith("vm-") ? "vm" : root));
+
+        if( parts.length > 3 && !action && !root.equals("admin") && path.endsWith("Section/") ) {
+            type = "section";
+        }
+        count(method, type);
+        if( root.equals("sessions") ) {
+            exchange.getResponseHeaders().add("x-vcloud-authorization", UUID.randomUUID().toString());
+            respond(exchange, 200, session());
+        }
+        else if( root.equals("versions") ) {
+            respond(exchange, 200, versions());
+        }
+        else if( root.equals("org") && id.equals("") ) {
+            respond(exchange, 200, orgList());
+        }
+        else if( root.equals("org") ) {
+            respond(exchange, 200, adminOrg());
+        }
+        else if( root.equals("vdc") && (path.endsWith("/action/composeVApp") || path.endsWith("/action/instantiateVAppTemplate")) ) {
+            VAppRecord app = new VAppRecord("launched", templates.get(0), false);
+            TaskRecord task = task("vdcComposeVapp", "/vApp/vapp-" + app.id);
+
+            app.busyTask = task.id;
+            add(app);
+            respond(exchange, 201, vApp(app));
+        }
+        else if( root.equals("vdc") ) {
+            respond(exchange, 200, vdc());
+        }
+        else if( root.equals("vApp") ) {
+            serveVApp(exchange, method, path, id, action);
+        }
+        else if( root.equals("catalog") ) {
+            respond(exchange, 200, catalog());
+        }
+        else if( root.equals("catalogItem") ) {
+            String templateId = id.substring("item-".length());
+
+            respond(exchange, (templates.contains(templateId) ? 200 : 404), (templates.contains(templateId) ? catalogItem(templateId) : error(404, path)));
+        }
+        else if( root.equals("vAppTemplate") ) {
+            String templateId = id.substring("vappTemplate-".length());
+
+            respond(exchange, (templates.contains(templateId) ? 200 : 404), (templates.contains(templateId) ? vAppTemplate(templateId) : error(404, path)));
+        }
+        else if( root.equals("network") ) {
+            respond(exchange, 200, network());
+        }
+        else if( root.equals("query") ) {
+            respond(exchange, 200, query(exchange.getRequestURI().getQuery()));
+        }
+        else if( root.equals("task") ) {
+            TaskRecord task = tasks.get(id);
+
+            respond(exchange, (task == null ? 404 : 200), (task == null ? error(404, path) : task(task)));
+        }
+        else {
+            respond(exchange, 404, error(404, path));
+        }
+    }
+
+    private void serveVApp(@Nonnull HttpExchange exchange, @Nonnull String method, @Nonnull String path, @Nonnull String id, boolean action) throws IOException {
+        VAppRecord app = null;
+
+        if( id.startsWith("vapp-") ) {
+            app = vApps.get(id.substring("vapp-".length()));
+        }
+        else if( id.startsWith("vm-") ) {
+            app = vms.get(id.substring("vm-".length()));
+        }
+        if( app == null ) {
+            respond(exchange, 404, error(404, path));
+            return;
+        }
+        String owner = (id.startsWith("vm-") ? "/vApp/vm-" + app.vmId : "/vApp/vapp-" + app.id);
+
+        if( method.equals("DELETE") ) {
+            vApps.remove(app.id);
+            vms.remove(app.vmId);
+            respond(exchange, 202, task(task("vdcDeleteVapp", owner)));
+        }
+        else if( action ) {
+            String operation = path.substring(path.lastIndexOf('/') + 1);
+
+            if( operation.equals("powerOn") || operation.equals("deploy") ) {
+                app.poweredOn = true;
+                app.deployed = true;
+            }
+            else if( operation.equals("powerOff") ) {
+                app.poweredOn = false;
+            }
+            else if( operation.equals("undeploy") ) {
+                app.poweredOn = false;
+                app.deployed = false;
+            }
+            TaskRecord task = task("vapp" + operation, owner);
+
+            app.busyTask = task.id;
+            respond(exchange, 202, task(task));
+        }
+        else if( method.equals("PUT") ) {
+            TaskRecord task = task("vappUpdateVm", owner);
+
+            app.busyTask = task.id;
+            respond(exchange, 202, task(task));
+        }
+        else if( id.startsWith("vm-") && path.endsWith("/networkConnectionSection/") ) {
+            respond(exchange, 200, networkConnectionSection(app, true));
+        }
+        else if( id.startsWith("vm-") ) {
+            respond(exchange, 200, vm(app, true));
+        }
+        else {
+            respond(exchange, 200, vApp(app));
+        }
+    }
+
+    private @Nonnull TaskRecord task(@Nonnull String operation, @Nonnull String owner) {
+        TaskRecord task = new TaskRecord(operation, href(owner), taskDuration);
+
+        tasks.put(task.id, task);
+        return task;
+    }
+
+    private void drain(@Nonnull InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+
+        while( in.read(buffer) > -1 ) {
+            // discard
+        }
+        in.close();
+    }
+
+    private void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String xml) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes("utf-8");
+
+        exchange.getResponseHeaders().add("Content-Type", "application/*+xml;version=1.5");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+
+        out.write(body);
+        out.close();
+    }
+
+    private @Nonnull String ref(@Nonnull String element, @Nonnull String type, @Nullable String name, @Nonnull String path) {
+        return "<" + element + " type=\"application/vnd.vmware." + type + "+xml\"" + (name == null ? "" : " name=\"" + name + "\"") + " href=\"" + href(path) + "\"/>";
+    }
+
+    private @Nonnull String link(@Nonnull String rel, @Nonnull String type, @Nonnull String path) {
+        return "<Link rel=\"" + rel + "\" type=\"application/vnd.vmware." + type + "+xml\" href=\"" + href(path) + "\"/>";
+    }
+
+    private @Nonnull String error(int code, @Nonnull String message) {
+        return "<Error xmlns=\"http://www.vmware.com/vcloud/v1.5\" stackTrace=\"\" majorErrorCode=\"" + code + "\" message=\"" + message.replace("\"", "'") + "\" minorErrorCode=\"ACCESS_TO_RESOURCE_IS_FORBIDDEN\"/>";
+    }
+
+    private @Nonnull String versions() {
+        return "<SupportedVersions xmlns=\"http://www.vmware.com/vcloud/versions\"><VersionInfo><Version>1.5</Version><LoginUrl>" + getEndpoint() + "/sessions</LoginUrl></VersionInfo></SupportedVersions>";
+    }
+
+    private @Nonnull String session() {
+        return "<Session xmlns=\"http://www.vmware.com/vcloud/v1.5\" user=\"operator\" org=\"" + ORG_NAME + "\" type=\"application/vnd.vmware.vcloud.session+xml\" href=\"" + getEndpoint() + "/session/\">"
+                + link("down", "vcloud.orgList", "/org/")
+                + link("down", "admin.vcloud", "/admin/")
+                + "</Session>";
+    }
+
+    private @Nonnull String orgList() {
+        return "<OrgList xmlns=\"http://www.vmware.com/vcloud/v1.5\" type=\"application/vnd.vmware.vcloud.orgList+xml\" href=\"" + href("/org/") + "\">"
+                + ref("Org", "vcloud.org", ORG_NAME, "/org/" + ORG_ID)
+                + "</OrgList>";
+    }
+
+    private @Nonnull String adminOrg() {
+        return "<AdminOrg xmlns=\"http://www.vmware.com/vcloud/v1.5\" name=\"" + ORG_NAME + "\" id=\"urn:vcloud:org:" + ORG_ID + "\" type=\"application/vnd.vmware.admin.organization+xml\" href=\"" + href("/admin/org/" + ORG_ID) + "\">"
+                + "<Description>Mock org</Description><FullName>Acme Corporation</FullName><IsEnabled>true</IsEnabled>"
+                + ref("Settings", "admin.orgSettings", null, "/admin/org/" + ORG_ID + "/settings")
+                + "<Users/><Groups/>"
+                + "<Catalogs>" + ref("CatalogReference", "admin.catalog", "templates", "/catalog/" + CATALOG_ID) + "</Catalogs>"
+                + "<Vdcs>" + ref("Vdc", "vcloud.vdc", "acme-vdc", "/vdc/" + VDC_ID) + "</Vdcs>"
+                + "<Networks>" + ref("Network", "vcloud.network", "acme-net", "/network/" + NETWORK_ID) + "</Networks>"
+                + "</AdminOrg>";
+    }
+
+    private @Nonnull String vdc() {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<Vdc xmlns=\"http://www.vmware.com/vcloud/v1.5\" status=\"1\" name=\"acme-vdc\" id=\"urn:vcloud:vdc:").append(VDC_ID).append("\" type=\"application/vnd.vmware.vcloud.vdc+xml\" href=\"").append(href("/vdc/" + VDC_ID)).append("\">");
+        xml.append(link("up", "vcloud.org", "/org/" + ORG_ID));
+        xml.append(link("add", "vcloud.composeVAppParams", "/vdc/" + VDC_ID + "/action/composeVApp"));
+        xml.append("<AllocationModel>AllocationPool</AllocationModel><ResourceEntities>");
+        for( VAppRecord app : vApps.values() ) {
+            xml.append(ref("ResourceEntity", "vcloud.vApp", app.name, "/vApp/vapp-" + app.id));
+        }
+        for( String template : templates ) {
+            xml.append(ref("ResourceEntity", "vcloud.vAppTemplate", "template-" + template.substring(0, 8), "/vAppTemplate/vappTemplate-" + template));
+        }
+        xml.append("</ResourceEntities><AvailableNetworks>").append(ref("Network", "vcloud.network", "acme-net", "/network/" + NETWORK_ID)).append("</AvailableNetworks>");
+        xml.append("<NicQuota>0</NicQuota><NetworkQuota>10</NetworkQuota><VmQuota>0</VmQuota><IsEnabled>true</IsEnabled></Vdc>");
+        return xml.toString();
+    }
+
+    private @Nonnull String network() {
+        return "<OrgNetwork xmlns=\"http://www.vmware.com/vcloud/v1.5\" name=\"acme-net\" id=\"urn:vcloud:network:" + NETWORK_ID + "\" type=\"application/vnd.vmware.vcloud.orgNetwork+xml\" href=\"" + href("/network/" + NETWORK_ID) + "\">"
+                + link("up", "vcloud.org", "/org/" + ORG_ID)
+                + "<Description>Mock network</Description><Configuration><IpScope><IsInherited>false</IsInherited><Gateway>10.20.0.1</Gateway><Netmask>255.255.0.0</Netmask>"
+                + "<Dns1>10.20.0.2</Dns1><DnsSuffix>acme.example.com</DnsSuffix><IpRanges><IpRange><StartAddress>10.20.1.1</StartAddress><EndAddress>10.20.254.254</EndAddress></IpRange></IpRanges>"
+                + "</IpScope><FenceMode>natRouted</FenceMode></Configuration></OrgNetwork>";
+    }
+
+    private @Nonnull String tasks(@Nullable String busyTask) {
+        TaskRecord task = (busyTask == null ? null : tasks.get(busyTask));
+
+        if( task == null || task.isDone() ) {
+            return "";
+        }
+        return "<Tasks>" + task(task).replace(" xmlns=\"http://www.vmware.com/vcloud/v1.5\"", "") + "</Tasks>";
+    }
+
+    private @Nonnull String task(@Nonnull TaskRecord task) {
+        return "<Task xmlns=\"http://www.vmware.com/vcloud/v1.5\" status=\"" + (task.isDone() ? "success" : "running") + "\" startTime=\"2012-05-14T10:22:31.000Z\" operationName=\"" + task.operation + "\" operation=\"" + task.operation
+                + "\" expiryTime=\"2012-08-12T10:22:31.000Z\" name=\"task\" id=\"urn:vcloud:task:" + task.id + "\" type=\"application/vnd.vmware.vcloud.task+xml\" href=\"" + href("/task/" + task.id) + "\">"
+                + "<Owner type=\"application/vnd.vmware.vcloud.vApp+xml\" href=\"" + task.ownerHref + "\"/></Task>";
+    }
+
+    private @Nonnull String vApp(@Nonnull VAppRecord app) {
+        return "<VApp " + NS + " deployed=\"" + app.deployed + "\" status=\"" + (app.poweredOn ? 4 : 8) + "\" name=\"" + app.name + "\" id=\"urn:vcloud:vapp:" + app.id + "\" type=\"application/vnd.vmware.vcloud.vApp+xml\" href=\"" + href("/vApp/vapp-" + app.id) + "\">"
+                + link("up", "vcloud.vdc", "/vdc/" + VDC_ID)
+                + "<Description>/vAppTemplate/vappTemplate-" + app.templateId + "</Description>"
+                + tasks(app.busyTask)
+                + "<InMaintenanceMode>false</InMaintenanceMode><Children>" + vm(app, false) + "</Children></VApp>";
+    }
+
+    private @Nonnull String vm(@Nonnull VAppRecord app, boolean root) {
+        String path = "/vApp/vm-" + app.vmId;
+
+        return "<Vm " + (root ? NS + " " : "") + "needsCustomization=\"false\" deployed=\"" + app.deployed + "\" status=\"" + (app.poweredOn ? 4 : 8) + "\" name=\"" + app.name + "\" id=\"urn:vcloud:vm:" + app.vmId + "\" type=\"application/vnd.vmware.vcloud.vm+xml\" href=\"" + href(path) + "\">"
+                + link("up", "vcloud.vApp", "/vApp/vapp-" + app.id)
+                + "<Description>" + app.name + "</Description>"
+                + tasks(app.busyTask)
+                + "<ovf:VirtualHardwareSection xmlns:vcloud=\"http://www.vmware.com/vcloud/v1.5\" vcloud:type=\"application/vnd.vmware.vcloud.virtualHardwareSection+xml\" vcloud:href=\"" + href(path + "/virtualHardwareSection/") + "\">"
+                + "<ovf:Info>Virtual hardware requirements</ovf:Info>"
+                + "<ovf:Item><rasd:AllocationUnits>hertz * 10^6</rasd:AllocationUnits><rasd:Description>Number of Virtual CPUs</rasd:Description><rasd:ElementName>" + app.cpus + " virtual CPU(s)</rasd:ElementName><rasd:InstanceID>4</rasd:InstanceID><rasd:Reservation>0</rasd:Reservation><rasd:ResourceType>3</rasd:ResourceType><rasd:VirtualQuantity>" + app.cpus + "</rasd:VirtualQuantity><rasd:Weight>0</rasd:Weight></ovf:Item>"
+                + "<ovf:Item><rasd:AllocationUnits>byte * 2^20</rasd:AllocationUnits><rasd:Description>Memory Size</rasd:Description><rasd:ElementName>" + app.ram + " MB of memory</rasd:ElementName><rasd:InstanceID>5</rasd:InstanceID><rasd:Reservation>0</rasd:Reservation><rasd:ResourceType>4</rasd:ResourceType><rasd:VirtualQuantity>" + app.ram + "</rasd:VirtualQuantity><rasd:Weight>0</rasd:Weight></ovf:Item>"
+                + "</ovf:VirtualHardwareSection>"
+                + networkConnectionSection(app, false)
+                + "<GuestCustomizationSection type=\"application/vnd.vmware.vcloud.guestCustomizationSection+xml\" href=\"" + href(path + "/guestCustomizationSection/") + "\" ovf:required=\"false\">"
+                + "<ovf:Info>Specifies Guest OS Customization Settings</ovf:Info><Enabled>true</Enabled><ChangeSid>false</ChangeSid><VirtualMachineId>" + app.vmId + "</VirtualMachineId><JoinDomainEnabled>false</JoinDomainEnabled><UseOrgSettings>false</UseOrgSettings>"
+                + "<AdminPasswordEnabled>true</AdminPasswordEnabled><AdminPasswordAuto>true</AdminPasswordAuto><AdminPassword>secret</AdminPassword><ResetPasswordRequired>false</ResetPasswordRequired><ComputerName>" + app.name + "</ComputerName>"
+                + "</GuestCustomizationSection>"
+                + "<VAppScopedLocalId>" + app.name + "</VAppScopedLocalId></Vm>";
+    }
+
+    private @Nonnull String query(@Nullable String queryString) {
+        HashMap<String,String> params = new HashMap<String,String>();
+
+        if( queryString != null ) {
+            for( String param : queryString.split("&") ) {
+                int idx = param.indexOf('=');
+
+                if( idx > 0 ) {
+                    params.put(param.substring(0, idx), param.substring(idx + 1));
+                }
+            }
+        }
+        String type = params.get("type");
+        int page = (params.containsKey("page") ? Integer.parseInt(params.get("page")) : 1);
+        int pageSize = (params.containsKey("pageSize") ? Integer.parseInt(params.get("pageSize")) : 25);
+        ArrayList<String> records = new ArrayList<String>();
+
+        if( "vm".equals(type) ) {
+            for( VAppRecord app : vApps.values() ) {
+                records.add("<VMRecord name=\"" + app.name + "\" containerName=\"" + app.name + "\" container=\"" + href("/vApp/vapp-" + app.id) + "\" vdc=\"" + href("/vdc/" + VDC_ID)
+                        + "\" isVAppTemplate=\"false\" isDeleted=\"false\" guestOs=\"CentOS 4/5/6 (64-bit)\" numberOfCpus=\"" + app.cpus + "\" memoryMB=\"" + app.ram + "\" status=\"" + (app.poweredOn ? "POWERED_ON" : "POWERED_OFF")
+                        + "\" networkName=\"acme-net\" isBusy=\"false\" href=\"" + href("/vApp/vm-" + app.vmId) + "\"/>");
+            }
+        }
+        else if( "vAppTemplate".equals(type) ) {
+            for( String template : templates ) {
+                records.add("<VAppTemplateRecord name=\"template-" + template.substring(0, 8) + "\" catalogName=\"templates\" isPublished=\"false\" status=\"RESOLVED\" vdc=\"" + href("/vdc/" + VDC_ID) + "\" href=\"" + href("/vAppTemplate/vappTemplate-" + template) + "\"/>");
+            }
+        }
+        else if( "orgNetwork".equals(type) ) {
+            records.add("<OrgNetworkRecord name=\"acme-net\" gateway=\"10.20.0.1\" netmask=\"255.255.0.0\" dns1=\"10.20.0.2\" dnsSuffix=\"acme.example.com\" isBusy=\"false\" href=\"" + href("/network/" + NETWORK_ID) + "\"/>");
+        }
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<QueryResultRecords xmlns=\"http://www.vmware.com/vcloud/v1.5\" total=\"").append(records.size()).append("\" pageSize=\"").append(pageSize).append("\" page=\"").append(page);
+        xml.append("\" name=\"").append(type).append("\" type=\"application/vnd.vmware.vcloud.query.records+xml\" href=\"").append(href("/query?" + queryString)).append("\">");
+        for( int i=(page - 1) * pageSize; i<Math.min(records.size(), page * pageSize); i++ ) {
+            xml.append(records.get(i));
+        }
+        xml.append("</QueryResultRecords>");
+        return xml.toString();
+    }
+
+    private @Nonnull String networkConnectionSection(@Nonnull VAppRecord app, boolean root) {
+        String path = "/vApp/vm-" + app.vmId;
+        String address = "10.20." + ((app.vmId.hashCode() >>> 8) & 0xff) + "." + (1 + ((app.vmId.hashCode() & 0x7f)));
+
+        return "<NetworkConnectionSection " + (root ? NS + " " : "") + "type=\"application/vnd.vmware.vcloud.networkConnectionSection+xml\" href=\"" + href(path + "/networkConnectionSection/") + "\" ovf:required=\"false\">"
+                + "<ovf:Info>Specifies the available VM network connections</ovf:Info><PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex>"
+                + "<NetworkConnection network=\"acme-net\"><NetworkConnectionIndex>0</NetworkConnectionIndex><IpAddress>" + address + "</IpAddress><IsConnected>true</IsConnected><MACAddress>00:50:56:01:01:49</MACAddress><IpAddressAllocationMode>POOL</IpAddressAllocationMode></NetworkConnection>"
+                + "</NetworkConnectionSection>";
+    }
+
+    private @Nonnull String catalog() {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<Catalog xmlns=\"http://www.vmware.com/vcloud/v1.5\" name=\"templates\" id=\"urn:vcloud:catalog:").append(CATALOG_ID).append("\" type=\"application/vnd.vmware.vcloud.catalog+xml\" href=\"").append(href("/catalog/" + CATALOG_ID)).append("\">");
+        xml.append(link("up", "vcloud.org", "/org/" + ORG_ID));
+        xml.append(link("add", "vcloud.catalogItem", "/catalog/" + CATALOG_ID + "/catalogItems"));
+        xml.append("<Description>Mock catalog</Description><CatalogItems>");
+        for( String template : templates ) {
+            xml.append(ref("CatalogItem", "vcloud.catalogItem", "template-" + template.substring(0, 8), "/catalogItem/item-" + template));
+        }
+        xml.append("</CatalogItems><IsPublished>false</IsPublished></Catalog>");
+        return xml.toString();
+    }
+
+    private @Nonnull String catalogItem(@Nonnull String template) {
+        return "<CatalogItem xmlns=\"http://www.vmware.com/vcloud/v1.5\" name=\"template-" + template.substring(0, 8) + "\" id=\"urn:vcloud:catalogitem:item-" + template + "\" type=\"application/vnd.vmware.vcloud.catalogItem+xml\" href=\"" + href("/catalogItem/item-" + template) + "\">"
+                + link("up", "vcloud.catalog", "/catalog/" + CATALOG_ID)
+                + "<Description>CentOS 6 x86_64</Description>"
+                + ref("Entity", "vcloud.vAppTemplate", "template-" + template.substring(0, 8), "/vAppTemplate/vappTemplate-" + template)
+                + "</CatalogItem>";
+    }
+
+    private @Nonnull String vAppTemplate(@Nonnull String template) {
+        String vm = "/vAppTemplate/vm-" + template;
+
+        return "<VAppTemplate " + NS + " ovfDescriptorUploaded=\"true\" goldMaster=\"false\" status=\"8\" name=\"template-" + template.substring(0, 8) + "\" id=\"urn:vcloud:vapptemplate:" + template + "\" type=\"application/vnd.vmware.vcloud.vAppTemplate+xml\" href=\"" + href("/vAppTemplate/vappTemplate-" + template) + "\">"
+                + link("up", "vcloud.vdc", "/vdc/" + VDC_ID)
+                + "<Description>CentOS 6 x86_64</Description><Children>"
+                + "<Vm goldMaster=\"false\" status=\"8\" name=\"centos\" id=\"urn:vcloud:vm:" + template + "\" type=\"application/vnd.vmware.vcloud.vm+xml\" href=\"" + href(vm) + "\">"
+                + link("up", "vcloud.vAppTemplate", "/vAppTemplate/vappTemplate-" + template)
+                + "<Description>CentOS 6 x86_64</Description>"
+                + "<GuestCustomizationSection type=\"application/vnd.vmware.vcloud.guestCustomizationSection+xml\" href=\"" + href(vm + "/guestCustomizationSection/") + "\" ovf:required=\"false\">"
+                + "<ovf:Info>Specifies Guest OS Customization Settings</ovf:Info><Enabled>true</Enabled><ChangeSid>false</ChangeSid><VirtualMachineId>" + template + "</VirtualMachineId><JoinDomainEnabled>false</JoinDomainEnabled><UseOrgSettings>false</UseOrgSettings>"
+                + "<AdminPasswordEnabled>true</AdminPasswordEnabled><AdminPasswordAuto>true</AdminPasswordAuto><ResetPasswordRequired>false</ResetPasswordRequired><ComputerName>centos</ComputerName>"
+                + "</GuestCustomizationSection><VAppScopedLocalId>centos</VAppScopedLocalId></Vm>"
+                + "</Children></VAppTemplate>";
+    }
+}
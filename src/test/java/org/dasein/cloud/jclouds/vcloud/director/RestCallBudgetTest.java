@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.director;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.network.NetworkInterface;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Puts upper bounds on the REST calls and wall time of the main compute operations against
+ * {@link MockVCloudDirector} at fleet sizes from 10 to 10,000 VMs. A change that makes an operation
+ * issue more calls than the budget allows, such as fetching a resource per VM that used to be fetched
+ * once, fails here rather than in production.
+ */
+@RunWith(Parameterized.class)
+public class RestCallBudgetTest {
+    static private final int  TEMPLATES     = 5;
+    static private final long LATENCY       = 2L;
+    static private final long TASK_DURATION = 200L;
+
+    @Parameters
+    static public Collection<Object[]> fleetSizes() {
+        return Arrays.asList(new Object[][] { { 10 }, { 100 }, { 1000 }, { 10000 } });
+    }
+
+    private final int          fleetSize;
+    private MockVCloudDirector server;
+    private VCloudDirector     provider;
+
+    public RestCallBudgetTest(int fleetSize) {
+        this.fleetSize = fleetSize;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderContext ctx = new ProviderContext();
+
+        server = new MockVCloudDirector(fleetSize, TEMPLATES);
+        server.setLatency(LATENCY);
+        server.setTaskDuration(TASK_DURATION);
+        server.start();
+        ctx.setEndpoint(server.getEndpoint());
+        ctx.setAccountNumber(MockVCloudDirector.ORG_NAME);
+        ctx.setAccessPublic("operator".getBytes());
+        ctx.setAccessPrivate(("budget-" + fleetSize).getBytes());
+        ctx.setRegionId("mock");
+        ctx.setCloudName("vCloud Director");
+        ctx.setProviderName("VMware");
+        provider = new VCloudDirector();
+        provider.connect(ctx);
+        // log in and warm the org metadata so the budgets below measure the operation alone
+        provider.getOrg();
+        server.resetCounts();
+    }
+
+    @After
+    public void tearDown() {
+        if( server != null ) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Fails if the requests since the last reset exceed the budget, listing what was issued.
+     */
+    private void assertBudget(String operation, long maxCalls, long maxMillis, long started) {
+        long elapsed = System.currentTimeMillis() - started;
+
+        assertTrue(operation + " at " + fleetSize + " VMs issued " + server.getRequestCount() + " calls (budget " + maxCalls + "): " + server.getRequestCounts(), server.getRequestCount() <= maxCalls);
+        assertTrue(operation + " at " + fleetSize + " VMs took " + elapsed + "ms (budget " + maxMillis + "ms)", elapsed <= maxMillis);
+    }
+
+    /**
+     * The wall-time budget for an operation issuing the given number of calls, assuming they overlap at
+     * least eight wide, plus a fixed allowance for client-side work.
+     */
+    private long budget(long calls, long fixed) {
+        return fixed + ((calls * (LATENCY + 5L)) / 8L);
+    }
+
+    @Test
+    public void listVirtualMachines() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            vms.add(vm);
+        }
+        assertEquals(fleetSize, vms.size());
+        assertTrue(server.getRequestCount("GET", "vApp") <= fleetSize);
+        assertBudget("listVirtualMachines", fleetSize + 10, budget(fleetSize, 5000L), started);
+    }
+
+    @Test
+    public void streamVirtualMachines() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+        int count = 0;
+
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().streamVirtualMachines() ) {
+            assertNotNull(vm.getProviderVirtualMachineId());
+            count++;
+        }
+        assertEquals(fleetSize, count);
+        assertBudget("streamVirtualMachines", fleetSize + 10, budget(fleetSize, 5000L), started);
+    }
+
+    @Test
+    public void listVirtualMachinesByQuery() throws CloudException, InternalException {
+        Properties properties = new Properties();
+        long started = System.currentTimeMillis();
+        int count = 0;
+
+        properties.setProperty(QueryPager.LISTING_MODE, "query");
+        provider.getContext().setCustomProperties(properties);
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            assertNotNull(vm.getProviderVirtualMachineId());
+            count++;
+        }
+        int pages = (fleetSize + 127) / 128;
+
+        assertEquals(fleetSize, count);
+        assertEquals(pages, server.getRequestCount("GET", "query"));
+        assertBudget("listVirtualMachines by query", pages + 10, budget(pages, 5000L), started);
+    }
+
+    @Test
+    public void getVirtualMachine() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+        String vmId = server.getVmId(fleetSize / 2);
+        VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
+
+        assertNotNull(vm);
+        assertEquals(vmId, vm.getProviderVirtualMachineId());
+        // the VM and its parent vApp, whatever the size of the fleet
+        assertEquals(1, server.getRequestCount("GET", "vm"));
+        assertEquals(1, server.getRequestCount("GET", "vApp"));
+        for( int i=0; i<100; i++ ) {
+            assertNotNull(provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId));
+        }
+        assertBudget("getVirtualMachine", 10, 5000L, started);
+    }
+
+    @Test
+    public void getVlan() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+
+        for( int i=0; i<100; i++ ) {
+            assertNotNull(provider.getNetworkServices().getVlanSupport().getVlan(server.getNetworkId()));
+        }
+        // the network once, then its cached configuration
+        assertEquals(1, server.getRequestCount("GET", "network"));
+        assertBudget("getVlan", 5, 5000L, started);
+    }
+
+    @Test
+    public void listDataCenters() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+
+        for( int i=0; i<100; i++ ) {
+            assertEquals(1, provider.getDataCenterServices().listDataCenters("mock").size());
+            assertNotNull(provider.getDataCenterServices().getDataCenter("/vdc/" + MockVCloudDirector.VDC_ID));
+        }
+        // the topology is loaded once and then answered from memory
+        assertEquals(1, server.getRequestCount("GET", "vdc"));
+        assertBudget("listDataCenters", 5, 5000L, started);
+    }
+
+    @Test
+    public void listNetworkInterfaces() throws CloudException, InternalException {
+        ArrayList<String> vmIds = new ArrayList<String>();
+        int count = Math.min(fleetSize, 1000);
+
+        for( int i=0; i<count; i++ ) {
+            vmIds.add(server.getVmId(i));
+        }
+        server.resetCounts();
+        long started = System.currentTimeMillis();
+        Map<String,List<NetworkInterface>> nics = provider.getNetworkServices().getVlanSupport().listNetworkInterfaces(vmIds);
+
+        assertEquals(count, nics.size());
+        for( List<NetworkInterface> list : nics.values() ) {
+            assertEquals(1, list.size());
+            assertTrue(list.get(0).isDefaultRoute());
+            assertNotNull(list.get(0).getNetmask());
+        }
+        // one section per VM on top of a single description of the org's networks
+        assertEquals(count, server.getRequestCount("GET", "section"));
+        assertBudget("listNetworkInterfaces", count + 10, budget(count, 5000L), started);
+    }
+
+    @Test
+    public void listMachineImages() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+        int count = 0;
+
+        for( MachineImage image : provider.getComputeServices().getImageSupport().listMachineImages() ) {
+            assertNotNull(image.getProviderMachineImageId());
+            count++;
+        }
+        assertEquals(TEMPLATES, count);
+        // one catalog, then an item and a template per image; none of this may scale with the fleet
+        assertBudget("listMachineImages", (2 * TEMPLATES) + 10, budget(2 * TEMPLATES, 5000L), started);
+    }
+
+    @Test
+    public void launch() throws CloudException, InternalException {
+        VirtualMachineProduct product = provider.getComputeServices().getVirtualMachineSupport().listProducts(Architecture.I64).iterator().next();
+        long started;
+
+        server.resetCounts();
+        started = System.currentTimeMillis();
+        VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().launch(server.getTemplateId(0), product, null, "budget", "budget", null, server.getNetworkId(), false, false);
+
+        assertNotNull(vm);
+        assertEquals(fleetSize + 1, server.getFleetSize());
+        assertBudget("launch", 40, 30000L, started);
+    }
+
+    @Test
+    public void terminate() throws CloudException, InternalException {
+        long started = System.currentTimeMillis();
+
+        provider.getComputeServices().getVirtualMachineSupport().terminate(server.getVmId(0));
+        assertEquals(fleetSize - 1, server.getFleetSize());
+        assertBudget("terminate", 40, 30000L, started);
+    }
+}